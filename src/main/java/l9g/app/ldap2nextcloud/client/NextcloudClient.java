@@ -32,10 +32,7 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.retry.annotation.Backoff;
-import org.springframework.retry.annotation.Retryable;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
@@ -53,6 +50,14 @@ public class NextcloudClient
   @Value("${nextcloud.base-url:}")
   private String nextcloudBaseUrl;
 
+  /**
+   * Lists the ids of all users.
+   *
+   * @return the user ids, empty if the users could not be read
+   *
+   * @throws IllegalStateException if the response holds an id that is not a
+   * string
+   */
   public List<String> listUsers()
   {
     log.debug("listUsers()");
@@ -72,9 +77,21 @@ public class NextcloudClient
       && response.getBody().getOcs().getMeta().getStatuscode() == 100)
     {
       Object users = response.getBody().getOcs().getData().get("users");
-      if(users != null && users instanceof List)
+      if(users instanceof List<?> userList)
       {
-        return (List)users;
+        List<String> userIds = new ArrayList<>(userList.size());
+
+        for(Object user : userList)
+        {
+          if( ! (user instanceof String userId))
+          {
+            log.error("ERROR: unexpected user id {}", user);
+            throw new IllegalStateException("unexpected user id: " + user);
+          }
+          userIds.add(userId);
+        }
+
+        return userIds;
       }
     }
     
@@ -101,9 +118,11 @@ public class NextcloudClient
       && response.getBody().getOcs().getMeta().getStatuscode() == 100)
     {
       Object groups = response.getBody().getOcs().getData().get("groups");
-      if(groups != null && groups instanceof List)
+      if(groups instanceof List<?> list)
       {
-        return (List)groups;
+        List<String> groupIds = new ArrayList<>();
+        list.forEach(group -> groupIds.add(String.valueOf(group)));
+        return groupIds;
       }
     }
 
@@ -111,8 +130,84 @@ public class NextcloudClient
     return new ArrayList<>();
   }
 
-  @Retryable(retryFor = HttpClientErrorException.TooManyRequests.class, maxAttempts = 5, backoff =
-             @Backoff(delay = 2000, multiplier = 2))
+  public boolean groupExists(String groupId)
+  {
+    log.debug("groupExists({})", groupId);
+
+    URI uri = UriComponentsBuilder
+      .fromUriString(nextcloudBaseUrl)
+      .pathSegment("ocs", "v1.php", "cloud", "groups")
+      .queryParam("search", groupId)
+      .queryParam("format", "json").build().toUri();
+
+    log.debug("uri={}", uri);
+
+    ResponseEntity<OcsResult> response =
+      restTemplate.getForEntity(uri, OcsResult.class);
+
+    if(response.getStatusCode() == HttpStatus.OK
+      && response.getBody() != null
+      && response.getBody().getOcs().getMeta().getStatuscode() == 100)
+    {
+      Object groups = response.getBody().getOcs().getData().get("groups");
+      if(groups instanceof List<?> groupList)
+      {
+        return groupList.contains(groupId);
+      }
+    }
+
+    log.error("ERROR: response = {}", response);
+    return false;
+  }
+
+  /**
+   * Lists the ids of all members of a group.
+   *
+   * @param groupId the group id
+   *
+   * @return the member ids or {@code null} if the group could not be read
+   */
+  public List<String> listGroupMembers(String groupId)
+  {
+    log.debug("listGroupMembers({})", groupId);
+
+    URI uri = UriComponentsBuilder
+      .fromUriString(nextcloudBaseUrl)
+      .pathSegment("ocs", "v1.php", "cloud", "groups", groupId, "users")
+      .queryParam("format", "json").build().toUri();
+
+    log.debug("uri={}", uri);
+
+    ResponseEntity<OcsResult> response =
+      restTemplate.getForEntity(uri, OcsResult.class);
+
+    if(response.getStatusCode() == HttpStatus.OK
+      && response.getBody() != null
+      && response.getBody().getOcs().getMeta().getStatuscode() == 100)
+    {
+      Object users = response.getBody().getOcs().getData().get("users");
+      if(users instanceof List<?> userList)
+      {
+        List<String> members = new ArrayList<>(userList.size());
+
+        for(Object user : userList)
+        {
+          if( ! (user instanceof String userId))
+          {
+            log.error("ERROR: unexpected group member {}", user);
+            return null;
+          }
+          members.add(userId);
+        }
+
+        return members;
+      }
+    }
+
+    log.error("ERROR: response = {}", response);
+    return null;
+  }
+
   public int userDelete(String user)
   {
     int statuscode = -1;
@@ -139,8 +234,6 @@ public class NextcloudClient
     return statuscode;
   }
   
-  @Retryable(retryFor = HttpClientErrorException.TooManyRequests.class, maxAttempts = 5, backoff =
-             @Backoff(delay = 2000, multiplier = 2))
   public int groupDelete(String groupId)
   {
     int statuscode = -1;
@@ -167,8 +260,6 @@ public class NextcloudClient
     return statuscode;
   }
 
-  @Retryable(retryFor = HttpClientErrorException.TooManyRequests.class, maxAttempts = 5, backoff =
-             @Backoff(delay = 2000, multiplier = 2))
   public int groupCreate(NextcloudGroup group)
   {
     int statuscode = -1;
@@ -196,8 +287,6 @@ public class NextcloudClient
     return statuscode;
   }
 
-  @Retryable(retryFor = HttpClientErrorException.TooManyRequests.class, maxAttempts = 5, backoff =
-             @Backoff(delay = 2000, multiplier = 2))
   public int groupUpdateDisplayname(String groupId, String displayname)
   {
     int statuscode = -1;
@@ -234,8 +323,6 @@ public class NextcloudClient
     return statuscode;
   }
 
-  @Retryable(retryFor = HttpClientErrorException.TooManyRequests.class, maxAttempts = 5, backoff =
-             @Backoff(delay = 2000, multiplier = 2))
   public int userUpdate(String userId, String key, String value)
   {
     int statuscode = -1;
@@ -272,8 +359,6 @@ public class NextcloudClient
     return statuscode;
   }
 
-  @Retryable(retryFor = HttpClientErrorException.TooManyRequests.class, maxAttempts = 5, backoff =
-             @Backoff(delay = 2000, multiplier = 2))
   public int userCreate(NextcloudCreateUser user)
   {
     int statuscode = -1;
@@ -334,8 +419,6 @@ public class NextcloudClient
     return user;
   }
 
-  @Retryable(retryFor = HttpClientErrorException.TooManyRequests.class, maxAttempts = 5, backoff =
-             @Backoff(delay = 2000, multiplier = 2))
   public int userRemoveGroup(String userId, String group)
   {
     int statuscode = -1;
@@ -372,8 +455,6 @@ public class NextcloudClient
     return statuscode;
   }
 
-  @Retryable(retryFor = HttpClientErrorException.TooManyRequests.class, maxAttempts = 5, backoff =
-             @Backoff(delay = 2000, multiplier = 2))
   public int userAddGroup(String userId, String group)
   {
     int statuscode = -1;
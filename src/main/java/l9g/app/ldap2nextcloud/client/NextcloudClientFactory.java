@@ -44,6 +44,8 @@ import org.springframework.web.client.RestTemplate;
 @Slf4j
 public class NextcloudClientFactory
 {
+  private final OcsRateLimiter ocsRateLimiter;
+
   @Value("${nextcloud.base-url:}")
   private String nextcloudBaseUrl;
 
@@ -67,12 +69,15 @@ public class NextcloudClientFactory
 
     RestTemplate restTemplate = new RestTemplate();
 
+    // one shared client keeps connections and TLS sessions alive between
+    // requests and between the runs of the sync daemon
+    HttpClient.Builder httpClientBuilder = HttpClient.newBuilder()
+      .connectTimeout(Duration.ofSeconds(10))
+      .version(HttpClient.Version.HTTP_1_1);
+
     if(nextcloudTrustAllCertificates)
     {
       log.warn("TRUSTING ALL CERTIFICATES.");
-      HttpClient.Builder httpClientBuilder = HttpClient.newBuilder()
-        .connectTimeout(Duration.ofSeconds(10))
-        .version(HttpClient.Version.HTTP_1_1);
 
       try
       {
@@ -107,11 +112,11 @@ public class NextcloudClientFactory
       {
         throw new SSLException("Failed to initialize trust-all SSL context", e);
       }
-
-      HttpClient jdkClient = httpClientBuilder.build();
-      restTemplate.setRequestFactory(new JdkClientHttpRequestFactory(jdkClient));
     }
 
+    HttpClient jdkClient = httpClientBuilder.build();
+    restTemplate.setRequestFactory(new JdkClientHttpRequestFactory(jdkClient));
+
     String basicAuthValue = "Basic " + Base64.getEncoder().encodeToString(
       (nextcloudOcsUser + ":" + nextcloudOcsPassword).getBytes(StandardCharsets.UTF_8)
     );
@@ -123,6 +128,9 @@ public class NextcloudClientFactory
       return execution.execute(request, body);
     });
 
+    // must be last, it executes throttled requests again
+    restTemplate.getInterceptors().add(ocsRateLimiter);
+
     return restTemplate;
   }
 
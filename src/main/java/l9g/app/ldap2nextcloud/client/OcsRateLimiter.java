@@ -0,0 +1,405 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.stereotype.Component;
+
+/**
+ * Client side rate limiter shared by all OCS calls.
+ * <p>
+ * Requests take a token from a bucket refilled at the current rate. Every
+ * successful request raises the rate additively (about
+ * {@code increase} requests per second, per second), every {@code 429} or
+ * {@code 503} response cuts it by {@code decrease-factor}, pauses all
+ * requests for the {@code Retry-After} time and retries the request.
+ * <p>
+ * A circuit breaker watches the last {@code breaker.window} outcomes. If the
+ * share of throttled, server error or failed requests exceeds
+ * {@code breaker.error-threshold} all requests fail fast for
+ * {@code breaker.open-seconds}, after that a single trial request decides
+ * whether the circuit closes again.
+ * <p>
+ * Must be the last interceptor of the {@code RestTemplate}, because it
+ * executes a request more than once.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+@Slf4j
+public class OcsRateLimiter implements ClientHttpRequestInterceptor
+{
+  private final static long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * Origin of {@link #now()}, keeps all time stamps positive so that
+   * {@code 0} can mean "not set".
+   */
+  private final static long ORIGIN = System.nanoTime() - 1;
+
+  @Value("${nextcloud.rate-limit.enabled:true}")
+  private boolean enabled;
+
+  @Value("${nextcloud.rate-limit.initial-rate:10}")
+  private double initialRate;
+
+  @Value("${nextcloud.rate-limit.min-rate:0.5}")
+  private double minRate;
+
+  @Value("${nextcloud.rate-limit.max-rate:100}")
+  private double maxRate;
+
+  @Value("${nextcloud.rate-limit.burst:10}")
+  private double burst;
+
+  @Value("${nextcloud.rate-limit.increase:1}")
+  private double increase;
+
+  @Value("${nextcloud.rate-limit.decrease-factor:0.5}")
+  private double decreaseFactor;
+
+  @Value("${nextcloud.rate-limit.max-retries:5}")
+  private int maxRetries;
+
+  @Value("${nextcloud.rate-limit.default-retry-after-seconds:2}")
+  private int defaultRetryAfterSeconds;
+
+  @Value("${nextcloud.rate-limit.breaker.window:50}")
+  private int breakerWindow;
+
+  @Value("${nextcloud.rate-limit.breaker.error-threshold:0.5}")
+  private double breakerErrorThreshold;
+
+  @Value("${nextcloud.rate-limit.breaker.open-seconds:60}")
+  private int breakerOpenSeconds;
+
+  @Override
+  public ClientHttpResponse intercept(HttpRequest request, byte[] body,
+    ClientHttpRequestExecution execution)
+    throws IOException
+  {
+    if( ! enabled)
+    {
+      return execution.execute(request, body);
+    }
+
+    for(int attempt = 0;; attempt ++)
+    {
+      // may wait or be interrupted, so before a trial request is started
+      acquire();
+      checkCircuit();
+
+      ClientHttpResponse response;
+
+      try
+      {
+        response = execution.execute(request, body);
+      }
+      catch(IOException | RuntimeException e)
+      {
+        recordOutcome(true);
+        throw e;
+      }
+
+      int status = response.getStatusCode().value();
+
+      if(status == 429 || status == 503)
+      {
+        long retryAfterNanos = retryAfterNanos(
+          response.getHeaders().getFirst("Retry-After"));
+        throttled(retryAfterNanos);
+
+        if(attempt < maxRetries)
+        {
+          log.debug("{} {} throttled ({}), retry {} of {}", request.getMethod(),
+            request.getURI(), status, attempt + 1, maxRetries);
+          response.close();
+          continue;
+        }
+
+        log.warn("{} {} still throttled after {} retries", request.getMethod(),
+          request.getURI(), maxRetries);
+        return response;
+      }
+
+      if(status >= 500)
+      {
+        recordOutcome(true);
+      }
+      else
+      {
+        succeeded();
+      }
+
+      return response;
+    }
+  }
+
+  /**
+   * @return the currently permitted requests per second
+   */
+  public synchronized double getRate()
+  {
+    return rate();
+  }
+
+  public synchronized boolean isCircuitOpen()
+  {
+    return circuitOpenUntil > now();
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // token bucket
+  private void acquire()
+    throws IOException
+  {
+    while(true)
+    {
+      long waitNanos;
+
+      synchronized(this)
+      {
+        long now = now();
+        refill(now);
+
+        if(pausedUntil > now)
+        {
+          waitNanos = pausedUntil - now;
+        }
+        else if(tokens >= 1)
+        {
+          tokens -= 1;
+          return;
+        }
+        else
+        {
+          waitNanos = (long)((1 - tokens) / rate() * NANOS_PER_SECOND);
+        }
+      }
+
+      sleep(Math.max(1, waitNanos));
+    }
+  }
+
+  private void refill(long now)
+  {
+    if(lastRefill == 0)
+    {
+      tokens = Math.max(1, burst);
+    }
+    else
+    {
+      tokens = Math.min(Math.max(1, burst),
+        tokens + (now - lastRefill) * rate() / NANOS_PER_SECOND);
+    }
+    lastRefill = now;
+  }
+
+  private double rate()
+  {
+    if(currentRate <= 0)
+    {
+      currentRate = Math.min(maxRate, Math.max(minRate, initialRate));
+    }
+    return currentRate;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // AIMD
+  private synchronized void succeeded()
+  {
+    currentRate = Math.min(maxRate, rate() + increase / rate());
+    recordOutcome(false);
+  }
+
+  private synchronized void throttled(long retryAfterNanos)
+  {
+    long now = now();
+    double previousRate = rate();
+
+    // requests in flight when throttling starts cut the rate only once
+    if(pausedUntil <= now)
+    {
+      currentRate = Math.max(minRate, previousRate * decreaseFactor);
+    }
+
+    pausedUntil = Math.max(pausedUntil, now + retryAfterNanos);
+    tokens = 0;
+    log.info("nextcloud throttling, rate {} -> {} requests/s, pausing {}ms",
+      String.format("%.2f", previousRate), String.format("%.2f", currentRate),
+      TimeUnit.NANOSECONDS.toMillis(retryAfterNanos));
+    recordOutcome(true);
+  }
+
+  private long retryAfterNanos(String retryAfter)
+  {
+    if(retryAfter != null && ! retryAfter.isBlank())
+    {
+      try
+      {
+        return TimeUnit.SECONDS.toNanos(Long.parseLong(retryAfter.trim()));
+      }
+      catch(NumberFormatException e)
+      {
+        try
+        {
+          long millis = ZonedDateTime.parse(retryAfter.trim(),
+            DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+            - System.currentTimeMillis();
+          return TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+        }
+        catch(DateTimeParseException ex)
+        {
+          log.debug("invalid Retry-After header: {}", retryAfter);
+        }
+      }
+    }
+
+    return TimeUnit.SECONDS.toNanos(defaultRetryAfterSeconds);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // circuit breaker
+  private synchronized void checkCircuit()
+    throws IOException
+  {
+    long now = now();
+
+    if(circuitOpenUntil > now)
+    {
+      throw new IOException("nextcloud circuit open for another "
+        + TimeUnit.NANOSECONDS.toSeconds(circuitOpenUntil - now) + "s");
+    }
+
+    if(circuitOpenUntil != 0)
+    {
+      if(trialRunning)
+      {
+        throw new IOException("nextcloud circuit half open, trial running");
+      }
+      log.info("nextcloud circuit half open, sending trial request");
+      trialRunning = true;
+    }
+  }
+
+  private synchronized void recordOutcome(boolean error)
+  {
+    if(trialRunning)
+    {
+      trialRunning = false;
+
+      if(error)
+      {
+        openCircuit();
+      }
+      else
+      {
+        log.info("nextcloud circuit closed");
+        circuitOpenUntil = 0;
+        outcomes = null;
+      }
+      return;
+    }
+
+    int window = Math.max(1, breakerWindow);
+
+    if(outcomes == null)
+    {
+      outcomes = new boolean[window];
+      outcomeCount = 0;
+      errorCount = 0;
+    }
+
+    int index = outcomeCount % window;
+
+    if(outcomeCount >= window && outcomes[index])
+    {
+      errorCount --;
+    }
+
+    outcomes[index] = error;
+    outcomeCount ++;
+
+    if(error)
+    {
+      errorCount ++;
+    }
+
+    if(outcomeCount >= window
+      && errorCount > breakerErrorThreshold * window)
+    {
+      log.warn("{} of the last {} nextcloud requests failed", errorCount, window);
+      openCircuit();
+    }
+  }
+
+  private void openCircuit()
+  {
+    log.error("nextcloud circuit open for {}s", breakerOpenSeconds);
+    circuitOpenUntil = now()
+      + TimeUnit.SECONDS.toNanos(breakerOpenSeconds);
+    outcomes = null;
+  }
+
+  private static long now()
+  {
+    return System.nanoTime() - ORIGIN;
+  }
+
+  private static void sleep(long nanos)
+    throws IOException
+  {
+    try
+    {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while rate limited");
+    }
+  }
+
+  private double currentRate;
+
+  private double tokens;
+
+  private long lastRefill;
+
+  private long pausedUntil;
+
+  private long circuitOpenUntil;
+
+  private boolean trialRunning;
+
+  private boolean[] outcomes;
+
+  private int outcomeCount;
+
+  private int errorCount;
+
+}
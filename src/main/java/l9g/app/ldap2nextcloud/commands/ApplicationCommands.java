@@ -16,18 +16,23 @@
 package l9g.app.ldap2nextcloud.commands;
 
 import ch.qos.logback.classic.Level;
-import com.unboundid.asn1.ASN1GeneralizedTime;
-import com.unboundid.ldap.sdk.Entry;
-import java.util.ArrayList;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import l9g.app.ldap2nextcloud.config.Config;
 import l9g.app.ldap2nextcloud.config.LogbackConfig;
-import l9g.app.ldap2nextcloud.util.TimestampUtil;
 import l9g.app.ldap2nextcloud.config.AttributesMapService;
-import l9g.app.ldap2nextcloud.engine.JavaScriptEngine;
+import l9g.app.ldap2nextcloud.engine.PlanExecutor;
+import l9g.app.ldap2nextcloud.engine.SyncDaemon;
+import l9g.app.ldap2nextcloud.engine.SyncEngine;
+import l9g.app.ldap2nextcloud.engine.SyncOptions;
+import l9g.app.ldap2nextcloud.engine.SyncWatcher;
 import l9g.app.ldap2nextcloud.handler.LdapHandler;
 import l9g.app.ldap2nextcloud.handler.NextcloudHandler;
-import l9g.app.ldap2nextcloud.model.NextcloudCreateUser;
+import l9g.app.ldap2nextcloud.model.SyncScope;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
@@ -58,6 +63,14 @@ public class ApplicationCommands
 
   private final AttributesMapService attributesMapService;
 
+  private final SyncEngine syncEngine;
+
+  private final PlanExecutor planExecutor;
+
+  private final SyncDaemon syncDaemon;
+
+  private final SyncWatcher syncWatcher;
+
   @Value("${sync.protected-users}")
   private List<String> protectedUsers;
 
@@ -69,7 +82,25 @@ public class ApplicationCommands
     @Option(longNames = "full-sync", defaultValue = "false") boolean fullSync,
     @Option(longNames = "dry-run", defaultValue = "false") boolean dryRun,
     @Option(longNames = "debug", defaultValue = "false") boolean debug,
-    @Option(longNames = "trace", defaultValue = "false") boolean trace
+    @Option(longNames = "trace", defaultValue = "false") boolean trace,
+    @Option(longNames = "worker-threads", defaultValue = "0",
+            description = "concurrent workers, 0 = sync.worker-threads") int workerThreads,
+    @Option(longNames = "streaming", defaultValue = "false",
+            description = "process LDAP pages while they arrive") boolean streaming,
+    @Option(longNames = "refresh-cache", defaultValue = "false",
+            description = "ignore cached Nextcloud user states") boolean refreshCache,
+    @Option(longNames = "resume", defaultValue = "false",
+            description = "continue an unfinished sync") boolean resume,
+    @Option(longNames = "restart", defaultValue = "false",
+            description = "discard an unfinished sync") boolean restart,
+    @Option(longNames = "plan-out", defaultValue = "",
+            description = "write changes to this plan file instead of applying them") String planOut,
+    @Option(longNames = "only-fields", defaultValue = "",
+            description = "update these fields only, e.g. phone,email") String onlyFields,
+    @Option(longNames = "only-groups", defaultValue = "false",
+            description = "update group memberships only") boolean onlyGroups,
+    @Option(longNames = "reconcile-groups", defaultValue = "false",
+            description = "reconcile memberships per group, needs --full-sync") boolean reconcileGroups
   )
     throws Throwable
   {
@@ -90,138 +121,104 @@ public class ApplicationCommands
       logbackConfig.getL9gLogger().setLevel(Level.TRACE);
     }
 
-    LOGGER.info("dry-run = '{}', full-sync = '{}', debug = '{}', trace = '{}'", dryRun, fullSync, debug, trace);
-
-    config.setDebug(debug);
-    config.setDryRun(dryRun);
-
-    int updateCounter = 0;
-    int createCounter = 0;
-    int deleteCounter = 0;
-    int ignoreCounter = 0;
-
-    createGroupCounter = 0;
-
-    TimestampUtil timestampUtil = new TimestampUtil("nextcloud-users");
-
-    nextcloudHandler.readNextcloudGroups();
-    nextcloudHandler.readNextcloudUsers();
-
-    ///////////////////////////////////////////////////////////////////////////
-    // DELETE
-    LOGGER.info("looking for users to delete");
-    ldapHandler.readAllLdapEntryUIDs();
-
-    for(String user : nextcloudHandler.getNextcloudUserIds())
+    if(resume && restart)
     {
-      if( ! ldapHandler.getLdapEntryMap().containsKey(user))
-      {
-        if(protectedUsers.contains(user))
-        {
-          // IGNORE protected Users
-          LOGGER.warn("IGNORE DELETE PROTECTED USER: {}", user);
-          ignoreCounter ++;
-        }
-        else
-        {
-          // DELETE
-          nextcloudHandler.deleteUser(user);
-          deleteCounter ++;
-        }
-      }
+      LOGGER.error("--resume and --restart are mutually exclusive");
+      return;
     }
 
-    ///////////////////////////////////////////////////////////////////////////
-    ASN1GeneralizedTime timestamp;
+    LOGGER.info("dry-run = '{}', full-sync = '{}', debug = '{}', trace = '{}', worker-threads = '{}', streaming = '{}', refresh-cache = '{}', resume = '{}', restart = '{}', plan-out = '{}', only-fields = '{}', only-groups = '{}', reconcile-groups = '{}'",
+      dryRun, fullSync, debug, trace, workerThreads, streaming, refreshCache, resume, restart, planOut, onlyFields, onlyGroups, reconcileGroups);
 
-    if(fullSync)
+    SyncScope scope;
+
+    try
     {
-      timestamp = new ASN1GeneralizedTime(0l); // 01.01.1970, unix time 0
+      scope = SyncScope.of(onlyFields, onlyGroups);
     }
-    else
+    catch(IllegalArgumentException e)
     {
-      timestamp = timestampUtil.getLastSyncTimestamp();
+      LOGGER.error(e.getMessage());
+      return;
     }
 
-    LOGGER.info("looking for users to update or create since last sync ({})", timestamp.getStringRepresentation());
-    ldapHandler.readLdapEntries(timestamp, true);
+    config.setDebug(debug);
+    config.setDryRun(dryRun);
+    config.setRefreshUserCache(refreshCache);
 
-    try(JavaScriptEngine js = new JavaScriptEngine())
-    {
-      int noEntries = ldapHandler.getLdapEntryMap().size();
-      int entryCounter = 0;
+    SyncOptions options = new SyncOptions();
+    options.setFullSync(fullSync);
+    options.setWorkerThreads(workerThreads);
+    options.setStreaming(streaming);
+    options.setResume(resume);
+    options.setRestart(restart);
+    options.setPlanOut(planOut);
+    options.setScope(scope);
+    options.setReconcileGroups(reconcileGroups);
 
-      for(Entry entry : ldapHandler.getLdapEntryMap().values())
-      {
-        entryCounter ++;
-        LOGGER.debug("{}/{}", entryCounter, noEntries);
+    syncEngine.sync(options);
 
-        String userId = entry.getAttributeValue(ldapHandler.getLdapUserId());
-        ArrayList<String> groups = new ArrayList<>();
-        NextcloudCreateUser updateUser = new NextcloudCreateUser();
-        updateUser.setUserId(userId);
-        updateUser.setGroups(groups);
+    logbackConfig.getRootLogger().setLevel(Level.INFO);
+    logbackConfig.getL9gLogger().setLevel(Level.INFO);
+  }
 
-        if(nextcloudHandler.getNextcloudUserIds().contains(userId))
-        {
-          js.getValue().executeVoid("update", updateUser, entry);
-          checkGroups(updateUser);
-          nextcloudHandler.updateUser(updateUser);
-          updateCounter ++;
-        }
-        else
-        {
-          // CREATE
-          js.getValue().executeVoid("create", updateUser, entry);
-          checkGroups(updateUser);
-          nextcloudHandler.createUser(updateUser);
-          createCounter ++;
-        }
-      }
-    }
+  @Command(description = "run incremental syncs on a fixed interval until terminated")
+  public void daemon(
+    @Option(longNames = "interval", defaultValue = "0",
+            description = "seconds between two syncs, 0 = daemon.interval-seconds") int interval,
+    @Option(longNames = "full-refresh-cycles", defaultValue = "0",
+            description = "full refresh every n syncs, 0 = daemon.full-refresh-cycles") int fullRefreshCycles,
+    @Option(longNames = "worker-threads", defaultValue = "0",
+            description = "concurrent workers, 0 = sync.worker-threads") int workerThreads
+  )
+    throws Throwable
+  {
+    logbackConfig.getRootLogger().setLevel(Level.INFO);
+    logbackConfig.getL9gLogger().setLevel(Level.INFO);
 
-    LOGGER.info("sync done\nSummary:"
-      + "\n  updated {} user(s)"
-      + "\n  created {} user(s)"
-      + "\n  deleted {} user(s)"
-      + "\n  ignored {} user(s)"
-      + "\n  created {} group(s)",
-      updateCounter, createCounter, deleteCounter, ignoreCounter, createGroupCounter);
+    LOGGER.info("interval = '{}', full-refresh-cycles = '{}', worker-threads = '{}'",
+      interval, fullRefreshCycles, workerThreads);
 
-    ///////////////////////////////////////////////////////////////////////////
-    if( ! dryRun)
-    {
-      timestampUtil.writeCurrentTimestamp();
-    }
+    config.setDebug(false);
+    config.setDryRun(false);
+    syncDaemon.run(interval, fullRefreshCycles, workerThreads);
+  }
 
+  @Command(description = "sync ldap changes as they happen until terminated")
+  public void watch(
+    @Option(longNames = "worker-threads", defaultValue = "0",
+            description = "concurrent workers, 0 = sync.worker-threads") int workerThreads
+  )
+    throws Throwable
+  {
     logbackConfig.getRootLogger().setLevel(Level.INFO);
     logbackConfig.getL9gLogger().setLevel(Level.INFO);
+
+    LOGGER.info("worker-threads = '{}'", workerThreads);
+
+    config.setDebug(false);
+    config.setDryRun(false);
+    syncWatcher.run(workerThreads);
   }
 
-  private void checkGroups(NextcloudCreateUser user)
+  @Command(description = "apply a sync plan written by sync --plan-out")
+  public void applyPlan(
+    @Option(longNames = "file", required = true,
+            description = "plan file") String file,
+    @Option(longNames = "concurrency", defaultValue = "0",
+            description = "concurrent operations, 0 = sync.worker-threads") int concurrency,
+    @Option(longNames = "dry-run", defaultValue = "false") boolean dryRun
+  )
     throws Throwable
   {
-    if( ! config.isDryRun())
-    {
-      user.getGroups().forEach(group ->
-      {
-        if( ! attributesMapService.getGroups().containsKey(group))
-        {
-          LOGGER.error("ERROR: Group '{}' not found in map!", group);
-          throw new RuntimeException("ERROR: Group not found in map! : " + group);
-        }
+    logbackConfig.getRootLogger().setLevel(Level.INFO);
+    logbackConfig.getL9gLogger().setLevel(Level.INFO);
 
-        if( ! nextcloudHandler.getNextcloudGroupIds().contains(group))
-        {
-          String displayName = attributesMapService.getGroups().get(group);
-          LOGGER.info("Creating group {}, {} = {}", group, displayName,
-            nextcloudHandler.createGroup(group, displayName));
-          nextcloudHandler.getNextcloudGroupIds().add(group);
-          createGroupCounter ++;
-        }
+    LOGGER.info("file = '{}', concurrency = '{}', dry-run = '{}'",
+      file, concurrency, dryRun);
 
-      });
-    }
+    config.setDryRun(dryRun);
+    planExecutor.apply(new File(file), concurrency);
   }
 
   @Command(description = "update group displaynames from config to Nextcloud")
@@ -248,31 +245,28 @@ public class ApplicationCommands
   }
 
   @Command(description = "update user phonenumbers from LDAP to Nextcloud")
-  public void updatePhoneNumbers()
+  public void updatePhoneNumbers(
+    @Option(longNames = "from-snapshot", defaultValue = "false",
+            description = "read the ldap users from the snapshot file") boolean fromSnapshot
+  )
     throws Throwable
   {
-    nextcloudHandler.readNextcloudUsers();
-    ldapHandler.readLdapEntries(new ASN1GeneralizedTime(0l), true);
-    try(JavaScriptEngine js = new JavaScriptEngine())
+    SyncOptions options = new SyncOptions();
+    options.setFullSync(true);
+    options.setScope(SyncScope.of("phone", false));
+
+    if(fromSnapshot)
     {
-      for(String userId : nextcloudHandler.getNextcloudUserIds())
-      {
-        Entry entry = ldapHandler.getLdapEntryMap().get(userId);
-        if(entry != null)
-        {
-          String phone = entry.getAttributeValue("telephoneNumber");
-          if(phone != null)
-          {
-            ArrayList<String> groups = new ArrayList<>();
-            NextcloudCreateUser updateUser = new NextcloudCreateUser();
-            updateUser.setUserId(userId);
-            updateUser.setGroups(groups);
-            js.getValue().executeVoid("update", updateUser, entry);
-            LOGGER.debug("UPDATE {} phone = {}", userId, updateUser.getPhone());
-            nextcloudHandler.updateUser(userId, "phone", updateUser.getPhone());
-          }
-        }
-      }
+      ldapHandler.openSnapshot();
+    }
+
+    try
+    {
+      syncEngine.sync(options);
+    }
+    finally
+    {
+      ldapHandler.closeSnapshot();
     }
   }
 
@@ -330,88 +324,101 @@ public class ApplicationCommands
       deleteCounter, ignoreCounter);
   }
 
-  @Command(description = "sync single user")
-  public void syncSingleUser(String singleUserId)
+  @Command(description = "sync the given users only")
+  public void syncUsers(
+    @Option(longNames = "user-ids", defaultValue = "",
+            description = "comma separated user ids") String userIds,
+    @Option(longNames = "file", defaultValue = "",
+            description = "file with one user id per line") String file,
+    @Option(longNames = "worker-threads", defaultValue = "0",
+            description = "concurrent workers, 0 = sync.worker-threads") int workerThreads,
+    @Option(longNames = "dry-run", defaultValue = "false") boolean dryRun,
+    @Option(longNames = "debug", defaultValue = "false") boolean debug,
+    @Option(longNames = "from-snapshot", defaultValue = "false",
+            description = "read the ldap users from the snapshot file") boolean fromSnapshot
+  )
+    throws Throwable
   {
-    log.debug("syncSingleUser");
-
-    int updateCounter = 0;
-    int createCounter = 0;
-    int deleteCounter = 0;
-    int ignoreCounter = 0;
-
-    createGroupCounter = 0;
+    logbackConfig.getRootLogger().setLevel(Level.INFO);
+    logbackConfig.getL9gLogger().setLevel(debug ? Level.DEBUG : Level.INFO);
 
-    nextcloudHandler.readNextcloudGroups();
-    nextcloudHandler.readNextcloudUsers();
+    LOGGER.info("user-ids = '{}', file = '{}', worker-threads = '{}', dry-run = '{}', debug = '{}'",
+      userIds, file, workerThreads, dryRun, debug);
 
-    config.setDebug(true);
-    logbackConfig.getL9gLogger().setLevel(Level.TRACE);
+    Set<String> ids = new LinkedHashSet<>();
 
-    try
+    for(String userId : userIds.split(","))
     {
-      ASN1GeneralizedTime timestamp = new ASN1GeneralizedTime(0l); // 01.01.1970, unix time 0
-      ldapHandler.readLdapEntries(timestamp, true);
-
-      try(JavaScriptEngine js = new JavaScriptEngine())
+      if( ! userId.isBlank())
       {
-        int noEntries = ldapHandler.getLdapEntryMap().size();
-        int entryCounter = 0;
+        ids.add(userId.trim());
+      }
+    }
 
-        for(Entry entry : ldapHandler.getLdapEntryMap().values())
+    if( ! file.isBlank())
+    {
+      for(String line : Files.readAllLines(Path.of(file)))
+      {
+        if( ! line.isBlank() && ! line.trim().startsWith("#"))
         {
-          entryCounter ++;
-          // LOGGER.debug("{}/{}", entryCounter, noEntries);
-
-          String userId = entry.getAttributeValue(ldapHandler.getLdapUserId());
-
-          if(singleUserId.equals(userId))
-          {
-            log.info("*** sync-single-user User {} found", userId);
-            
-            ArrayList<String> groups = new ArrayList<>();
-            NextcloudCreateUser updateUser = new NextcloudCreateUser();
-            updateUser.setUserId(userId);
-            updateUser.setGroups(groups);
-
-            if(nextcloudHandler.getNextcloudUserIds().contains(userId))
-            {
-              js.getValue().executeVoid("update", updateUser, entry);
-              checkGroups(updateUser);
-              nextcloudHandler.updateUser(updateUser);
-              updateCounter ++;
-            }
-            else
-            {
-              // CREATE
-              js.getValue().executeVoid("create", updateUser, entry);
-              checkGroups(updateUser);
-              nextcloudHandler.createUser(updateUser);
-              createCounter ++;
-            }
-            
-            break;
-          }
+          ids.add(line.trim());
         }
       }
+    }
 
-      LOGGER.info("sync done\nSummary:"
-        + "\n  updated {} user(s)"
-        + "\n  created {} user(s)"
-        + "\n  deleted {} user(s)"
-        + "\n  ignored {} user(s)"
-        + "\n  created {} group(s)",
-        updateCounter, createCounter, deleteCounter, ignoreCounter, createGroupCounter);
+    if(ids.isEmpty())
+    {
+      LOGGER.error("no user ids given, use --user-ids and/or --file");
+      return;
+    }
 
+    config.setDryRun(dryRun);
+    config.setDebug(debug);
+
+    if(fromSnapshot)
+    {
+      ldapHandler.openSnapshot();
+    }
+
+    try
+    {
+      syncEngine.syncUsers(ids, workerThreads);
+    }
+    finally
+    {
+      ldapHandler.closeSnapshot();
+    }
+  }
+
+  @Command(description = "sync single user")
+  public void syncSingleUser(String singleUserId,
+    @Option(longNames = "from-snapshot", defaultValue = "false",
+            description = "read the ldap user from the snapshot file") boolean fromSnapshot
+  )
+  {
+    log.debug("syncSingleUser");
+
+    config.setDebug(true);
+    logbackConfig.getL9gLogger().setLevel(Level.TRACE);
+
+    try
+    {
+      if(fromSnapshot)
+      {
+        ldapHandler.openSnapshot();
+      }
+      syncEngine.syncUsers(List.of(singleUserId), 1);
     }
     catch(Throwable t)
     {
       log.error("SYNC ERRORR", t);
     }
+    finally
+    {
+      ldapHandler.closeSnapshot();
+    }
   }
 
   private int deleteGroupCounter;
 
-  private int createGroupCounter;
-
 }
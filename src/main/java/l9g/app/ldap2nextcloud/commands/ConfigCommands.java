@@ -50,7 +50,7 @@ public class ConfigCommands
   {
     LOGGER.debug("showBuildProperties");
     final StringBuilder infos = new StringBuilder();
-    final ArrayList<String> keys = new ArrayList();
+    final ArrayList<String> keys = new ArrayList<>();
 
     buildProperties.forEach(entry -> keys.add(entry.getKey()));
     Collections.sort(keys);
@@ -15,9 +15,14 @@
  */
 package l9g.app.ldap2nextcloud.commands;
 
+import java.util.Date;
 import java.util.List;
 import l9g.app.ldap2nextcloud.client.NextcloudClient;
+import l9g.app.ldap2nextcloud.client.OcsRateLimiter;
 import l9g.app.ldap2nextcloud.handler.KeyValueStoreHandler;
+import l9g.app.ldap2nextcloud.handler.LdapHandler;
+import l9g.app.ldap2nextcloud.handler.NextcloudUserCacheHandler;
+import l9g.app.ldap2nextcloud.handler.SyncRetryQueueHandler;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.shell.command.annotation.Command;
@@ -38,6 +43,22 @@ public class MaintenanceCommands
 
   private final NextcloudClient nextcloudClient;
 
+  private final NextcloudUserCacheHandler userCacheHandler;
+
+  private final OcsRateLimiter ocsRateLimiter;
+
+  private final SyncRetryQueueHandler retryQueue;
+
+  private final LdapHandler ldapHandler;
+
+  @Command(description = "show the currently permitted OCS request rate")
+  public void showOcsRate()
+  {
+    System.out.println(String.format("OCS rate: %.2f requests/s%s",
+      ocsRateLimiter.getRate(),
+      ocsRateLimiter.isCircuitOpen() ? ", circuit open" : ""));
+  }
+
   @Command(description = "show max threshold for users")
   public void showMaxThresholdUsers()
   {
@@ -124,4 +145,46 @@ public class MaintenanceCommands
     System.out.println("All entries wiped from store.");
   }
 
+  @Command(description = "show number of cached nextcloud users")
+  public void showUserCacheSize()
+  {
+    System.out.println("Cached users: " + userCacheHandler.size());
+  }
+
+  @Command(description = "wipe all entries from the nextcloud user cache")
+  public void wipeUserCache()
+  {
+    userCacheHandler.wipeAll();
+    System.out.println("All entries wiped from user cache.");
+  }
+
+  @Command(description = "list users quarantined after failed syncs")
+  public void listRetryQueue()
+  {
+    retryQueue.list().forEach(item -> System.out.println(String.format(
+      "%s %s attempts=%d next=%s error=%s", item.getUserId(),
+      item.getOperation(), item.getAttempts(),
+      item.getNextRetry() == Long.MAX_VALUE ? "never"
+      : new Date(item.getNextRetry()), item.getError())));
+    System.out.println("Count: " + retryQueue.size());
+  }
+
+  @Command(description = "remove all users from the retry queue")
+  public void clearRetryQueue()
+  {
+    retryQueue.wipeAll();
+    System.out.println("All entries removed from retry queue.");
+  }
+
+  @Command(description = "write all ldap users to the snapshot file")
+  public void writeLdapSnapshot(
+    @Option(longNames = "refresh", defaultValue = "false",
+            description = "read only the entries changed since the last snapshot") boolean refresh)
+    throws Throwable
+  {
+    int entryCount = refresh
+      ? ldapHandler.refreshSnapshot() : ldapHandler.writeSnapshot();
+    System.out.println("Snapshot entries: " + entryCount);
+  }
+
 }
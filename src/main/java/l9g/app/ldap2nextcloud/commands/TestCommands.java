@@ -18,19 +18,22 @@ package l9g.app.ldap2nextcloud.commands;
 import ch.qos.logback.classic.Level;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.unboundid.asn1.ASN1GeneralizedTime;
-import com.unboundid.ldap.sdk.Entry;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import l9g.app.ldap2nextcloud.config.LogbackConfig;
 import l9g.app.ldap2nextcloud.engine.JavaScriptEngine;
 import l9g.app.ldap2nextcloud.handler.LdapHandler;
+import l9g.app.ldap2nextcloud.model.CompactLdapEntry;
 import l9g.app.ldap2nextcloud.model.NextcloudCreateUser;
 import l9g.app.ldap2nextcloud.client.NextcloudClient;
 import l9g.app.ldap2nextcloud.config.AttributesMapService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.shell.command.annotation.Command;
+import org.springframework.shell.command.annotation.Option;
 
 /**
  *
@@ -50,10 +53,26 @@ public class TestCommands
   private final AttributesMapService attributesMapService;
 
   @Command(alias = "t1", description = "test javascipt file with ldap data")
-  public void testJavaScript()
+  public void testJavaScript(
+    @Option(longNames = "from-snapshot", defaultValue = "false",
+            description = "read the ldap users from the snapshot file") boolean fromSnapshot
+  )
     throws Throwable
   {
-    ldapHandler.readLdapEntries(new ASN1GeneralizedTime(0), true);
+    if(fromSnapshot)
+    {
+      ldapHandler.openSnapshot();
+    }
+
+    try
+    {
+      ldapHandler.readLdapEntries(new ASN1GeneralizedTime(0), true);
+    }
+    finally
+    {
+      ldapHandler.closeSnapshot();
+    }
+
     ObjectMapper objectMapper = new ObjectMapper();
 
     try(JavaScriptEngine js = new JavaScriptEngine())
@@ -65,7 +84,7 @@ public class TestCommands
 
       for(String login : loginList)
       {
-        Entry entry = ldapHandler.getLdapEntryMap().get(login);
+        CompactLdapEntry entry = ldapHandler.getLdapEntryMap().get(login);
         System.out.println("\n" + ( ++ counter) + " : " + entry);
         NextcloudCreateUser user = new NextcloudCreateUser();
         user.setUserId(login);
@@ -75,6 +94,110 @@ public class TestCommands
     }
   }
 
+  @Command(alias = "t6",
+           description = "record the ldap attributes read by the javascript file")
+  public void analyzeLdapAttributes(
+    @Option(longNames = "sample", defaultValue = "1000",
+            description = "number of users to map, 0 for all") int sample,
+    @Option(longNames = "write", defaultValue = "false",
+            description = "write the attributes read for ldap.user.observed-attributes") boolean write,
+    @Option(longNames = "from-snapshot", defaultValue = "false",
+            description = "read the ldap users from the snapshot file") boolean fromSnapshot
+  )
+    throws Throwable
+  {
+    if(fromSnapshot)
+    {
+      ldapHandler.openSnapshot();
+    }
+
+    try
+    {
+      ldapHandler.readLdapEntries(new ASN1GeneralizedTime(0), true);
+    }
+    finally
+    {
+      ldapHandler.closeSnapshot();
+    }
+
+    Set<String> readAttributeNames = new TreeSet<>();
+    int counter = 0;
+    int failed = 0;
+
+    try(JavaScriptEngine js = new JavaScriptEngine())
+    {
+      for(CompactLdapEntry entry : ldapHandler.getLdapEntryMap().values())
+      {
+        if(sample > 0 && counter >= sample)
+        {
+          break;
+        }
+
+        counter ++;
+        CompactLdapEntry recordingEntry =
+          entry.recordingReads(readAttributeNames);
+
+        // both modes, the script may read other attributes for new users
+        for(String mode : new String[]
+        {
+          "create", "update"
+        })
+        {
+          NextcloudCreateUser user = new NextcloudCreateUser();
+          user.setUserId(entry.getAttributeValue(ldapHandler.getLdapUserId()));
+          user.setGroups(new ArrayList<>());
+
+          try
+          {
+            js.getValue().executeVoid(mode, user, recordingEntry);
+          }
+          catch(RuntimeException e)
+          {
+            log.debug("{} {} failed", mode, entry.getDN(), e);
+            failed ++;
+          }
+        }
+      }
+    }
+
+    Set<String> configured = new TreeSet<>();
+    ldapHandler.getConfiguredAttributeNames().forEach(
+      name -> configured.add(name.toLowerCase()));
+
+    Set<String> unused = new TreeSet<>(configured);
+    unused.removeAll(readAttributeNames);
+    unused.remove(ldapHandler.getLdapUserId().toLowerCase());
+
+    Set<String> missing = new TreeSet<>();
+    Set<String> denied = new TreeSet<>();
+
+    for(String name : readAttributeNames)
+    {
+      if(ldapHandler.isDeniedAttribute(name))
+      {
+        denied.add(name);
+      }
+      else if( ! configured.contains(name))
+      {
+        missing.add(name);
+      }
+    }
+
+    System.out.println("users mapped          : " + counter
+      + (failed > 0 ? " (" + failed + " script call(s) failed)" : ""));
+    System.out.println("read by the script    : " + readAttributeNames);
+    System.out.println("configured, not read  : " + unused);
+    System.out.println("read, not configured  : " + missing);
+    System.out.println("read, but denied      : " + denied);
+
+    if(write)
+    {
+      System.out.println("written to "
+        + ldapHandler.writeObservedAttributeNames(readAttributeNames)
+          .getAbsolutePath());
+    }
+  }
+
   @Command(alias = "t2", description = "list all user ids")
   public void testListAllUserIds()
     throws Throwable
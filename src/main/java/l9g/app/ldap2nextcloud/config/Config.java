@@ -38,4 +38,7 @@ public class Config
 
   @Setter
   private boolean debug;
+
+  @Setter
+  private boolean refreshUserCache;
 }
@@ -19,6 +19,7 @@ import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.boolex.OnMarkerEvaluator;
 import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
 import ch.qos.logback.classic.net.SMTPAppender;
+import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.spi.CyclicBufferTracker;
 import jakarta.annotation.PostConstruct;
 import l9g.app.ldap2nextcloud.crypto.EncryptedValue;
@@ -116,7 +117,8 @@ public class LogbackConfig
   {
     SMTPAppender appender = new SMTPAppender();
 
-    CyclicBufferTracker bufferTracker = new CyclicBufferTracker();
+    CyclicBufferTracker<ILoggingEvent> bufferTracker =
+      new CyclicBufferTracker<>();
     bufferTracker.setBufferSize(2);
 
     appender.setContext(loggerContext);
@@ -43,7 +43,12 @@ public class JavaScriptEngine implements Closeable
 
   public JavaScriptEngine() throws IOException
   {
-    LOGGER.debug("JavaScriptEngine()");
+    this(new File(SCRIPT_FILENAME));
+  }
+
+  public JavaScriptEngine(File scriptFile) throws IOException
+  {
+    LOGGER.debug("JavaScriptEngine({})", scriptFile);
 
     context = Context.newBuilder(SCRIPT_TYPE)
       .allowHostAccess(HostAccess.ALL)
@@ -52,7 +57,7 @@ public class JavaScriptEngine implements Closeable
       .build();
 
     value = context.eval(Source.newBuilder(
-      SCRIPT_TYPE, new File(SCRIPT_FILENAME)).build());
+      SCRIPT_TYPE, scriptFile).build());
   }
 
   @Override
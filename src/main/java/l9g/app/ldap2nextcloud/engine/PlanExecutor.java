@@ -0,0 +1,266 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import l9g.app.ldap2nextcloud.config.Config;
+import l9g.app.ldap2nextcloud.handler.KeyValueStoreHandler;
+import l9g.app.ldap2nextcloud.handler.NextcloudHandler;
+import l9g.app.ldap2nextcloud.model.PlanOperation;
+import l9g.app.ldap2nextcloud.util.KeyValueStore;
+import l9g.app.ldap2nextcloud.util.PlanFile;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Applies a sync plan written by {@code sync --plan-out}.
+ * <p>
+ * Operations are executed in three phases: group creation, user operations
+ * and user deletion. Within a phase operations run concurrently, the
+ * operations of a single user keep their order. The status of every
+ * operation is stored in the {@code planStatus} map of the key-value store,
+ * applying the same plan again skips all operations already done.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class PlanExecutor
+{
+  private final static String PLAN_ID = "planId";
+
+  private final static String STATUS_DONE = "DONE";
+
+  private final Config config;
+
+  private final NextcloudHandler nextcloudHandler;
+
+  private final KeyValueStoreHandler keyValueStoreHandler;
+
+  private final SyncEngine syncEngine;
+
+  /**
+   * Applies all pending operations of a plan. If every operation succeeded
+   * the sync state reached by the planning run, its modify timestamp
+   * high-water marks and changelog change number, becomes the last sync
+   * state.
+   *
+   * @param file the plan file
+   * @param concurrency number of concurrent operations, {@code <= 0} uses
+   * {@code sync.worker-threads}
+   *
+   * @return the number of failed operations
+   *
+   * @throws Throwable if the plan can not be read
+   */
+  public int apply(File file, int concurrency)
+    throws Throwable
+  {
+    List<PlanOperation> operations = PlanFile.read(file);
+    log.info("applying {} operation(s) from {}", operations.size(),
+      file.getAbsolutePath());
+
+    KeyValueStore<String> statusMap = keyValueStoreHandler.openMap("planStatus");
+    String planId = file.getCanonicalPath() + ":" + file.lastModified()
+      + ":" + file.length();
+
+    if( ! planId.equals(statusMap.get(PLAN_ID)))
+    {
+      statusMap.wipeAll();
+      statusMap.put(PLAN_ID, planId);
+    }
+
+    PlanOperation syncState = null;
+    int stateOperations = 0;
+    List<Integer> groupOperations = new ArrayList<>();
+    Map<String, List<Integer>> userOperations = new LinkedHashMap<>();
+    List<Integer> deleteOperations = new ArrayList<>();
+
+    for(int i = 0; i < operations.size(); i ++)
+    {
+      PlanOperation operation = operations.get(i);
+      switch(operation.getType())
+      {
+        case TIMESTAMP ->
+          stateOperations ++;
+        case SYNC_STATE ->
+        {
+          syncState = operation;
+          stateOperations ++;
+        }
+        case CREATE_GROUP ->
+          groupOperations.add(i);
+        case DELETE_USER ->
+          deleteOperations.add(i);
+        default ->
+          userOperations.computeIfAbsent(
+            operation.getUserId(), u -> new ArrayList<>()).add(i);
+      }
+    }
+
+    nextcloudHandler.readNextcloudGroups();
+
+    ApplyStatus status = new ApplyStatus(operations, statusMap);
+
+    try(SyncWorkerPool workerPool = new SyncWorkerPool(
+      syncEngine.workerThreadCount(concurrency), false))
+    {
+      log.info("creating {} group(s)", groupOperations.size());
+      for(int index : groupOperations)
+      {
+        workerPool.submit(js -> status.execute(index));
+      }
+      workerPool.await();
+
+      log.info("updating {} user(s)", userOperations.size());
+      for(List<Integer> indexes : userOperations.values())
+      {
+        workerPool.submit(js ->
+        {
+          for(int index : indexes)
+          {
+            if( ! status.execute(index))
+            {
+              break; // keep the order of this user's operations
+            }
+          }
+        });
+      }
+      workerPool.await();
+
+      log.info("deleting {} user(s)", deleteOperations.size());
+      for(int index : deleteOperations)
+      {
+        workerPool.submit(js -> status.execute(index));
+      }
+      workerPool.await();
+    }
+
+    statusMap.commit();
+
+    int pending = operations.size() - status.done.get() - status.skipped.get()
+      - status.failed.get() - stateOperations;
+
+    log.info("apply plan done\nSummary:"
+      + "\n  {} operation(s) done"
+      + "\n  {} operation(s) already done"
+      + "\n  {} operation(s) failed"
+      + "\n  {} operation(s) pending",
+      status.done, status.skipped, status.failed, pending);
+
+    if(status.failed.get() == 0 && pending == 0 && ! config.isDryRun())
+    {
+      if(syncState != null)
+      {
+        syncEngine.writeSyncState(syncState);
+      }
+      else
+      {
+        log.warn("plan holds no sync state, last sync state not updated");
+      }
+    }
+
+    return status.failed.get();
+  }
+
+  private class ApplyStatus
+  {
+    ApplyStatus(List<PlanOperation> operations,
+      KeyValueStore<String> statusMap)
+    {
+      this.operations = operations;
+      this.statusMap = statusMap;
+    }
+
+    /**
+     * Executes a single operation unless it is already done.
+     *
+     * @return {@code true} if the operation is done
+     */
+    boolean execute(int index)
+    {
+      String key = Integer.toString(index);
+
+      if(STATUS_DONE.equals(statusMap.get(key)))
+      {
+        skipped.incrementAndGet();
+        return true;
+      }
+
+      PlanOperation operation = operations.get(index);
+      log.debug("{} : {}", index, operation);
+
+      try
+      {
+        switch(operation.getType())
+        {
+          case CREATE_GROUP ->
+            nextcloudHandler.createGroupIfAbsent(
+              operation.getGroupId(), operation.getValue());
+          case CREATE_USER ->
+            nextcloudHandler.createUser(operation.getUser());
+          case UPDATE_USER ->
+            nextcloudHandler.updateUser(operation.getUserId(),
+              operation.getKey(), operation.getValue());
+          case ADD_GROUP ->
+            nextcloudHandler.addUserToGroup(
+              operation.getUserId(), operation.getGroupId());
+          case REMOVE_GROUP ->
+            nextcloudHandler.removeUserFromGroup(
+              operation.getUserId(), operation.getGroupId());
+          case DELETE_USER ->
+            nextcloudHandler.deleteUser(operation.getUserId());
+          default ->
+            throw new IllegalArgumentException(
+              "unexpected operation " + operation.getType());
+        }
+
+        if( ! config.isDryRun())
+        {
+          statusMap.put(key, STATUS_DONE);
+        }
+        done.incrementAndGet();
+        return true;
+      }
+      catch(Throwable t)
+      {
+        log.error("operation {} failed: {}", index, t.getMessage());
+        statusMap.put(key, "FAILED: " + t.getMessage());
+        failed.incrementAndGet();
+        return false;
+      }
+    }
+
+    private final List<PlanOperation> operations;
+
+    private final KeyValueStore<String> statusMap;
+
+    private final AtomicInteger done = new AtomicInteger();
+
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import jakarta.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs incremental syncs on a fixed interval inside a long running process.
+ * <p>
+ * The worker pool with its script engines, the pooled LDAP connections, the
+ * HTTP client and the Nextcloud user and group ids are kept between cycles. The
+ * id sets are maintained by the writes of each cycle and are listed again,
+ * together with a delete detection, every {@code daemon.full-refresh-cycles}
+ * cycles.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class SyncDaemon
+{
+  private final SyncEngine syncEngine;
+
+  @Value("${daemon.interval-seconds:300}")
+  private int defaultIntervalSeconds;
+
+  @Value("${daemon.full-refresh-cycles:12}")
+  private int defaultFullRefreshCycles;
+
+  /**
+   * Runs the daemon until the process is terminated.
+   *
+   * @param intervalSeconds delay between the end of a cycle and the start of
+   * the next one, {@code <= 0} uses {@code daemon.interval-seconds}
+   * @param fullRefreshCycles list the Nextcloud ids and detect deleted users
+   * every n cycles, {@code <= 0} uses {@code daemon.full-refresh-cycles}
+   * @param workerThreads number of concurrent workers, {@code <= 0} uses the
+   * configured default
+   *
+   * @throws Throwable if the worker pool can not be created
+   */
+  public void run(int intervalSeconds, int fullRefreshCycles, int workerThreads)
+    throws Throwable
+  {
+    int interval = intervalSeconds > 0
+      ? intervalSeconds : defaultIntervalSeconds;
+    int refreshCycles = Math.max(1, fullRefreshCycles > 0
+      ? fullRefreshCycles : defaultFullRefreshCycles);
+
+    log.info("starting sync daemon, interval {}s, full refresh every {} cycle(s)",
+      interval, refreshCycles);
+
+    workerPool = syncEngine.createWorkerPool(workerThreads);
+    ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform().name("sync-daemon").factory());
+    scheduler = executor;
+
+    executor.scheduleWithFixedDelay(
+      () -> cycle(refreshCycles), 0, interval, TimeUnit.SECONDS);
+
+    try
+    {
+      while( ! executor.awaitTermination(1, TimeUnit.DAYS))
+      {
+        log.debug("sync daemon still running");
+      }
+    }
+    finally
+    {
+      stop();
+    }
+  }
+
+  private void cycle(int refreshCycles)
+  {
+    boolean refresh = cycleCounter % refreshCycles == 0;
+    cycleCounter ++;
+
+    log.info("sync daemon cycle {}{}", cycleCounter,
+      refresh ? ", full refresh" : "");
+
+    SyncOptions options = new SyncOptions();
+    options.setWorkerPool(workerPool);
+    options.setKeepState( ! refresh);
+    // continue a cycle that failed half way
+    options.setResume(true);
+
+    try
+    {
+      syncEngine.sync(options);
+    }
+    catch(Throwable t)
+    {
+      log.error("sync daemon cycle " + cycleCounter + " failed", t);
+      // the kept ids may no longer be accurate
+      cycleCounter = 0;
+    }
+  }
+
+  @PreDestroy
+  public synchronized void stop()
+  {
+    if(scheduler != null)
+    {
+      log.info("stopping sync daemon");
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+
+    if(workerPool != null)
+    {
+      workerPool.close();
+      workerPool = null;
+    }
+  }
+
+  private volatile ScheduledExecutorService scheduler;
+
+  private volatile SyncWorkerPool workerPool;
+
+  private int cycleCounter;
+
+}
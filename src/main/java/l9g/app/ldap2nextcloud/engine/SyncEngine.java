@@ -0,0 +1,1253 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import l9g.app.ldap2nextcloud.client.OcsRateLimiter;
+import l9g.app.ldap2nextcloud.config.AttributesMapService;
+import l9g.app.ldap2nextcloud.config.Config;
+import l9g.app.ldap2nextcloud.handler.LdapHandler;
+import l9g.app.ldap2nextcloud.handler.NextcloudHandler;
+import l9g.app.ldap2nextcloud.handler.NextcloudUserCacheHandler;
+import l9g.app.ldap2nextcloud.handler.SyncCheckpointHandler;
+import l9g.app.ldap2nextcloud.handler.SyncRetryQueueHandler;
+import l9g.app.ldap2nextcloud.model.CompactLdapEntry;
+import l9g.app.ldap2nextcloud.model.NextcloudCreateUser;
+import l9g.app.ldap2nextcloud.model.NextcloudUpdateUser;
+import l9g.app.ldap2nextcloud.model.PlanOperation;
+import l9g.app.ldap2nextcloud.model.RetryItem;
+import l9g.app.ldap2nextcloud.model.SyncScope;
+import l9g.app.ldap2nextcloud.util.HighWaterMarks;
+import l9g.app.ldap2nextcloud.util.PlanFile;
+import l9g.app.ldap2nextcloud.util.SortedIdSet;
+import l9g.app.ldap2nextcloud.util.TimestampUtil;
+import l9g.app.ldap2nextcloud.util.UserIdNormalizer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Syncs LDAP entries to Nextcloud, handling users concurrently on a bounded
+ * {@link SyncWorkerPool}.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class SyncEngine
+{
+  private final Config config;
+
+  private final LdapHandler ldapHandler;
+
+  private final NextcloudHandler nextcloudHandler;
+
+  private final AttributesMapService attributesMapService;
+
+  private final NextcloudUserCacheHandler userCacheHandler;
+
+  private final SyncCheckpointHandler checkpointHandler;
+
+  private final OcsRateLimiter ocsRateLimiter;
+
+  private final SyncRetryQueueHandler retryQueue;
+
+  private final UserIdNormalizer userIdNormalizer;
+
+  @Value("${sync.protected-users}")
+  private List<String> protectedUsers;
+
+  @Value("${sync.worker-threads:1}")
+  private int defaultWorkerThreads;
+
+  @Value("${sync.streaming:false}")
+  private boolean defaultStreaming;
+
+  @Value("${sync.stream-queue-pages:4}")
+  private int streamQueuePages;
+
+  @Value("${sync.error-budget.max-failures:100}")
+  private int maxFailures;
+
+  @Value("${sync.error-budget.max-consecutive-failures:10}")
+  private int maxConsecutiveFailures;
+
+  @Value("${sync.delete-limit.share:0.1}")
+  private double deleteLimitShare;
+
+  @Value("${sync.delete-limit.min-users:10}")
+  private int deleteLimitMinUsers;
+
+  @Value("${ldap.changelog.full-scan-interval-hours:24}")
+  private int fullScanIntervalHours;
+
+  /**
+   * Runs a complete sync: deletes users no longer found in LDAP and creates
+   * or updates all users modified since the last sync.
+   * <p>
+   * An incremental sync reads the user ids first and the modified entries
+   * afterwards. A full sync reads the directory only once and detects deleted
+   * users after all entries have been processed. With
+   * {@code ldap.changelog.enabled} an incremental sync only checks the users
+   * changed since the last run, and scans all user ids every
+   * {@code ldap.changelog.full-scan-interval-hours} only.
+   * <p>
+   * Progress is recorded in a checkpoint. A failed run can be continued with
+   * {@link SyncOptions#isResume()}, skipping all users already processed.
+   * <p>
+   * If {@link SyncOptions#getPlanOut()} is set, no changes are written to
+   * Nextcloud. All write operations are recorded to the plan file instead.
+   *
+   * @param options the options of this run
+   *
+   * @return the statistics of this run
+   *
+   * @throws Throwable on any LDAP, Nextcloud or script failure
+   */
+  public SyncStatistics sync(SyncOptions options)
+    throws Throwable
+  {
+    if(options.getPlanOut() == null || options.getPlanOut().isBlank())
+    {
+      return sync(options, null);
+    }
+
+    try(PlanFile planFile = new PlanFile(new File(options.getPlanOut())))
+    {
+      log.info("writing sync plan to {}", planFile.getFile().getAbsolutePath());
+      nextcloudHandler.setPlanFile(planFile);
+      SyncStatistics statistics = sync(options, planFile);
+      log.info("sync plan with {} operation(s) written to {}",
+        planFile.getOperationCount(), planFile.getFile().getAbsolutePath());
+      return statistics;
+    }
+    finally
+    {
+      nextcloudHandler.setPlanFile(null);
+    }
+  }
+
+  private SyncStatistics sync(SyncOptions options, PlanFile planFile)
+    throws Throwable
+  {
+    SyncStatistics statistics = new SyncStatistics();
+    SyncScope scope = options.getScope();
+
+    if( ! scope.isAll())
+    {
+      log.info("scoped sync, fields {}, groups {}; users are neither created "
+        + "nor deleted", scope.getFields(), scope.isGroups());
+    }
+
+    TimestampUtil timestampUtil = new TimestampUtil("nextcloud-users");
+
+    boolean fullSync = options.isFullSync();
+    HighWaterMarks marks = fullSync
+      ? HighWaterMarks.of(new ASN1GeneralizedTime(0l)) // unix time 0
+      : timestampUtil.getLastSyncMarks();
+
+    ///////////////////////////////////////////////////////////////////////////
+    // CHECKPOINT
+    boolean checkpointing =
+      ! config.isDryRun() && planFile == null && scope.isAll();
+    boolean resumed = false;
+
+    if(checkpointing && checkpointHandler.exists())
+    {
+      if(options.isResume())
+      {
+        fullSync = checkpointHandler.isFullSync();
+        marks = checkpointHandler.getLowerBounds();
+        timestampUtil.setCurrentTimestamp(checkpointHandler.getStartTimestamp());
+        resumed = true;
+        log.info("resuming {} sync started at {}, {} user(s) already processed",
+          fullSync ? "full" : "incremental",
+          timestampUtil.getCurrentTimestamp().getStringRepresentation(),
+          checkpointHandler.getProcessedUsersCount());
+      }
+      else if(options.isRestart())
+      {
+        log.info("discarding checkpoint of unfinished sync started at {}",
+          checkpointHandler.getStartTimestamp().getStringRepresentation());
+      }
+      else
+      {
+        log.warn("discarding checkpoint of unfinished sync started at {}, "
+          + "use --resume to continue it",
+          checkpointHandler.getStartTimestamp().getStringRepresentation());
+      }
+    }
+
+    if(checkpointing && ! resumed)
+    {
+      checkpointHandler.start(
+        timestampUtil.getCurrentTimestamp(), marks, fullSync);
+    }
+
+    boolean detectDeletes = scope.isAll() && ! options.isKeepState();
+    boolean reconcileGroups = options.isReconcileGroups();
+
+    if(reconcileGroups && ( ! fullSync || ! scope.isAll()
+      || options.isStreaming() || defaultStreaming))
+    {
+      log.warn("group side reconciliation needs a full, unscoped and non "
+        + "streaming sync, comparing the groups of every user instead");
+      reconcileGroups = false;
+    }
+
+    if(options.isKeepState())
+    {
+      log.info("keeping {} nextcloud users and {} groups of the previous run",
+        nextcloudHandler.getNextcloudUserIds().size(),
+        nextcloudHandler.getNextcloudGroupIds().size());
+    }
+    else
+    {
+      nextcloudHandler.readNextcloudGroups();
+      nextcloudHandler.readNextcloudUsers();
+    }
+
+    LdapHandler.ChangelogRange changelogRange = detectDeletes
+      ? readChangelogRange(timestampUtil) : null;
+    boolean fullScan = fullSync;
+
+    if( ! fullSync && detectDeletes)
+    {
+      if(isChangelogUsable(changelogRange, timestampUtil))
+      {
+        deleteChangedUsers(timestampUtil.getLastChangeNumber() + 1,
+          changelogRange.last(), statistics);
+      }
+      else
+      {
+        // a full sync collects the user ids while reading all entries
+        log.info("reading all ldap user ids");
+        ldapHandler.readAllLdapEntryUIDs();
+        deleteUsers(statistics);
+        fullScan = true;
+      }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    log.info("looking for users to update or create since last sync ({})",
+      marks.getMinimumLowerBound().getStringRepresentation());
+    log.debug("high-water marks {}", marks);
+
+    SyncWorkerPool workerPool = options.getWorkerPool() != null
+      ? options.getWorkerPool() : createWorkerPool(options.getWorkerThreads());
+
+    try
+    {
+      if(options.isStreaming() || defaultStreaming)
+      {
+        log.info("streaming ldap entries, queue capacity {} page(s)",
+          streamQueuePages);
+        AtomicInteger entryCounter = new AtomicInteger();
+
+        ldapHandler.streamLdapEntries(marks, streamQueuePages, entry ->
+        {
+          log.debug("{}", entryCounter.incrementAndGet());
+          submitEntry(workerPool, entry, scope, statistics, checkpointing);
+        });
+      }
+      else
+      {
+        ldapHandler.readLdapEntries(marks, true);
+
+        if(reconcileGroups || (scope.isGroups() && ! config.isDryRun()))
+        {
+          syncMaterializingGroups(workerPool,
+            ldapHandler.getLdapEntryMap().values(), scope, statistics,
+            checkpointing, reconcileGroups);
+        }
+        else
+        {
+          int noEntries = ldapHandler.getLdapEntryMap().size();
+          int entryCounter = 0;
+
+          for(CompactLdapEntry entry :
+            ldapHandler.getLdapEntryMap().values())
+          {
+            entryCounter ++;
+            log.debug("{}/{}", entryCounter, noEntries);
+            submitEntry(workerPool, entry, scope, statistics, checkpointing);
+          }
+        }
+      }
+
+      workerPool.await();
+
+      if(scope.isAll() && isWriting())
+      {
+        retryDueUsers(workerPool, statistics);
+      }
+    }
+    finally
+    {
+      if(workerPool == options.getWorkerPool())
+      {
+        workerPool.drain();
+      }
+      else
+      {
+        workerPool.close();
+      }
+    }
+
+    if(fullSync && detectDeletes)
+    {
+      deleteUsers(statistics);
+    }
+
+    userCacheHandler.commit();
+    retryQueue.commit();
+    statistics.logSummary(log);
+    log.info("{} user(s) in retry queue", retryQueue.size());
+    log.info("permitted ocs request rate {} requests/s",
+      String.format("%.2f", ocsRateLimiter.getRate()));
+
+    ///////////////////////////////////////////////////////////////////////////
+    HighWaterMarks nextMarks =
+      marks.next(timestampUtil.getCurrentTimestamp().getTime());
+
+    if(checkpointing)
+    {
+      writeSyncState(timestampUtil, nextMarks, detectDeletes && fullScan);
+      checkpointHandler.clear();
+    }
+    else if(planFile != null && scope.isAll())
+    {
+      PlanOperation operation =
+        new PlanOperation(PlanOperation.Type.SYNC_STATE, null);
+      operation.setValue(timestampUtil.getCurrentTimestamp().toString());
+      operation.setLowerBound(nextMarks.getLowerBound());
+      operation.setPartitionLowerBounds(nextMarks.getPartitionLowerBounds());
+      operation.setFullScan(detectDeletes && fullScan);
+
+      if(timestampUtil.getCurrentChangeNumber() >= 0)
+      {
+        operation.setChangeNumber(timestampUtil.getCurrentChangeNumber());
+      }
+
+      planFile.write(operation);
+    }
+
+    return statistics;
+  }
+
+  /**
+   * Makes the sync state recorded by a planning run the last sync state,
+   * like a completed sync does.
+   *
+   * @param state the {@code SYNC_STATE} operation of the plan
+   *
+   * @throws Exception if the state is invalid or can not be written
+   */
+  public void writeSyncState(PlanOperation state)
+    throws Exception
+  {
+    if(state.getValue() == null || state.getLowerBound() == null)
+    {
+      throw new IllegalArgumentException("incomplete sync state " + state);
+    }
+
+    TimestampUtil timestampUtil = new TimestampUtil("nextcloud-users");
+    timestampUtil.setCurrentTimestamp(
+      new ASN1GeneralizedTime(state.getValue()));
+    timestampUtil.setCurrentChangeNumber(
+      state.getChangeNumber() != null ? state.getChangeNumber() : -1);
+    writeSyncState(timestampUtil, new HighWaterMarks(state.getLowerBound(),
+      state.getPartitionLowerBounds() != null
+      ? state.getPartitionLowerBounds() : Map.of()),
+      Boolean.TRUE.equals(state.getFullScan()));
+  }
+
+  /**
+   * Stores the lower bounds of the next run, the changelog change number
+   * and, after a scan of all user ids, the full scan timestamp.
+   */
+  private void writeSyncState(TimestampUtil timestampUtil,
+    HighWaterMarks nextMarks, boolean fullScan)
+    throws IOException
+  {
+    timestampUtil.setCurrentMarks(nextMarks);
+    timestampUtil.writeCurrentTimestamp();
+    timestampUtil.writeCurrentChangeNumber();
+
+    if(fullScan)
+    {
+      timestampUtil.writeFullScanTimestamp();
+    }
+  }
+
+  public SyncWorkerPool createWorkerPool(int workerThreads)
+    throws Throwable
+  {
+    return new SyncWorkerPool(workerThreadCount(workerThreads));
+  }
+
+  public int workerThreadCount(int workerThreads)
+  {
+    int threads = workerThreads > 0 ? workerThreads : defaultWorkerThreads;
+    log.info("using {} sync worker thread(s)", threads);
+    return threads;
+  }
+
+  private void submitEntry(SyncWorkerPool workerPool, CompactLdapEntry entry,
+    SyncScope scope, SyncStatistics statistics, boolean checkpointing)
+    throws Throwable
+  {
+    String userId = entry.getAttributeValue(ldapHandler.getLdapUserId());
+
+    if(checkpointing && checkpointHandler.isProcessed(userId))
+    {
+      log.debug("already processed: {}", userId);
+      statistics.getSkippedUsers().incrementAndGet();
+      return;
+    }
+
+    workerPool.submit(js ->
+    {
+      quarantined(userId, RetryItem.Operation.SYNC, statistics,
+        () -> syncEntry(js, entry,
+          nextcloudHandler.getNextcloudUserIds().contains(userId),
+          null, scope, statistics));
+      if(checkpointing)
+      {
+        checkpointHandler.markProcessed(userId);
+      }
+    });
+  }
+
+  /**
+   * Syncs the entries in two passes. The first maps all users concurrently
+   * and collects the groups they require; unknown groups abort the run
+   * before anything is written and missing groups are created concurrently.
+   * The second pass writes the users, their group check is then a mere set
+   * lookup.
+   * <p>
+   * With {@code reconcileGroups} the updates leave the group memberships
+   * alone, they are reconciled per group afterwards. Users already processed
+   * by a resumed run are then mapped as well, but not written again.
+   */
+  private void syncMaterializingGroups(SyncWorkerPool workerPool,
+    Collection<CompactLdapEntry> entries, SyncScope scope,
+    SyncStatistics statistics, boolean checkpointing, boolean reconcileGroups)
+    throws Throwable
+  {
+    Map<String, MappedUser> mappedUsers = new ConcurrentHashMap<>();
+    Set<String> processedUsers = new HashSet<>();
+    SyncScope writeScope = reconcileGroups ? scope.withoutGroups() : scope;
+
+    log.info("mapping {} ldap entries", entries.size());
+
+    for(CompactLdapEntry entry : entries)
+    {
+      String userId = entry.getAttributeValue(ldapHandler.getLdapUserId());
+
+      if(checkpointing && checkpointHandler.isProcessed(userId))
+      {
+        log.debug("already processed: {}", userId);
+        statistics.getSkippedUsers().incrementAndGet();
+
+        if( ! reconcileGroups)
+        {
+          continue;
+        }
+
+        processedUsers.add(userId);
+      }
+
+      workerPool.submit(js ->
+      {
+        boolean exists =
+          nextcloudHandler.getNextcloudUserIds().contains(userId);
+        boolean mapped = attempt(userId, RetryItem.Operation.SYNC, statistics,
+          () ->
+          {
+            MappedUser mappedUser =
+              mapEntry(js, entry, exists, scope, statistics);
+            if(mappedUser != null)
+            {
+              mappedUsers.put(userId, mappedUser);
+            }
+          });
+        // a failed user is in the retry queue and done for this run
+        if(checkpointing && ! mapped)
+        {
+          checkpointHandler.markProcessed(userId);
+        }
+      });
+    }
+
+    workerPool.await();
+
+    if( ! config.isDryRun())
+    {
+      materializeGroups(workerPool, mappedUsers.values(), statistics);
+    }
+
+    log.info("writing {} user(s)", mappedUsers.size() - processedUsers.size());
+
+    for(Map.Entry<String, MappedUser> mappedEntry : mappedUsers.entrySet())
+    {
+      String userId = mappedEntry.getKey();
+      MappedUser mappedUser = mappedEntry.getValue();
+
+      if(processedUsers.contains(userId))
+      {
+        continue;
+      }
+
+      workerPool.submit(js ->
+      {
+        quarantined(userId, RetryItem.Operation.SYNC, statistics,
+          () -> writeUser(mappedUser, null, writeScope, statistics));
+        if(checkpointing)
+        {
+          checkpointHandler.markProcessed(userId);
+        }
+      });
+    }
+
+    if(reconcileGroups)
+    {
+      workerPool.await();
+      reconcileGroups(workerPool, mappedUsers, statistics);
+    }
+  }
+
+  /**
+   * Reconciles the members of every mapped group. The target members are
+   * taken from the mapped users; the current members are read with one
+   * request per group. Only mapped users are added or removed, members
+   * unknown to LDAP are left alone.
+   */
+  private void reconcileGroups(SyncWorkerPool workerPool,
+    Map<String, MappedUser> mappedUsers, SyncStatistics statistics)
+    throws Throwable
+  {
+    Map<String, Set<String>> targetMembers = new HashMap<>();
+
+    attributesMapService.getGroups().keySet()
+      .forEach(group -> targetMembers.put(group, new HashSet<>()));
+
+    mappedUsers.forEach((userId, mappedUser) ->
+      mappedUser.user().getGroups().forEach(group ->
+      {
+        Set<String> members = targetMembers.get(group);
+        if(members != null)
+        {
+          members.add(userId);
+        }
+      }));
+
+    log.info("reconciling the members of {} group(s)", targetMembers.size());
+
+    for(Map.Entry<String, Set<String>> target : targetMembers.entrySet())
+    {
+      String group = target.getKey();
+
+      if( ! nextcloudHandler.getNextcloudGroupIds().contains(group))
+      {
+        log.debug("group {} not in nextcloud, not reconciled", group);
+        continue;
+      }
+
+      workerPool.submit(js -> reconcileGroup(group, target.getValue(),
+        mappedUsers.keySet(), statistics));
+    }
+
+    workerPool.await();
+  }
+
+  private void reconcileGroup(String group, Set<String> targetMembers,
+    Set<String> mappedUserIds, SyncStatistics statistics)
+  {
+    Set<String> members =
+      new HashSet<>(nextcloudHandler.readGroupMembers(group));
+
+    Set<String> toAdd = new TreeSet<>(targetMembers);
+    toAdd.removeAll(members);
+    // users whose creation failed do not exist
+    toAdd.retainAll(nextcloudHandler.getNextcloudUserIds());
+
+    Set<String> toRemove = new TreeSet<>(members);
+    toRemove.retainAll(mappedUserIds);
+    toRemove.removeAll(targetMembers);
+
+    if(toAdd.isEmpty() && toRemove.isEmpty())
+    {
+      log.debug("UNCHANGED: group {}", group);
+      return;
+    }
+
+    log.info("RECONCILE: group {} +{} -{}", group, toAdd, toRemove);
+
+    AtomicInteger added = new AtomicInteger();
+    AtomicInteger removed = new AtomicInteger();
+
+    toRemove.forEach(userId ->
+    {
+      if(attempt(userId, RetryItem.Operation.SYNC, statistics,
+        () -> nextcloudHandler.removeUserFromGroup(userId, group)))
+      {
+        removed.incrementAndGet();
+      }
+    });
+
+    toAdd.forEach(userId ->
+    {
+      if(attempt(userId, RetryItem.Operation.SYNC, statistics,
+        () -> nextcloudHandler.addUserToGroup(userId, group)))
+      {
+        added.incrementAndGet();
+      }
+    });
+
+    statistics.recordMembershipChanges(added.get(), removed.get());
+  }
+
+  /**
+   * Validates the union of all groups required by the mapped users and
+   * creates the missing ones concurrently. A failed creation is only logged,
+   * the writes of the affected users try again.
+   *
+   * @throws RuntimeException if a group is not in the group map
+   */
+  private void materializeGroups(SyncWorkerPool workerPool,
+    Collection<MappedUser> mappedUsers, SyncStatistics statistics)
+    throws Throwable
+  {
+    Set<String> requiredGroups = new TreeSet<>();
+    mappedUsers.forEach(
+      mappedUser -> requiredGroups.addAll(mappedUser.user().getGroups()));
+
+    Set<String> unknownGroups = new TreeSet<>(requiredGroups);
+    unknownGroups.removeAll(attributesMapService.getGroups().keySet());
+
+    if( ! unknownGroups.isEmpty())
+    {
+      log.error("ERROR: Groups {} not found in map!", unknownGroups);
+      throw new RuntimeException(
+        "ERROR: Groups not found in map! : " + unknownGroups);
+    }
+
+    requiredGroups.removeAll(nextcloudHandler.getNextcloudGroupIds());
+    log.info("creating {} missing group(s)", requiredGroups.size());
+
+    for(String group : requiredGroups)
+    {
+      workerPool.submit(js ->
+      {
+        try
+        {
+          createGroup(group, statistics);
+        }
+        catch(Throwable t)
+        {
+          log.error("creating group {} failed: {}", group, t.getMessage());
+        }
+      });
+    }
+
+    workerPool.await();
+  }
+
+  /**
+   * Syncs the given users only. Their LDAP entries are looked up with batched
+   * id filters and only these users are fetched from Nextcloud; neither the
+   * whole directory nor the list of all Nextcloud users and groups is read.
+   * Users not found in LDAP are reported, but never deleted.
+   *
+   * @param userIds the ids of the users to sync
+   * @param workerThreads number of concurrent workers, {@code <= 0} uses the
+   * configured default
+   *
+   * @return the statistics of this run
+   *
+   * @throws Throwable on any LDAP, Nextcloud or script failure
+   */
+  public SyncStatistics syncUsers(Collection<String> userIds, int workerThreads)
+    throws Throwable
+  {
+    SyncStatistics statistics = new SyncStatistics();
+    log.info("syncing {} user(s)", userIds.size());
+
+    nextcloudHandler.resetNextcloudGroups();
+
+    Set<String> foundUserIds;
+
+    try(SyncWorkerPool workerPool = createWorkerPool(workerThreads))
+    {
+      foundUserIds = ldapHandler.readLdapEntriesByUserIds(userIds,
+        entry -> workerPool.submit(js ->
+        {
+          String userId = entry.getAttributeValue(ldapHandler.getLdapUserId());
+          quarantined(userId, RetryItem.Operation.SYNC, statistics,
+            () -> syncLookedUpEntry(js, entry, statistics));
+        }));
+
+      workerPool.await();
+    }
+
+    for(String userId : userIds)
+    {
+      if( ! foundUserIds.contains(userIdNormalizer.apply(userId)))
+      {
+        log.warn("user {} not found in ldap", userId);
+      }
+    }
+
+    userCacheHandler.commit();
+    retryQueue.commit();
+    statistics.logSummary(log);
+    return statistics;
+  }
+
+  /**
+   * Retries all quarantined users whose next retry is due. Users still in
+   * LDAP are synced again, users gone from LDAP are deleted if their delete
+   * failed and dropped from the queue otherwise.
+   */
+  private void retryDueUsers(SyncWorkerPool workerPool,
+    SyncStatistics statistics)
+    throws Throwable
+  {
+    List<RetryItem> dueItems = retryQueue.due();
+
+    if(dueItems.isEmpty())
+    {
+      return;
+    }
+
+    log.info("retrying {} quarantined user(s)", dueItems.size());
+
+    Set<String> foundUserIds = ldapHandler.readLdapEntriesByUserIds(
+      dueItems.stream().map(RetryItem::getUserId).toList(),
+      entry -> workerPool.submit(js ->
+      {
+        String userId = entry.getAttributeValue(ldapHandler.getLdapUserId());
+        quarantined(userId, RetryItem.Operation.SYNC, statistics,
+          () -> syncLookedUpEntry(js, entry, statistics));
+      }));
+
+    workerPool.await();
+
+    for(RetryItem item : dueItems)
+    {
+      String userId = item.getUserId();
+
+      if(foundUserIds.contains(userIdNormalizer.apply(userId)))
+      {
+        continue;
+      }
+
+      if(item.getOperation() == RetryItem.Operation.DELETE
+        && nextcloudHandler.findUserById(userId) != null)
+      {
+        quarantined(userId, RetryItem.Operation.DELETE, statistics,
+          () -> deleteUser(userId, statistics));
+      }
+      else
+      {
+        log.info("quarantined user {} no longer in ldap, removed from "
+          + "retry queue", userId);
+        retryQueue.remove(userId);
+      }
+    }
+  }
+
+  private void syncLookedUpEntry(JavaScriptEngine js,
+    CompactLdapEntry entry, SyncStatistics statistics)
+    throws Throwable
+  {
+    String userId = entry.getAttributeValue(ldapHandler.getLdapUserId());
+    NextcloudUpdateUser nextcloudUser = nextcloudHandler.findUserById(userId);
+    syncEntry(js, entry, nextcloudUser != null, nextcloudUser,
+      SyncScope.ALL, statistics);
+  }
+
+  /**
+   * A Nextcloud operation on a single user.
+   */
+  @FunctionalInterface
+  private interface UserOperation
+  {
+    void run()
+      throws Throwable;
+
+  }
+
+  /**
+   * Runs an operation on a single user. A failure does not abort the run,
+   * the user is put into the retry queue instead. The run is only aborted
+   * if the failures exceed the error budget.
+   */
+  private void quarantined(String userId, RetryItem.Operation operation,
+    SyncStatistics statistics, UserOperation userOperation)
+  {
+    if(attempt(userId, operation, statistics, userOperation) && isWriting())
+    {
+      retryQueue.succeeded(userId);
+    }
+  }
+
+  /**
+   * Like {@link #quarantined}, but leaves a queued user in the retry queue
+   * on success. Used for steps that do not complete the user.
+   *
+   * @return {@code true} if the operation succeeded
+   */
+  private boolean attempt(String userId, RetryItem.Operation operation,
+    SyncStatistics statistics, UserOperation userOperation)
+  {
+    try
+    {
+      userOperation.run();
+      statistics.getConsecutiveFailures().set(0);
+      return true;
+    }
+    catch(Throwable t)
+    {
+      statistics.getFailedUsers().incrementAndGet();
+      int failures = statistics.getBudgetFailures().incrementAndGet();
+      int consecutiveFailures =
+        statistics.getConsecutiveFailures().incrementAndGet();
+
+      log.error("{} of user {} failed: {}", operation, userId, t.getMessage());
+      log.debug("failure", t);
+
+      if(isWriting())
+      {
+        RetryItem item = retryQueue.recordFailure(userId, operation, t);
+        log.info("user {} quarantined, attempt {}", userId, item.getAttempts());
+      }
+
+      if(failures > maxFailures || consecutiveFailures > maxConsecutiveFailures)
+      {
+        throw new RuntimeException("error budget exhausted, " + failures
+          + " failure(s), " + consecutiveFailures + " consecutive", t);
+      }
+
+      return false;
+    }
+  }
+
+  private boolean isWriting()
+  {
+    return ! config.isDryRun() && nextcloudHandler.getPlanFile() == null;
+  }
+
+  /**
+   * Applies a single change reported by a persistent search. Deleted entries
+   * delete the Nextcloud user, all other changes create or update it.
+   *
+   * @param js the script engine exclusively used by the calling thread
+   * @param changeType the type of the change
+   * @param entry the changed LDAP entry
+   * @param statistics the counters of the current run
+   *
+   * @throws Throwable on any Nextcloud or script failure
+   */
+  public void syncChange(JavaScriptEngine js,
+    PersistentSearchChangeType changeType, CompactLdapEntry entry,
+    SyncStatistics statistics)
+    throws Throwable
+  {
+    String userId = entry.getAttributeValue(ldapHandler.getLdapUserId());
+
+    if(userId == null)
+    {
+      log.warn("{} of {} without user id ignored", changeType, entry.getDN());
+      return;
+    }
+
+    if(changeType == PersistentSearchChangeType.DELETE)
+    {
+      if(nextcloudHandler.findUserById(userId) != null)
+      {
+        quarantined(userId, RetryItem.Operation.DELETE, statistics,
+          () -> deleteUser(userId, statistics));
+      }
+    }
+    else
+    {
+      quarantined(userId, RetryItem.Operation.SYNC, statistics,
+        () -> syncLookedUpEntry(js, entry, statistics));
+    }
+  }
+
+  /**
+   * Returns the key changes of an entry are serialized by, the normalized
+   * user id or the DN for entries without one.
+   *
+   * @param entry the changed entry
+   *
+   * @return the key
+   */
+  String changeKey(CompactLdapEntry entry)
+  {
+    String userId = entry.getAttributeValue(ldapHandler.getLdapUserId());
+    return userId != null ? userIdNormalizer.apply(userId) : entry.getDN();
+  }
+
+  /**
+   * Maps a single LDAP entry and creates or updates the Nextcloud user.
+   *
+   * @param js the script engine exclusively used by the calling thread
+   * @param entry the LDAP entry
+   * @param statistics the counters of the current run
+   *
+   * @throws Throwable on any Nextcloud or script failure
+   */
+  public void syncEntry(
+    JavaScriptEngine js, CompactLdapEntry entry, SyncStatistics statistics)
+    throws Throwable
+  {
+    String userId = entry.getAttributeValue(ldapHandler.getLdapUserId());
+    syncEntry(js, entry,
+      nextcloudHandler.getNextcloudUserIds().contains(userId), null,
+      SyncScope.ALL, statistics);
+  }
+
+  private void syncEntry(JavaScriptEngine js, CompactLdapEntry entry,
+    boolean exists, NextcloudUpdateUser nextcloudUser, SyncScope scope,
+    SyncStatistics statistics)
+    throws Throwable
+  {
+    MappedUser mappedUser = mapEntry(js, entry, exists, scope, statistics);
+
+    if(mappedUser != null)
+    {
+      writeUser(mappedUser, nextcloudUser, scope, statistics);
+    }
+  }
+
+  /**
+   * Runs the update or create script for an entry.
+   *
+   * @return the mapped user or {@code null} if the scope does not allow to
+   * create the missing user
+   */
+  private MappedUser mapEntry(JavaScriptEngine js, CompactLdapEntry entry,
+    boolean exists, SyncScope scope, SyncStatistics statistics)
+    throws Throwable
+  {
+    String userId = entry.getAttributeValue(ldapHandler.getLdapUserId());
+    ArrayList<String> groups = new ArrayList<>();
+    NextcloudCreateUser updateUser = new NextcloudCreateUser();
+    updateUser.setUserId(userId);
+    updateUser.setGroups(groups);
+
+    if(exists)
+    {
+      js.getValue().executeVoid("update", updateUser, entry);
+    }
+    else if( ! scope.isAll())
+    {
+      log.debug("scoped sync, not creating user {}", userId);
+      statistics.getSkippedUsers().incrementAndGet();
+      return null;
+    }
+    else
+    {
+      js.getValue().executeVoid("create", updateUser, entry);
+    }
+
+    return new MappedUser(updateUser, exists);
+  }
+
+  private void writeUser(MappedUser mappedUser,
+    NextcloudUpdateUser nextcloudUser, SyncScope scope,
+    SyncStatistics statistics)
+    throws Throwable
+  {
+    NextcloudCreateUser updateUser = mappedUser.user();
+
+    if(mappedUser.exists())
+    {
+      // UPDATE
+      if(scope.isGroups())
+      {
+        checkGroups(updateUser, statistics);
+      }
+      statistics.recordDiff(
+        nextcloudHandler.updateUser(updateUser, nextcloudUser, scope));
+      statistics.getUpdatedUsers().incrementAndGet();
+    }
+    else
+    {
+      // CREATE
+      checkGroups(updateUser, statistics);
+      nextcloudHandler.createUser(updateUser);
+      statistics.getCreatedUsers().incrementAndGet();
+    }
+  }
+
+  /**
+   * Deletes all Nextcloud users missing in LDAP. Both id sets are sorted by
+   * their normalized ids and compared with a single merge-join.
+   */
+  private void deleteUsers(SyncStatistics statistics)
+  {
+    log.info("looking for users to delete");
+
+    if( ! ldapHandler.isPartitionCoverageVerified())
+    {
+      log.error("the ldap partitions may miss users, not deleting any user");
+      return;
+    }
+
+    AtomicInteger missingUsers = new AtomicInteger();
+    List<String> users = new ArrayList<>();
+
+    try(SortedIdSet nextcloudUserIds = userIdNormalizer.sortedIdSetOf(
+      List.copyOf(nextcloudHandler.getNextcloudUserIds())))
+    {
+      SortedIdSet.mergeJoin(nextcloudUserIds, ldapHandler.getLdapUserIds(),
+        users :: add, user -> missingUsers.incrementAndGet());
+    }
+
+    log.info("{} ldap user(s) not in nextcloud", missingUsers.get());
+    deleteUsers(users, statistics);
+  }
+
+  /**
+   * Deletes the given users, unless they exceed the share
+   * {@code sync.delete-limit.share} of all Nextcloud users and
+   * {@code sync.delete-limit.min-users}. That many deletes rather point to
+   * an incomplete LDAP read than to real departures.
+   */
+  private void deleteUsers(List<String> users, SyncStatistics statistics)
+  {
+    int nextcloudUsers = nextcloudHandler.getNextcloudUserIds().size();
+    long limit = Math.max(deleteLimitMinUsers,
+      (long)(deleteLimitShare * nextcloudUsers));
+
+    if(users.size() > limit)
+    {
+      log.error("refusing to delete {} of {} nextcloud users, more than the "
+        + "limit of {} (sync.delete-limit)", users.size(), nextcloudUsers,
+        limit);
+      return;
+    }
+
+    for(String user : users)
+    {
+      quarantined(user, RetryItem.Operation.DELETE, statistics,
+        () -> deleteUser(user, statistics));
+    }
+  }
+
+  /**
+   * Reads the current changelog range and remembers its end as the
+   * high-water mark of this run. Taken before any user is read, so changes
+   * made during the run are checked again by the next one.
+   */
+  private LdapHandler.ChangelogRange readChangelogRange(
+    TimestampUtil timestampUtil)
+    throws Throwable
+  {
+    if( ! ldapHandler.isChangelogEnabled())
+    {
+      return null;
+    }
+
+    LdapHandler.ChangelogRange range = ldapHandler.readChangelogRange();
+
+    if(range == null)
+    {
+      log.warn("ldap server publishes no changelog");
+      return null;
+    }
+
+    log.debug("changelog range {} to {}", range.first(), range.last());
+    timestampUtil.setCurrentChangeNumber(range.last());
+    return range;
+  }
+
+  /**
+   * Decides whether deleted users can be detected from the changelog or all
+   * user ids have to be scanned.
+   */
+  private boolean isChangelogUsable(LdapHandler.ChangelogRange range,
+    TimestampUtil timestampUtil)
+  {
+    if(range == null)
+    {
+      return false;
+    }
+
+    long lastChangeNumber = timestampUtil.getLastChangeNumber();
+
+    if(lastChangeNumber < 0)
+    {
+      log.info("no changelog high-water mark yet, scanning all user ids");
+      return false;
+    }
+
+    if(lastChangeNumber > range.last())
+    {
+      log.warn("changelog reset, change number {} is beyond its end {}, "
+        + "scanning all user ids", lastChangeNumber, range.last());
+      return false;
+    }
+
+    if(range.first() > lastChangeNumber + 1 && range.last() > lastChangeNumber)
+    {
+      log.warn("changelog trimmed, changes {} to {} are gone, scanning all "
+        + "user ids", lastChangeNumber + 1, range.first() - 1);
+      return false;
+    }
+
+    long hoursSinceFullScan = TimeUnit.MILLISECONDS.toHours(
+      timestampUtil.getCurrentTimestamp().getTime()
+      - timestampUtil.getLastFullScanTimestamp().getTime());
+
+    if(hoursSinceFullScan >= fullScanIntervalHours)
+    {
+      log.info("last scan of all user ids {}h ago, scanning again",
+        hoursSinceFullScan);
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Deletes the Nextcloud users whose LDAP entries were deleted, renamed or
+   * modified according to the changelog and are no longer found with the
+   * configured filter. Costs a lookup per changed user instead of a scan of
+   * all user ids.
+   */
+  private void deleteChangedUsers(long fromChangeNumber, long toChangeNumber,
+    SyncStatistics statistics)
+    throws Throwable
+  {
+    log.info("looking for users to delete in changelog {} to {}",
+      fromChangeNumber, toChangeNumber);
+
+    if(fromChangeNumber > toChangeNumber)
+    {
+      return;
+    }
+
+    Set<String> changedUserIds =
+      ldapHandler.readChangedUserIds(fromChangeNumber, toChangeNumber);
+    List<String> candidates = new ArrayList<>();
+
+    for(String user : nextcloudHandler.getNextcloudUserIds())
+    {
+      if(changedUserIds.contains(userIdNormalizer.apply(user)))
+      {
+        candidates.add(user);
+      }
+    }
+
+    if(candidates.isEmpty())
+    {
+      return;
+    }
+
+    Set<String> foundUserIds =
+      ldapHandler.readLdapEntriesByUserIds(candidates, entry ->
+    {
+    });
+
+    List<String> users = new ArrayList<>();
+
+    for(String user : candidates)
+    {
+      if( ! foundUserIds.contains(userIdNormalizer.apply(user)))
+      {
+        users.add(user);
+      }
+    }
+
+    deleteUsers(users, statistics);
+  }
+
+  private void deleteUser(String user, SyncStatistics statistics)
+  {
+    if(protectedUsers.contains(user))
+    {
+      // IGNORE protected Users
+      log.warn("IGNORE DELETE PROTECTED USER: {}", user);
+      statistics.getIgnoredUsers().incrementAndGet();
+    }
+    else
+    {
+      // DELETE
+      nextcloudHandler.deleteUser(user);
+      statistics.getDeletedUsers().incrementAndGet();
+    }
+  }
+
+  private void checkGroups(NextcloudCreateUser user, SyncStatistics statistics)
+  {
+    if( ! config.isDryRun())
+    {
+      user.getGroups().forEach(group ->
+      {
+        if( ! attributesMapService.getGroups().containsKey(group))
+        {
+          log.error("ERROR: Group '{}' not found in map!", group);
+          throw new RuntimeException("ERROR: Group not found in map! : " + group);
+        }
+
+        if( ! nextcloudHandler.getNextcloudGroupIds().contains(group))
+        {
+          createGroup(group, statistics);
+        }
+      });
+    }
+  }
+
+  private void createGroup(String group, SyncStatistics statistics)
+  {
+    String displayName = attributesMapService.getGroups().get(group);
+    if(nextcloudHandler.createGroupIfAbsent(group, displayName))
+    {
+      log.info("Created group {}, {}", group, displayName);
+      statistics.getCreatedGroups().incrementAndGet();
+    }
+  }
+
+  /**
+   * A user mapped by the scripts, waiting to be written.
+   */
+  private record MappedUser(NextcloudCreateUser user, boolean exists)
+  {
+  }
+
+}
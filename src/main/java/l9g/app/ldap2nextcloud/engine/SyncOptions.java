@@ -0,0 +1,85 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import l9g.app.ldap2nextcloud.model.SyncScope;
+import lombok.Data;
+
+/**
+ * Options of a single sync run.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Data
+public class SyncOptions
+{
+  /**
+   * Ignore the last sync timestamp and process all LDAP entries.
+   */
+  private boolean fullSync;
+
+  /**
+   * Number of concurrent workers, {@code <= 0} uses the configured default.
+   */
+  private int workerThreads;
+
+  /**
+   * Hand LDAP result pages to the workers as they arrive instead of reading
+   * the whole directory first.
+   */
+  private boolean streaming;
+
+  /**
+   * Continue an unfinished run from its checkpoint.
+   */
+  private boolean resume;
+
+  /**
+   * Discard the checkpoint of an unfinished run.
+   */
+  private boolean restart;
+
+  /**
+   * Write all changes to this plan file instead of applying them.
+   */
+  private String planOut;
+
+  /**
+   * Fields and groups to update. A scoped run neither creates nor deletes
+   * users and does not advance the last sync timestamp.
+   */
+  private SyncScope scope = SyncScope.ALL;
+
+  /**
+   * Reuse the Nextcloud user and group ids of the previous run instead of
+   * listing them again, and skip delete detection.
+   */
+  private boolean keepState;
+
+  /**
+   * Reconcile group memberships from the group side: read the members of
+   * every mapped group once instead of comparing the groups of every user.
+   * Needs a full, unscoped and non streaming run.
+   */
+  private boolean reconcileGroups;
+
+  /**
+   * A worker pool kept between runs, {@code null} creates a pool for this
+   * run only.
+   */
+  private SyncWorkerPool workerPool;
+
+}
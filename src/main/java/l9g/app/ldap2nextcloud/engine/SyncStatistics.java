@@ -0,0 +1,137 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import l9g.app.ldap2nextcloud.model.UserDiff;
+import lombok.Getter;
+import org.slf4j.Logger;
+
+/**
+ * Thread-safe counters of a single sync run.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Getter
+public class SyncStatistics
+{
+  private final AtomicInteger updatedUsers = new AtomicInteger();
+
+  private final AtomicInteger createdUsers = new AtomicInteger();
+
+  private final AtomicInteger deletedUsers = new AtomicInteger();
+
+  private final AtomicInteger ignoredUsers = new AtomicInteger();
+
+  private final AtomicInteger createdGroups = new AtomicInteger();
+
+  private final AtomicInteger unchangedUsers = new AtomicInteger();
+
+  private final AtomicInteger skippedUsers = new AtomicInteger();
+
+  private final AtomicInteger failedUsers = new AtomicInteger();
+
+  /**
+   * Failures since the last {@link #resetErrorBudget()}, used for the error
+   * budget.
+   */
+  private final AtomicInteger budgetFailures = new AtomicInteger();
+
+  /**
+   * Failures since the last successful user, used for the error budget.
+   */
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+  /**
+   * Number of written changes per OCS user key, group additions are counted
+   * as {@code groups+} and removals as {@code groups-}.
+   */
+  private final Map<String, AtomicInteger> fieldChanges =
+    new ConcurrentHashMap<>();
+
+  /**
+   * Counts the changes of an applied update.
+   *
+   * @param diff the applied differences, {@code null} is ignored
+   */
+  public void recordDiff(UserDiff diff)
+  {
+    if(diff == null)
+    {
+      return;
+    }
+
+    if(diff.isEmpty())
+    {
+      unchangedUsers.incrementAndGet();
+      return;
+    }
+
+    diff.getChangedFields().keySet().forEach(field -> countFieldChange(field, 1));
+    countFieldChange("groups+", diff.getGroupsToAdd().size());
+    countFieldChange("groups-", diff.getGroupsToRemove().size());
+  }
+
+  /**
+   * Counts the membership changes of a group side reconciliation.
+   *
+   * @param added number of users added to the group
+   * @param removed number of users removed from the group
+   */
+  public void recordMembershipChanges(int added, int removed)
+  {
+    countFieldChange("groups+", added);
+    countFieldChange("groups-", removed);
+  }
+
+  private void countFieldChange(String field, int count)
+  {
+    if(count > 0)
+    {
+      fieldChanges.computeIfAbsent(field, f -> new AtomicInteger())
+        .addAndGet(count);
+    }
+  }
+
+  /**
+   * Starts a new error budget, the failures counted so far are kept for the
+   * summary.
+   */
+  public void resetErrorBudget()
+  {
+    budgetFailures.set(0);
+    consecutiveFailures.set(0);
+  }
+
+  public void logSummary(Logger logger)
+  {
+    logger.info("sync done\nSummary:"
+      + "\n  updated {} user(s), {} unchanged"
+      + "\n  created {} user(s)"
+      + "\n  deleted {} user(s)"
+      + "\n  ignored {} user(s)"
+      + "\n  skipped {} already processed user(s)"
+      + "\n  failed {} user(s)"
+      + "\n  created {} group(s)"
+      + "\n  field changes {}",
+      updatedUsers, unchangedUsers, createdUsers, deletedUsers, ignoredUsers,
+      skippedUsers, failedUsers, createdGroups, new TreeMap<>(fieldChanges));
+  }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import jakarta.annotation.PreDestroy;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import l9g.app.ldap2nextcloud.handler.LdapHandler;
+import l9g.app.ldap2nextcloud.model.CompactLdapEntry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Syncs LDAP changes as they happen, driven by a persistent search.
+ * <p>
+ * Every (re)connect subscribes to changes first and, once the server has
+ * registered the subscription, runs an incremental sync to catch up with
+ * everything changed while nobody was listening. Changes reported during the
+ * catch-up are buffered and applied afterwards, so no change between the two
+ * steps is lost. Changes of the same user are applied in the order they were
+ * reported.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class SyncWatcher
+{
+  private final static LdapChange END_OF_CHANGES = new LdapChange(null, null);
+
+  private final SyncEngine syncEngine;
+
+  private final LdapHandler ldapHandler;
+
+  @Value("${sync.watch.reconnect-seconds:30}")
+  private int reconnectSeconds;
+
+  private record LdapChange(
+    PersistentSearchChangeType changeType, CompactLdapEntry entry)
+  {
+  }
+
+  /**
+   * Watches LDAP changes until the process is terminated, reconnecting
+   * after failures.
+   *
+   * @param workerThreads number of concurrent workers, {@code <= 0} uses the
+   * configured default
+   *
+   * @throws Throwable if the worker pool can not be created
+   */
+  public void run(int workerThreads)
+    throws Throwable
+  {
+    workerPool = syncEngine.createWorkerPool(workerThreads);
+    running = true;
+
+    try
+    {
+      while(running)
+      {
+        try
+        {
+          watch();
+        }
+        catch(Throwable t)
+        {
+          log.error("watching ldap changes failed", t);
+        }
+
+        if(running)
+        {
+          log.info("reconnecting in {}s", reconnectSeconds);
+          Thread.sleep(reconnectSeconds * 1000L);
+        }
+      }
+    }
+    finally
+    {
+      stop();
+    }
+  }
+
+  private void watch()
+    throws Throwable
+  {
+    SyncWorkerPool pool = workerPool;
+    BlockingQueue<LdapChange> changes = new LinkedBlockingQueue<>();
+    AtomicReference<Throwable> listenFailure = new AtomicReference<>();
+    CountDownLatch listening = new CountDownLatch(1);
+
+    Thread listener = Thread.ofVirtual().name("ldap-change-listener").start(() ->
+    {
+      try
+      {
+        ldapHandler.listenForChanges(listening::countDown,
+          (changeType, entry) -> changes.put(new LdapChange(changeType, entry)));
+      }
+      catch(Throwable t)
+      {
+        listenFailure.set(t);
+      }
+      finally
+      {
+        changes.add(END_OF_CHANGES);
+        listening.countDown();
+      }
+    });
+
+    try
+    {
+      listening.await();
+      if(listenFailure.get() != null)
+      {
+        throw listenFailure.get();
+      }
+
+      log.info("catching up with changes since last sync");
+      SyncOptions options = new SyncOptions();
+      options.setWorkerPool(pool);
+      options.setResume(true);
+      syncEngine.sync(options);
+
+      log.info("applying ldap changes, {} buffered", changes.size());
+      SyncStatistics statistics = new SyncStatistics();
+      UserChangeQueue queue = new UserChangeQueue(pool);
+      LdapChange change;
+      boolean batchDone = false;
+
+      while((change = changes.take()) != END_OF_CHANGES)
+      {
+        if(batchDone)
+        {
+          // a change after the buffer ran empty starts a new batch, the
+          // error budget must not add up over the whole session
+          statistics.resetErrorBudget();
+        }
+
+        LdapChange current = change;
+        queue.submit(syncEngine.changeKey(current.entry()),
+          js -> syncEngine.syncChange(
+            js, current.changeType(), current.entry(), statistics));
+        batchDone = changes.isEmpty();
+      }
+
+      pool.await();
+      statistics.logSummary(log);
+    }
+    finally
+    {
+      listener.interrupt();
+      ldapHandler.stopListening();
+      listener.join();
+      pool.drain();
+    }
+
+    if(listenFailure.get() != null)
+    {
+      throw listenFailure.get();
+    }
+  }
+
+  @PreDestroy
+  public synchronized void stop()
+  {
+    if(running)
+    {
+      log.info("stopping ldap change watcher");
+      running = false;
+      ldapHandler.stopListening();
+    }
+
+    if(workerPool != null)
+    {
+      workerPool.close();
+      workerPool = null;
+    }
+  }
+
+  private volatile boolean running;
+
+  private volatile SyncWorkerPool workerPool;
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A bounded pool of virtual threads executing per-user sync tasks.
+ * <p>
+ * At most {@code workerThreads} tasks are in flight at any time,
+ * {@link #submit(Task)} blocks the caller until a slot is free. Every running
+ * task owns one {@link JavaScriptEngine} from a pool of the same size, because
+ * a GraalJS context must not be entered by two threads at once.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Slf4j
+public class SyncWorkerPool implements AutoCloseable
+{
+  /**
+   * A unit of work executed with an exclusively borrowed script engine.
+   */
+  @FunctionalInterface
+  public interface Task
+  {
+    void run(JavaScriptEngine js)
+      throws Throwable;
+
+  }
+
+  /**
+   * Creates the pool and one script engine per worker.
+   *
+   * @param workerThreads the maximum number of concurrently running tasks
+   *
+   * @throws IOException if the mapping script can not be read
+   */
+  public SyncWorkerPool(int workerThreads)
+    throws IOException
+  {
+    this(workerThreads, true);
+  }
+
+  /**
+   * Creates the pool.
+   *
+   * @param workerThreads the maximum number of concurrently running tasks
+   * @param withScriptEngines {@code false} if the tasks do not run the
+   * mapping script, they are passed {@code null} instead of an engine
+   *
+   * @throws IOException if the mapping script can not be read
+   */
+  public SyncWorkerPool(int workerThreads, boolean withScriptEngines)
+    throws IOException
+  {
+    this.workerThreads = Math.max(1, workerThreads);
+    log.debug("SyncWorkerPool({}, {})", this.workerThreads, withScriptEngines);
+
+    permits = new Semaphore(this.workerThreads);
+    engines = new ArrayBlockingQueue<>(this.workerThreads);
+
+    for(int i = 0; withScriptEngines && i < this.workerThreads; i ++)
+    {
+      engines.add(new JavaScriptEngine());
+    }
+
+    executor = Executors.newThreadPerTaskExecutor(
+      Thread.ofVirtual().name("sync-worker-", 0).factory());
+  }
+
+  /**
+   * Submits a task, blocking while all workers are busy.
+   *
+   * @param task the task to run
+   *
+   * @throws Throwable the first failure of a previously submitted task
+   */
+  public void submit(Task task)
+    throws Throwable
+  {
+    rethrowFailure();
+    permits.acquire();
+
+    executor.execute(() ->
+    {
+      JavaScriptEngine js = engines.poll();
+      try
+      {
+        task.run(js);
+      }
+      catch(Throwable t)
+      {
+        log.error("sync task failed", t);
+        failure.compareAndSet(null, t);
+      }
+      finally
+      {
+        if(js != null)
+        {
+          engines.add(js);
+        }
+        permits.release();
+      }
+    });
+  }
+
+  /**
+   * Waits until all submitted tasks are finished.
+   *
+   * @throws Throwable the first failure of a submitted task
+   */
+  public void await()
+    throws Throwable
+  {
+    permits.acquire(workerThreads);
+    permits.release(workerThreads);
+    rethrowFailure();
+  }
+
+  /**
+   * Waits until all submitted tasks are finished and discards their failure,
+   * so a pool that is kept for further runs starts clean after an aborted run.
+   */
+  public void drain()
+  {
+    try
+    {
+      permits.acquire(workerThreads);
+      permits.release(workerThreads);
+    }
+    catch(InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+    }
+    failure.set(null);
+  }
+
+  private void rethrowFailure()
+    throws Throwable
+  {
+    Throwable t = failure.getAndSet(null);
+    if(t != null)
+    {
+      throw t;
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    executor.shutdown();
+
+    try
+    {
+      if( ! executor.awaitTermination(1, TimeUnit.MINUTES))
+      {
+        log.warn("sync workers did not terminate in time");
+      }
+    }
+    catch(InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    engines.forEach(JavaScriptEngine::close);
+  }
+
+  @Getter
+  private final int workerThreads;
+
+  private final Semaphore permits;
+
+  private final BlockingQueue<JavaScriptEngine> engines;
+
+  private final ExecutorService executor;
+
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+}
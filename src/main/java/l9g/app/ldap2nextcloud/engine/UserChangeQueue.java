@@ -0,0 +1,123 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs tasks on a {@link SyncWorkerPool}, those of the same user one after
+ * another in the order they were submitted, those of different users
+ * concurrently. A later change of a user is therefore never applied before
+ * an earlier one.
+ * <p>
+ * Only the first pending task of a user occupies a worker; it runs the
+ * tasks submitted for the same user in the meantime as well.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Slf4j
+class UserChangeQueue
+{
+  UserChangeQueue(SyncWorkerPool pool)
+  {
+    this.pool = pool;
+  }
+
+  /**
+   * Submits a task, blocking while all workers are busy.
+   *
+   * @param userId the key serializing the tasks
+   * @param task the task to run
+   *
+   * @throws Throwable the first failure of a previously submitted task
+   */
+  void submit(String userId, SyncWorkerPool.Task task)
+    throws Throwable
+  {
+    synchronized(pendingTasks)
+    {
+      Queue<SyncWorkerPool.Task> tasks = pendingTasks.get(userId);
+
+      if(tasks != null)
+      {
+        tasks.add(task);
+        return;
+      }
+
+      tasks = new ArrayDeque<>();
+      tasks.add(task);
+      pendingTasks.put(userId, tasks);
+    }
+
+    pool.submit(js -> runTasks(js, userId));
+  }
+
+  private void runTasks(JavaScriptEngine js, String userId)
+    throws Throwable
+  {
+    Throwable failure = null;
+
+    while(true)
+    {
+      SyncWorkerPool.Task task;
+
+      synchronized(pendingTasks)
+      {
+        task = pendingTasks.get(userId).peek();
+      }
+
+      try
+      {
+        task.run(js);
+      }
+      catch(Throwable t)
+      {
+        log.error("change of user {} failed", userId, t);
+        if(failure == null)
+        {
+          failure = t;
+        }
+      }
+
+      synchronized(pendingTasks)
+      {
+        Queue<SyncWorkerPool.Task> tasks = pendingTasks.get(userId);
+        tasks.poll();
+
+        if(tasks.isEmpty())
+        {
+          pendingTasks.remove(userId);
+          break;
+        }
+      }
+    }
+
+    if(failure != null)
+    {
+      throw failure;
+    }
+  }
+
+  private final SyncWorkerPool pool;
+
+  private final Map<String, Queue<SyncWorkerPool.Task>> pendingTasks =
+    new HashMap<>();
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import l9g.app.ldap2nextcloud.model.CompactLdapEntry;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A paged search running asynchronously on its own connection. Every entry
+ * is converted and put into the shared queue as soon as it is decoded off
+ * the socket. The next page is requested as soon as the previous one is
+ * complete, without waiting for the consumer.
+ * <p>
+ * A full queue blocks the connection reader thread and therefore the
+ * socket, which slows the server down to the pace of the consumer. When
+ * the search ends, successfully or not, the search itself is put into the
+ * queue as end marker.
+ * <p>
+ * A search failed with its server can be restarted on another connection
+ * with {@link #restart(LDAPConnection)}, entries already put into the queue
+ * are skipped.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+final class AsyncPagedSearch implements AsyncSearchResultListener
+{
+  private final static long serialVersionUID = 1L;
+
+  private final static Logger LOGGER =
+    LoggerFactory.getLogger(AsyncPagedSearch.class);
+
+  AsyncPagedSearch(LDAPConnection connection, SearchRequest partition,
+    int pageSize, BlockingQueue<Object> queue, Set<String> attributeNames)
+  {
+    this(connection, partition, pageSize, queue, attributeNames,
+      new DeliveredEntries(), 0, -1);
+  }
+
+  private AsyncPagedSearch(LDAPConnection connection, SearchRequest partition,
+    int pageSize, BlockingQueue<Object> queue, Set<String> attributeNames,
+    DeliveredEntries delivered, int restarts, long newestModifyTime)
+  {
+    this.connection = connection;
+    this.server = connection.getHostPort();
+    this.partition = partition;
+    this.pageSize = Math.max(1, pageSize);
+    this.queue = queue;
+    this.attributeNames = attributeNames;
+    this.delivered = delivered;
+    this.restarts = restarts;
+    this.newestModifyTime = newestModifyTime;
+    this.searchRequest = new SearchRequest(this, partition.getBaseDN(),
+      partition.getScope(), partition.getFilter(), partition.getAttributes());
+  }
+
+  /**
+   * Creates a new attempt of this failed search from the first page, which
+   * skips all entries this search already put into the queue. Must only be
+   * called after the end marker of this search was taken from the queue.
+   *
+   * @param newConnection the connection for the new attempt
+   *
+   * @return the new search, not yet started
+   */
+  AsyncPagedSearch restart(LDAPConnection newConnection)
+  {
+    delivered.restart();
+    return new AsyncPagedSearch(newConnection, partition, pageSize, queue,
+      attributeNames, delivered, restarts + 1, newestModifyTime);
+  }
+
+  /**
+   * Requests the first page.
+   *
+   * @throws LDAPException if the request can not be sent
+   */
+  void start()
+    throws LDAPException
+  {
+    requestPage(null);
+  }
+
+  /**
+   * Stops putting entries into the queue. The connection must be closed by
+   * the caller.
+   */
+  void cancel()
+  {
+    cancelled = true;
+    AsyncRequestID requestId = currentRequestId;
+    if(requestId != null)
+    {
+      requestId.cancel(true);
+    }
+  }
+
+  @Override
+  public void searchEntryReturned(SearchResultEntry entry)
+  {
+    if(delivered.add(entry.getDN()))
+    {
+      Date modifyTimestamp = entry.getAttributeValueAsDate("modifyTimestamp");
+      if(modifyTimestamp != null)
+      {
+        newestModifyTime = Math.max(newestModifyTime, modifyTimestamp.getTime());
+      }
+
+      CompactLdapEntry compactEntry;
+      try
+      {
+        compactEntry = CompactLdapEntry.of(entry, attributeNames);
+      }
+      catch(IllegalArgumentException e)
+      {
+        // not restartable, every server returns the same value
+        finish(new LDAPException(ResultCode.INVALID_ATTRIBUTE_SYNTAX,
+          e.getMessage(), e));
+        cancel();
+        return;
+      }
+
+      put(compactEntry);
+      entryCount ++;
+    }
+  }
+
+  @Override
+  public void searchReferenceReturned(SearchResultReference reference)
+  {
+    // referrals are not followed
+  }
+
+  @Override
+  public void searchResultReceived(AsyncRequestID requestId,
+    SearchResult result)
+  {
+    if(cancelled && failure != null)
+    {
+      // the end marker is already in the queue
+      return;
+    }
+
+    if(result.getResultCode() != ResultCode.SUCCESS)
+    {
+      finish(new LDAPException(result));
+      return;
+    }
+
+    try
+    {
+      SimplePagedResultsControl responseControl =
+        SimplePagedResultsControl.get(result);
+
+      if( ! cancelled && responseControl != null
+        && responseControl.moreResultsToReturn())
+      {
+        requestPage(responseControl.getCookie());
+        return;
+      }
+    }
+    catch(LDAPException e)
+    {
+      finish(e);
+      return;
+    }
+
+    finish(null);
+  }
+
+  private void requestPage(ASN1OctetString cookie)
+    throws LDAPException
+  {
+    searchRequest.setControls(new SimplePagedResultsControl(pageSize, cookie));
+    currentRequestId = connection.asyncSearch(searchRequest);
+  }
+
+  private void finish(LDAPException failure)
+  {
+    this.failure = failure;
+    LOGGER.debug("search base={} done, {} entries", searchRequest.getBaseDN(),
+      entryCount);
+    put(this);
+  }
+
+  private void put(Object item)
+  {
+    try
+    {
+      while( ! cancelled && ! queue.offer(item, 1, TimeUnit.SECONDS))
+      {
+        LOGGER.trace("entry queue full");
+      }
+    }
+    catch(InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      cancelled = true;
+    }
+  }
+
+  @Getter(AccessLevel.PACKAGE)
+  private final transient LDAPConnection connection;
+
+  /**
+   * Host and port of the server, still known after the connection failed.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  private final String server;
+
+  @Getter(AccessLevel.PACKAGE)
+  private final SearchRequest partition;
+
+  private final int pageSize;
+
+  private final transient BlockingQueue<Object> queue;
+
+  /**
+   * Lower case names of the attributes kept in the queued entries.
+   */
+  private final transient Set<String> attributeNames;
+
+  private final SearchRequest searchRequest;
+
+  private final transient DeliveredEntries delivered;
+
+  /**
+   * Number of failed attempts before this one.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  private final int restarts;
+
+  private volatile AsyncRequestID currentRequestId;
+
+  private volatile boolean cancelled;
+
+  @Getter
+  private volatile LDAPException failure;
+
+  @Getter
+  private volatile int entryCount;
+
+  /**
+   * Newest modify timestamp of the entries put into the queue in
+   * milliseconds, {@code -1} if none had one.
+   */
+  @Getter(AccessLevel.PACKAGE)
+  private volatile long newestModifyTime;
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Remembers the entries a search has handed out, so that a search restarted
+ * on another server after a failure skips them. Only a 64 bit hash of each
+ * DN is kept, eight bytes per entry.
+ * <p>
+ * Before the first restart every entry is new. {@link #restart()} sorts
+ * the hashes collected so far; the restarted search then skips every DN
+ * found among them. Not thread-safe, a search and its restarts run one
+ * after the other.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+final class DeliveredEntries
+{
+  /**
+   * Records a DN.
+   *
+   * @param dn the DN of an entry
+   *
+   * @return {@code false} if an earlier attempt of the search already
+   * handed out the entry
+   */
+  boolean add(String dn)
+  {
+    long hash = hash(dn);
+
+    if(sortedSize > 0 && Arrays.binarySearch(hashes, 0, sortedSize, hash) >= 0)
+    {
+      return false;
+    }
+
+    if(size == hashes.length)
+    {
+      hashes = Arrays.copyOf(hashes, Math.max(16, size * 2));
+    }
+
+    hashes[size ++] = hash;
+    return true;
+  }
+
+  /**
+   * @param page a page of search results
+   *
+   * @return the entries of the page not handed out by an earlier attempt
+   */
+  List<SearchResultEntry> filter(List<SearchResultEntry> page)
+  {
+    List<SearchResultEntry> entries = new ArrayList<>(page.size());
+
+    for(SearchResultEntry entry : page)
+    {
+      if(add(entry.getDN()))
+      {
+        entries.add(entry);
+      }
+    }
+
+    return entries;
+  }
+
+  /**
+   * Marks the start of a new attempt of the search.
+   */
+  void restart()
+  {
+    Arrays.sort(hashes, 0, size);
+    sortedSize = size;
+  }
+
+  /**
+   * 64 bit FNV-1a over the lower case characters of the DN.
+   */
+  private static long hash(String dn)
+  {
+    long hash = 0xcbf29ce484222325L;
+
+    for(int i = 0; i < dn.length(); i ++)
+    {
+      hash ^= Character.toLowerCase(dn.charAt(i));
+      hash *= 0x100000001b3L;
+    }
+
+    return hash;
+  }
+
+  private long[] hashes = new long[0];
+
+  private int size;
+
+  private int sortedSize;
+
+}
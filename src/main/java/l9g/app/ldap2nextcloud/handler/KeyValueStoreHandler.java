@@ -47,6 +47,11 @@ public class KeyValueStoreHandler
    */
   private final KeyValueStore<Integer> removableGroupsMap;
 
+  /**
+   * The store file shared by all maps.
+   */
+  private final MVStore store;
+
   /**
    * Constructs a new KeyValueStoreHandler and initializes the persistent maps.
    *
@@ -55,11 +60,24 @@ public class KeyValueStoreHandler
   public KeyValueStoreHandler(
     @Value("${app.kvstore-filepath:data/store.kv}") String filepath)
   {
-    MVStore store = MVStore.open(filepath);
+    store = MVStore.open(filepath);
     removableUsersMap = new KeyValueStore<>(store, "removableUsers");
     removableGroupsMap = new KeyValueStore<>(store, "removableGroups");
   }
 
+  /**
+   * Opens or creates an additional map in the shared store file.
+   *
+   * @param <V> the type of values stored in the map
+   * @param mapName the name of the map
+   *
+   * @return the map
+   */
+  public <V> KeyValueStore<V> openMap(String mapName)
+  {
+    return new KeyValueStore<>(store, mapName);
+  }
+
   public List<String> toDeleteUsers(int threshold)
   {
     log.debug("Listing users with threshold: {}", threshold);
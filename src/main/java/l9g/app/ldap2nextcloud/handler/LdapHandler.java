@@ -17,20 +17,79 @@ package l9g.app.ldap2nextcloud.handler;
 
 import com.unboundid.asn1.ASN1GeneralizedTime;
 import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.DN;
 import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.FailoverServerSet;
+import com.unboundid.ldap.sdk.FastestConnectServerSet;
+import com.unboundid.ldap.sdk.FewestConnectionsServerSet;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.GetEntryLDAPConnectionPoolHealthCheck;
 import com.unboundid.ldap.sdk.LDAPConnection;
 import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RoundRobinServerSet;
 import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
 import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.ServerSet;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
+import com.unboundid.ldap.sdk.controls.EntryChangeNotificationControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import com.unboundid.ldap.sdk.controls.PersistentSearchRequestControl;
 import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import com.unboundid.ldap.sdk.schema.AttributeTypeDefinition;
+import com.unboundid.ldap.sdk.schema.Schema;
 import com.unboundid.util.ssl.SSLUtil;
 import com.unboundid.util.ssl.TrustAllTrustManager;
+import jakarta.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.security.GeneralSecurityException;
 import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 import l9g.app.ldap2nextcloud.crypto.EncryptedValue;
+import l9g.app.ldap2nextcloud.model.CompactLdapEntry;
+import l9g.app.ldap2nextcloud.util.HighWaterMarks;
+import l9g.app.ldap2nextcloud.util.KeyValueStore;
+import l9g.app.ldap2nextcloud.util.LdapSnapshot;
+import l9g.app.ldap2nextcloud.util.SortedIdSet;
+import l9g.app.ldap2nextcloud.util.UserIdNormalizer;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
@@ -49,167 +108,1993 @@ public class LdapHandler
   private final static Logger LOGGER =
     LoggerFactory.getLogger(LdapHandler.class);
 
+  private final UserIdNormalizer userIdNormalizer;
+
+  private final KeyValueStoreHandler keyValueStoreHandler;
+
   @Value("${ldap.host.name}")
   private String ldapHostname;
 
-  @Value("${ldap.host.port}")
-  private int ldapPort;
+  @Value("${ldap.host.port}")
+  private int ldapPort;
+
+  @Value("${ldap.host.ssl}")
+  private boolean ldapSslEnabled;
+
+  @Value("${ldap.host.strategy:failover}")
+  private String ldapHostStrategy;
+
+  @Value("${ldap.host.max-search-restarts:3}")
+  private int maxSearchRestarts;
+
+  @Value("${ldap.base-dn}")
+  private String ldapBaseDn;
+
+  @Value("${ldap.bind.dn}")
+  private String ldapBindDn;
+
+  @EncryptedValue("${ldap.bind.password}")
+  private String ldapBindPassword;
+
+  @Value("${ldap.scope}")
+  private String ldapScope;
+
+  @Value("${ldap.filter}")
+  private String ldapFilter;
+
+  @Getter
+  @Value("${ldap.user.id}")
+  private String ldapUserId;
+
+  @Value("${ldap.user.attributes}")
+  private String[] ldapUserAttributeNames;
+
+  @Value("${ldap.user.denied-attributes:jpegPhoto,userCertificate,"
+    + "userSMIMECertificate,userPKCS12,cACertificate,thumbnailPhoto,photo,"
+    + "audio,userPassword}")
+  private String[] deniedAttributeNames;
+
+  @Value("${ldap.user.observed-attributes.file:data/ldap-attributes.observed}")
+  private File observedAttributesFile;
+
+  @Value("${ldap.user.observed-attributes.restrict:false}")
+  private boolean restrictToObservedAttributes;
+
+  @Value("${ldap.user.lookup-batch-size:100}")
+  private int lookupBatchSize;
+
+  @Value("${ldap.paged-result-size:1000}")
+  private int pagedResultSize;
+
+  @Value("${ldap.partitions.base-dns:}")
+  private String[] partitionBaseDns;
+
+  @Value("${ldap.partitions.id-boundaries:}")
+  private String[] partitionIdBoundaries;
+
+  @Value("${ldap.partitions.threads:4}")
+  private int partitionThreads;
+
+  @Value("${ldap.pool.initial-connections:1}")
+  private int poolInitialConnections;
+
+  @Value("${ldap.pool.max-connections:8}")
+  private int poolMaxConnections;
+
+  @Value("${ldap.pool.max-connection-age-seconds:900}")
+  private long poolMaxConnectionAgeSeconds;
+
+  @Value("${ldap.pool.health-check-interval-seconds:60}")
+  private long poolHealthCheckIntervalSeconds;
+
+  @Value("${ldap.changelog.enabled:false}")
+  private boolean changelogEnabled;
+
+  @Value("${ldap.changelog.base-dn:cn=changelog}")
+  private String changelogBaseDn;
+
+  @Value("${ldap.snapshot.file:data/ldap.snapshot}")
+  private File snapshotFile;
+
+  /**
+   * Returns the connection pool shared by all LDAP access, created on first
+   * use. {@code ldap.host.name} may list several comma separated hosts, each
+   * optionally with its own port, see {@link #createServerSet()}.
+   * <p>
+   * Connections are checked by reading the root DSE when they are created,
+   * on checkout, in the background and after an error. They are replaced
+   * after {@code ldap.pool.max-connection-age-seconds}, so a failed over
+   * pool returns to the first host and a load balanced pool is spread
+   * again after a replica was down.
+   */
+  private synchronized LDAPConnectionPool getConnectionPool()
+    throws Exception
+  {
+    if(connectionPool == null || connectionPool.isClosed())
+    {
+      ServerSet serverSet = createServerSet();
+
+      LDAPConnectionPool pool = new LDAPConnectionPool(serverSet,
+        new SimpleBindRequest(ldapBindDn, ldapBindPassword),
+        Math.max(0, poolInitialConnections), Math.max(1, poolMaxConnections));
+      pool.setConnectionPoolName("ldap");
+      pool.setMaxConnectionAgeMillis(
+        TimeUnit.SECONDS.toMillis(poolMaxConnectionAgeSeconds));
+      pool.setHealthCheck(new GetEntryLDAPConnectionPoolHealthCheck(
+        "", 10000, true, false, true, false, true, true));
+      pool.setHealthCheckIntervalMillis(
+        TimeUnit.SECONDS.toMillis(poolHealthCheckIntervalSeconds));
+
+      LOGGER.info("ldap connection pool created, max {} connection(s)",
+        Math.max(1, poolMaxConnections));
+      connectionPool = pool;
+    }
+
+    return connectionPool;
+  }
+
+  /**
+   * Creates the server set for the hosts of {@code ldap.host.name}, given as
+   * {@code host} or {@code host:port}. {@code ldap.host.strategy} selects
+   * how new connections are spread:
+   * <ul>
+   * <li>{@code failover} - the first available host in the given order</li>
+   * <li>{@code round-robin} - the hosts in turn</li>
+   * <li>{@code fewest-connections} - the host with the fewest connections
+   * of this pool</li>
+   * <li>{@code fastest-connect} - the host which accepts a connection
+   * first</li>
+   * </ul>
+   */
+  private ServerSet createServerSet()
+    throws GeneralSecurityException
+  {
+    String[] hosts = ldapHostname.split(",");
+    int[] ports = new int[hosts.length];
+
+    for(int i = 0; i < hosts.length; i ++)
+    {
+      String host = hosts[i].trim();
+      int colon = host.lastIndexOf(':');
+
+      if(colon > 0 && host.indexOf(':') == colon)
+      {
+        ports[i] = Integer.parseInt(host.substring(colon + 1).trim());
+        hosts[i] = host.substring(0, colon).trim();
+      }
+      else
+      {
+        ports[i] = ldapPort;
+        hosts[i] = host;
+      }
+    }
+
+    LOGGER.debug("hosts={}", String.join(",", hosts));
+    LOGGER.debug("ports={}", Arrays.toString(ports));
+    LOGGER.debug("strategy={}", ldapHostStrategy);
+    LOGGER.debug("ssl={}", ldapSslEnabled);
+    LOGGER.debug("bind dn={}", ldapBindDn);
+    LOGGER.trace("bind pw={}", ldapBindPassword);
+
+    LDAPConnectionOptions options = new LDAPConnectionOptions();
+    SocketFactory socketFactory = ldapSslEnabled
+      ? createSSLSocketFactory() : SocketFactory.getDefault();
+
+    return switch(ldapHostStrategy.trim().toLowerCase())
+    {
+      case "failover" ->
+        new FailoverServerSet(hosts, ports, socketFactory, options);
+      case "round-robin" ->
+        new RoundRobinServerSet(hosts, ports, socketFactory, options);
+      case "fewest-connections" ->
+        new FewestConnectionsServerSet(hosts, ports, socketFactory, options);
+      case "fastest-connect" ->
+        new FastestConnectServerSet(hosts, ports, socketFactory, options);
+      default ->
+        throw new IllegalArgumentException("unknown ldap.host.strategy '"
+          + ldapHostStrategy + "', expected failover, round-robin, "
+          + "fewest-connections or fastest-connect");
+    };
+  }
+
+  @PreDestroy
+  public synchronized void closeConnectionPool()
+  {
+    if(connectionPool != null)
+    {
+      connectionPool.close();
+      connectionPool = null;
+    }
+  }
+
+  private LDAPConnection acquireConnection()
+    throws Exception
+  {
+    return getConnectionPool().getConnection();
+  }
+
+  /**
+   * Returns a connection to the pool. Connections of failed operations are
+   * closed and replaced.
+   */
+  private void releaseConnection(LDAPConnection connection, boolean reusable)
+  {
+    LDAPConnectionPool pool = connectionPool;
+
+    if(pool == null)
+    {
+      connection.close();
+    }
+    else if(reusable)
+    {
+      pool.releaseConnection(connection);
+    }
+    else
+    {
+      pool.releaseDefunctConnection(connection);
+    }
+  }
+
+  /**
+   * Decides whether a search failed because of its server, so that it is
+   * worth restarting on another connection.
+   */
+  private boolean isRestartable(LDAPException e, int restarts)
+  {
+    ResultCode resultCode = e.getResultCode();
+    return restarts < maxSearchRestarts
+      && ( ! resultCode.isConnectionUsable()
+      || resultCode == ResultCode.UNAVAILABLE
+      || resultCode == ResultCode.BUSY);
+  }
+
+  private SSLSocketFactory createSSLSocketFactory()
+    throws
+    GeneralSecurityException
+  {
+    SSLUtil sslUtil = new SSLUtil(new TrustAllTrustManager());
+    return sslUtil.createSSLSocketFactory();
+  }
+
+  private void printLdapEntriesMap()
+  {
+    ldapEntryMap.forEach((k, v) ->
+    {
+      System.out.println(k + " = " + v);
+    });
+  }
+
+  /**
+   * Receives the entries of one LDAP result page.
+   */
+  @FunctionalInterface
+  public interface LdapPageConsumer
+  {
+    void accept(List<SearchResultEntry> page)
+      throws Throwable;
+
+  }
+
+  /**
+   * Receives a single LDAP entry.
+   */
+  @FunctionalInterface
+  public interface LdapEntryConsumer
+  {
+    void accept(CompactLdapEntry entry)
+      throws Throwable;
+
+  }
+
+  /**
+   * Receives a changed LDAP entry of a persistent search.
+   */
+  @FunctionalInterface
+  public interface LdapChangeConsumer
+  {
+    void accept(PersistentSearchChangeType changeType, CompactLdapEntry entry)
+      throws Throwable;
+
+  }
+
+  private SearchRequest createSearchRequest(
+    ASN1GeneralizedTime lastSyncTimestamp, boolean withAttributes)
+    throws LDAPException
+  {
+    String filter = new MessageFormat(
+      ldapFilter).format(new Object[]
+    {
+      lastSyncTimestamp.toString()
+    });
+
+    LOGGER.debug("filter={}", filter);
+
+    if(withAttributes)
+    {
+      return new SearchRequest(
+        ldapBaseDn, SearchScope.SUB, filter,
+        userAttributeNames());
+    }
+
+    return new SearchRequest(
+      ldapBaseDn, SearchScope.SUB, filter,
+      ldapUserId);
+  }
+
+  /**
+   * Splits a search into the configured partitions. Every sub-base DN of
+   * {@code ldap.partitions.base-dns} is combined with every user id range
+   * between the sorted {@code ldap.partitions.id-boundaries}; the first
+   * range is open to the bottom, the last one to the top. Without partitions
+   * the search itself is returned.
+   *
+   * @return the partition searches by partition key
+   */
+  private Map<String, SearchRequest> createPartitions(
+    SearchRequest searchRequest)
+    throws Exception
+  {
+    Map<String, SearchRequest> partitions = new LinkedHashMap<>();
+
+    for(PartitionRange range : partitionRanges())
+    {
+      partitions.put(range.key(),
+        range.apply(searchRequest, searchRequest.getAttributes()));
+    }
+
+    return partitions;
+  }
+
+  /**
+   * Splits the modify timestamp search into the configured partitions, each
+   * with the lower bound of its own high-water mark. The modify timestamp is
+   * always requested, to advance the marks.
+   *
+   * @return the partition searches by partition key
+   */
+  private Map<String, SearchRequest> createPartitions(HighWaterMarks marks,
+    boolean withAttributes)
+    throws Exception
+  {
+    String[] attributeNames = withModifyTimestamp(withAttributes
+      ? userAttributeNames() : new String[]
+    {
+      ldapUserId
+    });
+    Map<String, SearchRequest> partitions = new LinkedHashMap<>();
+
+    for(PartitionRange range : partitionRanges())
+    {
+      partitions.put(range.key(), range.apply(createSearchRequest(
+        marks.getLowerBound(range.key()), withAttributes), attributeNames));
+    }
+
+    return partitions;
+  }
+
+  /**
+   * Returns the partitions, validated against the server on first use.
+   * <p>
+   * Every sub-base DN must lie below {@code ldap.base-dn} and none may
+   * contain another. If users below {@code ldap.base-dn} are found outside
+   * of all sub-bases, the whole {@code ldap.base-dn} is searched instead;
+   * if that can not be checked, {@link #isPartitionCoverageVerified()}
+   * turns {@code false}.
+   * <p>
+   * Id boundaries need an {@code ORDERING} matching rule of
+   * {@code ldap.user.id} in the server schema, otherwise the range filters
+   * match no entry at all. They are sorted the way that rule orders them.
+   *
+   * @throws IllegalArgumentException if the partitions are misconfigured
+   */
+  private synchronized List<PartitionRange> partitionRanges()
+    throws Exception
+  {
+    if(partitionRanges == null)
+    {
+      partitionRanges = createPartitionRanges();
+    }
+
+    return partitionRanges;
+  }
+
+  private List<PartitionRange> createPartitionRanges()
+    throws Exception
+  {
+    DN parsedBaseDn = new DN(ldapBaseDn);
+    List<DN> baseDns = new ArrayList<>();
+    for(String baseDn : partitionBaseDns)
+    {
+      if( ! baseDn.isBlank())
+      {
+        DN dn = new DN(baseDn.trim());
+        if( ! dn.isDescendantOf(parsedBaseDn, true))
+        {
+          throw new IllegalArgumentException("ldap.partitions.base-dns: '"
+            + baseDn.trim() + "' is not below ldap.base-dn '" + ldapBaseDn
+            + "'");
+        }
+        for(DN other : baseDns)
+        {
+          if(dn.isDescendantOf(other, true) || other.isDescendantOf(dn, true))
+          {
+            throw new IllegalArgumentException("ldap.partitions.base-dns: '"
+              + dn + "' and '" + other + "' overlap");
+          }
+        }
+        baseDns.add(dn);
+      }
+    }
+
+    partitionCoverageVerified = true;
+
+    if( ! baseDns.isEmpty())
+    {
+      try
+      {
+        if( ! isCoveredBy(baseDns))
+        {
+          LOGGER.error("ldap.partitions.base-dns do not cover all users below "
+            + "{}, searching it as a whole", ldapBaseDn);
+          baseDns.clear();
+        }
+      }
+      catch(LDAPException e)
+      {
+        LOGGER.error("checking that ldap.partitions.base-dns cover all users "
+          + "failed, deleted users are not detected", e);
+        partitionCoverageVerified = false;
+      }
+    }
+
+    if(baseDns.isEmpty())
+    {
+      baseDns.add(parsedBaseDn);
+    }
+
+    List<String> boundaries = new ArrayList<>();
+    for(String boundary : partitionIdBoundaries)
+    {
+      if( ! boundary.isBlank())
+      {
+        boundaries.add(boundary.trim());
+      }
+    }
+
+    if( ! boundaries.isEmpty())
+    {
+      Comparator<String> ordering = userIdOrdering();
+      boundaries.sort(ordering);
+
+      for(int i = boundaries.size() - 1; i > 0; i --)
+      {
+        if(ordering.compare(boundaries.get(i - 1), boundaries.get(i)) == 0)
+        {
+          boundaries.remove(i);
+        }
+      }
+    }
+
+    List<PartitionRange> ranges = new ArrayList<>();
+    for(DN dn : baseDns)
+    {
+      String baseDn = dn.toString();
+      for(int i = 0; i <= boundaries.size(); i ++)
+      {
+        List<Filter> filters = new ArrayList<>();
+        if(i > 0)
+        {
+          filters.add(Filter.createGreaterOrEqualFilter(
+            ldapUserId, boundaries.get(i - 1)));
+        }
+        if(i < boundaries.size())
+        {
+          filters.add(Filter.createNOTFilter(Filter.createGreaterOrEqualFilter(
+            ldapUserId, boundaries.get(i))));
+        }
+
+        String key = boundaries.isEmpty() ? baseDn : baseDn + " ["
+          + (i > 0 ? boundaries.get(i - 1) : "") + ","
+          + (i < boundaries.size() ? boundaries.get(i) : "") + ")";
+        ranges.add(new PartitionRange(key, baseDn, filters));
+      }
+    }
+
+    return ranges;
+  }
+
+  /**
+   * Returns the order of the {@code ORDERING} matching rule of
+   * {@code ldap.user.id}: case sensitive for {@code caseExactOrderingMatch},
+   * numeric for {@code integerOrderingMatch} and
+   * {@code numericStringOrderingMatch}, otherwise ignoring case.
+   *
+   * @throws IllegalArgumentException if the schema has no ordering rule
+   */
+  private Comparator<String> userIdOrdering()
+    throws Exception
+  {
+    Schema schema = getConnectionPool().getSchema();
+    AttributeTypeDefinition type =
+      schema != null ? schema.getAttributeType(ldapUserId) : null;
+    String rule = type != null ? type.getOrderingMatchingRule(schema) : null;
+
+    if(rule == null)
+    {
+      throw new IllegalArgumentException("ldap.partitions.id-boundaries: "
+        + "the server schema has no ORDERING matching rule for '" + ldapUserId
+        + "', id range filters would match no entry");
+    }
+
+    LOGGER.debug("ordering rule of {} is {}", ldapUserId, rule);
+
+    return switch(rule.toLowerCase())
+    {
+      case "caseexactorderingmatch", "2.5.13.6" ->
+        Comparator.naturalOrder();
+      case "integerorderingmatch", "2.5.13.15", "numericstringorderingmatch",
+        "2.5.13.9" ->
+        Comparator.comparing((String value) -> value.replace(" ", ""),
+          Comparator.comparingInt(String :: length)
+            .thenComparing(Comparator.naturalOrder()));
+      default ->
+        String.CASE_INSENSITIVE_ORDER;
+    };
+  }
+
+  /**
+   * Checks that every user below {@code ldap.base-dn} lies below one of the
+   * given sub-bases. Walks down from {@code ldap.base-dn} along the
+   * ancestors of the sub-bases; any other subtree must not contain a user.
+   */
+  private boolean isCoveredBy(List<DN> baseDns)
+    throws Exception
+  {
+    Filter userFilter =
+      createSearchRequest(new ASN1GeneralizedTime(0), false).getFilter();
+    Queue<DN> pending = new ArrayDeque<>();
+    pending.add(new DN(ldapBaseDn));
+
+    while( ! pending.isEmpty())
+    {
+      DN dn = pending.poll();
+
+      if(baseDns.contains(dn))
+      {
+        continue;
+      }
+
+      if(baseDns.stream().noneMatch(baseDn -> baseDn.isDescendantOf(dn, false)))
+      {
+        if(containsUser(dn, SearchScope.SUB, userFilter))
+        {
+          LOGGER.warn("users below {} are not in any partition", dn);
+          return false;
+        }
+        continue;
+      }
+
+      if(containsUser(dn, SearchScope.BASE, userFilter)
+        || containsUser(dn, SearchScope.ONE, userFilter))
+      {
+        LOGGER.warn("users directly below {} are not in any partition", dn);
+        return false;
+      }
+
+      SearchResult containers = getConnectionPool().search(new SearchRequest(
+        dn.toString(), SearchScope.ONE, Filter.createNOTFilter(userFilter),
+        SearchRequest.NO_ATTRIBUTES));
+
+      for(SearchResultEntry container : containers.getSearchEntries())
+      {
+        pending.add(container.getParsedDN());
+      }
+    }
+
+    return true;
+  }
+
+  private boolean containsUser(DN dn, SearchScope scope, Filter userFilter)
+    throws Exception
+  {
+    SearchRequest searchRequest = new SearchRequest(dn.toString(), scope,
+      userFilter, SearchRequest.NO_ATTRIBUTES);
+    searchRequest.setSizeLimit(1);
+
+    try
+    {
+      return getConnectionPool().search(searchRequest).getEntryCount() > 0;
+    }
+    catch(LDAPSearchException e)
+    {
+      if(e.getResultCode() == ResultCode.SIZE_LIMIT_EXCEEDED)
+      {
+        return true;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return {@code false} if it could not be checked that the partitions
+   * cover all users, so a full read may have missed some of them
+   */
+  public boolean isPartitionCoverageVerified()
+  {
+    return partitionCoverageVerified;
+  }
+
+  /**
+   * A sub-base DN with a user id range, the key names the partition in the
+   * high-water marks.
+   */
+  private record PartitionRange(String key, String baseDn,
+    List<Filter> rangeFilters)
+  {
+    SearchRequest apply(SearchRequest searchRequest, String[] attributeNames)
+    {
+      List<Filter> filters = new ArrayList<>();
+      filters.add(searchRequest.getFilter());
+      filters.addAll(rangeFilters);
+
+      return new SearchRequest(baseDn, searchRequest.getScope(),
+        filters.size() == 1 ? filters.get(0) : Filter.createANDFilter(filters),
+        attributeNames);
+    }
+
+  }
+
+  /**
+   * Runs the partitions of a search concurrently, each on its own
+   * connection, with at most {@code ldap.partitions.threads} at a time. The
+   * page consumer is never called concurrently. If a partition fails the
+   * others are cancelled.
+   *
+   * @return the total number of entries
+   */
+  private int searchPartitioned(SearchRequest searchRequest,
+    LdapPageConsumer pageConsumer)
+    throws Throwable
+  {
+    return searchPartitioned(createPartitions(searchRequest), null,
+      pageConsumer);
+  }
+
+  /**
+   * Like {@link #searchPartitioned(SearchRequest, LdapPageConsumer)}, every
+   * completely searched partition is recorded in the marks, if given.
+   */
+  private int searchPartitioned(Map<String, SearchRequest> partitionsByKey,
+    HighWaterMarks marks, LdapPageConsumer pageConsumer)
+    throws Throwable
+  {
+    List<Map.Entry<String, SearchRequest>> partitions =
+      new ArrayList<>(partitionsByKey.entrySet());
+
+    if(partitions.size() == 1)
+    {
+      return searchPaged(partitions.get(0).getKey(),
+        partitions.get(0).getValue(), marks, pageConsumer);
+    }
+
+    LOGGER.info("searching {} partitions, {} at a time", partitions.size(),
+      Math.max(1, partitionThreads));
+
+    ReentrantLock consumerLock = new ReentrantLock();
+    Semaphore permits = new Semaphore(Math.max(1, partitionThreads));
+    List<Future<Integer>> results = new ArrayList<>();
+    int totalEntries = 0;
+
+    try(ExecutorService executor = Executors.newThreadPerTaskExecutor(
+      Thread.ofVirtual().name("ldap-partition-", 0).factory()))
+    {
+      for(Map.Entry<String, SearchRequest> partition : partitions)
+      {
+        results.add(executor.submit(() ->
+        {
+          permits.acquire();
+          try
+          {
+            LOGGER.debug("partition base={} filter={}",
+              partition.getValue().getBaseDN(),
+              partition.getValue().getFilter());
+            return searchPaged(partition.getKey(), partition.getValue(),
+              marks, page ->
+            {
+              consumerLock.lockInterruptibly();
+              try
+              {
+                pageConsumer.accept(page);
+              }
+              finally
+              {
+                consumerLock.unlock();
+              }
+            });
+          }
+          catch(Throwable t)
+          {
+            throw t instanceof Exception e ? e : new ExecutionException(t);
+          }
+          finally
+          {
+            permits.release();
+          }
+        }));
+      }
+
+      try
+      {
+        for(Future<Integer> result : results)
+        {
+          totalEntries += result.get();
+        }
+      }
+      catch(Throwable t)
+      {
+        results.forEach(result -> result.cancel(true));
+
+        if(t instanceof ExecutionException e)
+        {
+          throw e.getCause() instanceof ExecutionException wrapped
+            ? wrapped.getCause() : e.getCause();
+        }
+        throw t;
+      }
+    }
+
+    LOGGER.info("loaded {} ldap entries from {} partitions", totalEntries,
+      partitions.size());
+    return totalEntries;
+  }
+
+  private int searchPaged(String partition, SearchRequest searchRequest,
+    HighWaterMarks marks, LdapPageConsumer pageConsumer)
+    throws Throwable
+  {
+    if(marks == null)
+    {
+      return searchPaged(searchRequest, pageConsumer);
+    }
+
+    AtomicLong newestModifyTime = new AtomicLong(-1);
+    int entries = searchPaged(searchRequest, page ->
+    {
+      for(Entry entry : page)
+      {
+        newestModifyTime.accumulateAndGet(modifyTime(entry), Math :: max);
+      }
+      pageConsumer.accept(page);
+    });
+
+    marks.observe(partition, newestModifyTime.get());
+    return entries;
+  }
+
+  private int searchPaged(SearchRequest searchRequest,
+    LdapPageConsumer pageConsumer)
+    throws Throwable
+  {
+    int totalSourceEntries = 0;
+    int restarts = 0;
+    DeliveredEntries delivered = new DeliveredEntries();
+    LDAPConnection connection = acquireConnection();
+    boolean reusable = false;
+
+    try
+    {
+      ASN1OctetString resumeCookie = null;
+      boolean morePages = true;
+
+      while(morePages)
+      {
+        searchRequest.setControls(new SimplePagedResultsControl(
+          Math.max(1, pagedResultSize), resumeCookie));
+
+        SearchResult sourceSearchResult;
+        String server = connection.getHostPort();
+
+        try
+        {
+          sourceSearchResult = connection.search(searchRequest);
+        }
+        catch(LDAPSearchException e)
+        {
+          if( ! isRestartable(e, restarts))
+          {
+            throw e;
+          }
+
+          // a paged results cookie is only valid on its server
+          restarts ++;
+          LOGGER.warn("search base={} failed on {}, {}, restart {} of {}",
+            searchRequest.getBaseDN(), server, e.getResultCode(), restarts,
+            maxSearchRestarts);
+          releaseConnection(connection, false);
+          // not released again if no connection can be acquired
+          connection = null;
+          connection = acquireConnection();
+          delivered.restart();
+          resumeCookie = null;
+          continue;
+        }
+
+        List<SearchResultEntry> page =
+          delivered.filter(sourceSearchResult.getSearchEntries());
+        totalSourceEntries += page.size();
+
+        if( ! page.isEmpty())
+        {
+          pageConsumer.accept(page);
+        }
+
+        SimplePagedResultsControl responseControl =
+          SimplePagedResultsControl.get(sourceSearchResult);
+        morePages = responseControl != null
+          && responseControl.moreResultsToReturn();
+
+        if(morePages)
+        {
+          resumeCookie = responseControl.getCookie();
+        }
+      }
+
+      reusable = true;
+    }
+    finally
+    {
+      if(connection != null)
+      {
+        releaseConnection(connection, reusable);
+      }
+    }
+
+    if(totalSourceEntries == 0)
+    {
+      LOGGER.info("no ldap entries found");
+    }
+    else
+    {
+      LOGGER.
+        info("loaded {} ldap entries", totalSourceEntries);
+    }
+
+    return totalSourceEntries;
+  }
+
+  /**
+   * Reads all entries modified since the given timestamp into the
+   * {@code ldapEntryMap}.
+   * <p>
+   * A search starting at unix time 0 covers the whole directory, so in that
+   * case the {@code ldapUserIds} set is collected in the same pass and a
+   * separate {@link #readAllLdapEntryUIDs()} is not needed.
+   *
+   * @param lastSyncTimestamp lower bound for the modify timestamp filter
+   * @param withAttributes read the configured user attributes or the user id
+   * only
+   *
+   * @throws Throwable on LDAP failures
+   */
+  public void readLdapEntries(
+    ASN1GeneralizedTime lastSyncTimestamp, boolean withAttributes)
+    throws Throwable
+  {
+    readLdapEntries(HighWaterMarks.of(lastSyncTimestamp), withAttributes);
+  }
+
+  /**
+   * Like {@link #readLdapEntries(ASN1GeneralizedTime, boolean)}, but every
+   * partition is searched from its own lower bound. The newest modify
+   * timestamp returned by each partition is recorded in the marks. A
+   * snapshot is read from the lowest lower bound and records nothing.
+   *
+   * @param marks lower bounds for the modify timestamp filter
+   * @param withAttributes read the configured user attributes or the user id
+   * only
+   *
+   * @throws Throwable on LDAP failures
+   */
+  public void readLdapEntries(HighWaterMarks marks, boolean withAttributes)
+    throws Throwable
+  {
+    ldapEntryMap.clear();
+    LdapSnapshot currentSnapshot = snapshot;
+    Map<String, SearchRequest> partitions = currentSnapshot == null
+      ? createPartitions(marks, withAttributes) : null;
+    boolean fullDirectory = partitions != null
+      ? marks.isFullDirectory(partitions.keySet())
+      : isFullDirectory(marks.getMinimumLowerBound());
+    SortedIdSet.Builder userIds = fullDirectory
+      ? userIdNormalizer.sortedIdSetBuilder() : null;
+
+    if(currentSnapshot != null)
+    {
+      currentSnapshot.forEachModifiedSince(marks.getMinimumLowerBound(),
+        (userId, entry) ->
+      {
+        ldapEntryMap.put(userId, entry);
+
+        if(userIds != null)
+        {
+          userIds.add(userId);
+        }
+      });
+      LOGGER.info("loaded {} ldap entries from snapshot", ldapEntryMap.size());
+    }
+    else
+    {
+      startUserDnIndex(userIds != null);
+
+      searchPartitioned(partitions, marks, page ->
+      {
+        for(Entry entry : page)
+        {
+          String userId = normalizedUserId(entry);
+          ldapEntryMap.put(userId, compact(entry));
+          indexUserDn(entry.getDN(), userId);
+
+          if(userIds != null)
+          {
+            userIds.add(userId);
+          }
+        }
+      });
+
+      commitUserDnIndex();
+    }
+
+    if(userIds != null)
+    {
+      replaceLdapUserIds(userIds.build());
+    }
+  }
+
+  /**
+   * Streams all entries modified since the given timestamp to the consumer
+   * without materializing them in the {@code ldapEntryMap}.
+   * <p>
+   * Every partition runs as an asynchronous paged search on its own pooled
+   * connection, at most {@code ldap.partitions.threads} at a time. Entries
+   * are handed over one by one as they are decoded, through a queue holding
+   * at most {@code queueCapacity} pages. The LDAP reads block while the
+   * queue is full, so reads and the consumer overlap and the heap only ever
+   * holds a few pages. Like {@link #readLdapEntries} a search starting at
+   * unix time 0 also collects the {@code ldapUserIds} set.
+   *
+   * @param lastSyncTimestamp lower bound for the modify timestamp filter
+   * @param queueCapacity maximum number of pages waiting for the consumer
+   * @param consumer called on the calling thread for every entry
+   *
+   * @throws Throwable on LDAP failures or if the consumer fails
+   */
+  public void streamLdapEntries(ASN1GeneralizedTime lastSyncTimestamp,
+    int queueCapacity, LdapEntryConsumer consumer)
+    throws Throwable
+  {
+    streamLdapEntries(HighWaterMarks.of(lastSyncTimestamp), queueCapacity,
+      consumer);
+  }
+
+  /**
+   * Like {@link #streamLdapEntries(ASN1GeneralizedTime, int,
+   * LdapEntryConsumer)}, but every partition is searched from its own lower
+   * bound. The newest modify timestamp streamed by each partition is recorded
+   * in the marks. A snapshot is read from the lowest lower bound and records
+   * nothing.
+   *
+   * @param marks lower bounds for the modify timestamp filter
+   * @param queueCapacity maximum number of pages waiting for the consumer
+   * @param consumer called on the calling thread for every entry
+   *
+   * @throws Throwable on LDAP failures or if the consumer fails
+   */
+  public void streamLdapEntries(HighWaterMarks marks, int queueCapacity,
+    LdapEntryConsumer consumer)
+    throws Throwable
+  {
+    LdapSnapshot currentSnapshot = snapshot;
+
+    if(currentSnapshot != null)
+    {
+      ASN1GeneralizedTime lowerBound = marks.getMinimumLowerBound();
+      SortedIdSet.Builder userIds = isFullDirectory(lowerBound)
+        ? userIdNormalizer.sortedIdSetBuilder() : null;
+
+      currentSnapshot.forEachModifiedSince(lowerBound, (userId, entry) ->
+      {
+        if(userIds != null)
+        {
+          userIds.add(userId);
+        }
+        consumer.accept(entry);
+      });
+
+      if(userIds != null)
+      {
+        replaceLdapUserIds(userIds.build());
+      }
+      return;
+    }
+
+    Map<String, SearchRequest> partitions = createPartitions(marks, true);
+    Map<SearchRequest, String> partitionKeys = new IdentityHashMap<>();
+    partitions.forEach((key, partition) -> partitionKeys.put(partition, key));
+    Queue<SearchRequest> pendingPartitions =
+      new ArrayDeque<>(partitions.values());
+    SortedIdSet.Builder userIds = marks.isFullDirectory(partitions.keySet())
+      ? userIdNormalizer.sortedIdSetBuilder() : null;
+
+    BlockingQueue<Object> entryQueue = new ArrayBlockingQueue<>(
+      Math.max(1, queueCapacity) * Math.max(1, pagedResultSize));
+    List<AsyncPagedSearch> runningSearches = new ArrayList<>();
+    int totalEntries = 0;
+    startUserDnIndex(userIds != null);
+
+    try
+    {
+      while( ! pendingPartitions.isEmpty()
+        && runningSearches.size() < Math.max(1, partitionThreads))
+      {
+        runningSearches.add(startAsyncSearch(
+          pendingPartitions.poll(), entryQueue));
+      }
+
+      while( ! runningSearches.isEmpty())
+      {
+        Object item = entryQueue.take();
+
+        if(item instanceof CompactLdapEntry entry)
+        {
+          String userId = normalizedUserId(entry);
+          indexUserDn(entry.getDN(), userId);
+
+          if(userIds != null)
+          {
+            userIds.add(userId);
+          }
+          consumer.accept(entry);
+        }
+        else if(item instanceof AsyncPagedSearch search)
+        {
+          runningSearches.remove(search);
+
+          if(search.getFailure() != null)
+          {
+            releaseConnection(search.getConnection(), false);
+
+            if( ! isRestartable(search.getFailure(), search.getRestarts()))
+            {
+              throw search.getFailure();
+            }
+
+            LOGGER.warn("search base={} failed on {}, {}, restart {} of {}",
+              search.getPartition().getBaseDN(), search.getServer(),
+              search.getFailure().getResultCode(), search.getRestarts() + 1,
+              maxSearchRestarts);
+            totalEntries += search.getEntryCount();
+            runningSearches.add(start(search.restart(acquireConnection())));
+            continue;
+          }
+
+          releaseConnection(search.getConnection(), true);
+          totalEntries += search.getEntryCount();
+          marks.observe(partitionKeys.get(search.getPartition()),
+            search.getNewestModifyTime());
+
+          if( ! pendingPartitions.isEmpty())
+          {
+            runningSearches.add(startAsyncSearch(
+              pendingPartitions.poll(), entryQueue));
+          }
+        }
+      }
+    }
+    finally
+    {
+      for(AsyncPagedSearch search : runningSearches)
+      {
+        search.cancel();
+        releaseConnection(search.getConnection(), false);
+      }
+    }
+
+    LOGGER.info("streamed {} ldap entries", totalEntries);
+    commitUserDnIndex();
+
+    if(userIds != null)
+    {
+      replaceLdapUserIds(userIds.build());
+    }
+  }
+
+  private AsyncPagedSearch startAsyncSearch(SearchRequest partition,
+    BlockingQueue<Object> entryQueue)
+    throws Exception
+  {
+    LOGGER.debug("async search base={} filter={}", partition.getBaseDN(),
+      partition.getFilter());
+    return start(new AsyncPagedSearch(acquireConnection(), partition,
+      pagedResultSize, entryQueue, projectedAttributeNames()));
+  }
+
+  private AsyncPagedSearch start(AsyncPagedSearch search)
+    throws LDAPException
+  {
+    try
+    {
+      search.start();
+    }
+    catch(LDAPException e)
+    {
+      releaseConnection(search.getConnection(), false);
+      throw e;
+    }
+
+    return search;
+  }
+
+  /**
+   * Reads the entries of the given users only. The ids are looked up in
+   * batches with an {@code (|(id=a)(id=b)...)} filter on {@code ldap.user.id},
+   * combined with the configured filter to select the same population as a
+   * full sync. The modify timestamp condition of that filter is satisfied by
+   * every entry.
+   *
+   * @param userIds the user ids to look up
+   * @param consumer called for every entry found
+   *
+   * @return the normalized ids of all entries found
+   *
+   * @throws Throwable on LDAP failures or if the consumer fails
+   */
+  public Set<String> readLdapEntriesByUserIds(Collection<String> userIds,
+    LdapEntryConsumer consumer)
+    throws Throwable
+  {
+    Set<String> foundUserIds = new HashSet<>();
+    LdapSnapshot currentSnapshot = snapshot;
+
+    if(currentSnapshot != null)
+    {
+      for(String id : userIds)
+      {
+        String userId = userIdNormalizer.apply(id);
+        CompactLdapEntry entry = currentSnapshot.get(userId);
+
+        if(entry != null)
+        {
+          foundUserIds.add(userId);
+          consumer.accept(entry);
+        }
+      }
+      return foundUserIds;
+    }
+
+    Filter baseFilter = createSearchRequest(
+      new ASN1GeneralizedTime(0), true).getFilter();
+    List<String> ids = List.copyOf(userIds);
+    int batchSize = Math.max(1, lookupBatchSize);
+
+    for(int from = 0; from < ids.size(); from += batchSize)
+    {
+      List<Filter> idFilters = new ArrayList<>();
+      for(String id : ids.subList(from, Math.min(ids.size(), from + batchSize)))
+      {
+        idFilters.add(Filter.createEqualityFilter(ldapUserId, id));
+      }
+
+      Filter filter = Filter.createANDFilter(
+        baseFilter, Filter.createORFilter(idFilters));
+      LOGGER.debug("filter={}", filter);
+
+      searchPaged(new SearchRequest(ldapBaseDn, SearchScope.SUB, filter,
+        userAttributeNames()), page ->
+      {
+        for(Entry entry : page)
+        {
+          String userId = normalizedUserId(entry);
+          foundUserIds.add(userId);
+          indexUserDn(entry.getDN(), userId);
+          consumer.accept(compact(entry));
+        }
+      });
+    }
+
+    commitUserDnIndex();
+    return foundUserIds;
+  }
+
+  /**
+   * Subscribes to changes of all entries matching the configured filter with
+   * a persistent search and hands every added, modified, renamed or deleted
+   * entry to the consumer. Only changes are returned, not the current
+   * entries.
+   * <p>
+   * {@code listening} is called once the server has received the persistent
+   * search: after the search request, a root DSE read on the same
+   * connection has been answered. Changes made from then on are reported.
+   * If the subscription fails, {@code listening} is not called.
+   * <p>
+   * Blocks on a dedicated connection until the connection is lost, the
+   * consumer fails or {@link #stopListening()} is called. The consumer is
+   * called on the connection reader thread and should not block for long.
+   *
+   * @param listening called when the subscription is in place
+   * @param consumer called for every changed entry
+   *
+   * @throws Throwable on LDAP failures or if the consumer fails
+   */
+  public void listenForChanges(Runnable listening,
+    LdapChangeConsumer consumer)
+    throws Throwable
+  {
+    AtomicReference<Throwable> consumerFailure = new AtomicReference<>();
+    LDAPConnection connection = acquireConnection();
+
+    try
+    {
+      AsyncSearchResultListener listener = new AsyncSearchResultListener()
+      {
+        @Override
+        public void searchEntryReturned(SearchResultEntry entry)
+        {
+          try
+          {
+            EntryChangeNotificationControl control =
+              EntryChangeNotificationControl.get(entry);
+            PersistentSearchChangeType changeType = control != null
+              ? control.getChangeType() : PersistentSearchChangeType.MODIFY;
+            LOGGER.debug("{} {}", changeType, entry.getDN());
+            consumer.accept(changeType, compact(entry));
+          }
+          catch(Throwable t)
+          {
+            consumerFailure.compareAndSet(null, t);
+            connection.close();
+          }
+        }
+
+        @Override
+        public void searchReferenceReturned(SearchResultReference reference)
+        {
+          // referrals are not followed
+        }
+
+        @Override
+        public void searchResultReceived(AsyncRequestID requestId,
+          SearchResult searchResult)
+        {
+          LOGGER.debug("persistent search ended, {}",
+            searchResult.getResultCode());
+        }
+
+      };
+
+      SearchRequest searchRequest = new SearchRequest(listener, ldapBaseDn,
+        SearchScope.SUB,
+        createSearchRequest(new ASN1GeneralizedTime(0), true).getFilter(),
+        userAttributeNames());
+      searchRequest.addControl(new PersistentSearchRequestControl(
+        PersistentSearchChangeType.allChangeTypes(), true, true));
+      searchRequest.setResponseTimeoutMillis(0);
+
+      changeConnection = connection;
+      if(Thread.currentThread().isInterrupted())
+      {
+        return;
+      }
+
+      AsyncRequestID requestId = connection.asyncSearch(searchRequest);
+      connection.getRootDSE();
+
+      if(requestId.isDone())
+      {
+        throw new LDAPException(requestId.get());
+      }
+
+      LOGGER.info("listening for ldap changes");
+      listening.run();
+
+      LDAPResult result = requestId.get();
+
+      if(consumerFailure.get() != null)
+      {
+        throw consumerFailure.get();
+      }
+
+      throw new LDAPException(result);
+    }
+    catch(LDAPException e)
+    {
+      if(consumerFailure.get() != null)
+      {
+        throw consumerFailure.get();
+      }
+      throw e;
+    }
+    finally
+    {
+      changeConnection = null;
+      // a persistent search leaves the connection unusable
+      releaseConnection(connection, false);
+    }
+  }
+
+  /**
+   * Ends a running {@link #listenForChanges(LdapChangeConsumer)}.
+   */
+  public void stopListening()
+  {
+    LDAPConnection connection = changeConnection;
+    if(connection != null)
+    {
+      connection.close();
+    }
+  }
+
+  /**
+   * Reads the ids of all users in the directory into the {@code ldapUserIds}
+   * set. Only the user id attribute is transferred and no entries are kept.
+   *
+   * @throws Throwable on LDAP failures
+   */
+  public void readAllLdapEntryUIDs()
+    throws Throwable
+  {
+    SortedIdSet.Builder userIds = userIdNormalizer.sortedIdSetBuilder();
+    LdapSnapshot currentSnapshot = snapshot;
+
+    if(currentSnapshot != null)
+    {
+      userIds.addAll(currentSnapshot.getUserIds());
+      replaceLdapUserIds(userIds.build());
+      return;
+    }
+
+    startUserDnIndex(true);
+
+    searchPartitioned(createSearchRequest(new ASN1GeneralizedTime(0), false),
+      page ->
+    {
+      for(Entry entry : page)
+      {
+        String userId = normalizedUserId(entry);
+        userIds.add(userId);
+        indexUserDn(entry.getDN(), userId);
+      }
+    });
+
+    commitUserDnIndex();
+    replaceLdapUserIds(userIds.build());
+  }
+
+  /**
+   * @return {@code true} if deleted users are detected from the changelog,
+   * never while reading from a snapshot
+   */
+  public boolean isChangelogEnabled()
+  {
+    return changelogEnabled && snapshot == null;
+  }
+
+  /**
+   * Reads the range of change numbers held by the changelog from the root
+   * DSE.
+   *
+   * @return the range, {@code null} if the server publishes no changelog
+   *
+   * @throws Throwable on LDAP failures
+   */
+  public ChangelogRange readChangelogRange()
+    throws Throwable
+  {
+    Entry rootDse = getConnectionPool().getEntry(
+      "", "firstChangeNumber", "lastChangeNumber");
+
+    if(rootDse == null
+      || rootDse.getAttributeValueAsLong("lastChangeNumber") == null)
+    {
+      return null;
+    }
+
+    Long first = rootDse.getAttributeValueAsLong("firstChangeNumber");
+    long last = rootDse.getAttributeValueAsLong("lastChangeNumber");
+    return new ChangelogRange(first != null ? first : 0, last);
+  }
+
+  /**
+   * Reads the deletes, renames and modifications with a change number
+   * between {@code fromChangeNumber} and {@code toChangeNumber} from the
+   * changelog ({@code ldap.changelog.base-dn}) and maps their target DNs to
+   * user ids.
+   * <p>
+   * Changelog records carry the DN of an entry but not its user id, so the
+   * ids are looked up in a persistent DN index maintained by every read of
+   * user entries and rebuilt by every full read. Modifications are included
+   * because an entry may no longer match {@code ldap.filter} afterwards.
+   * Changes of entries which were never read, e.g. groups, are skipped.
+   *
+   * @param fromChangeNumber first change number, inclusive
+   * @param toChangeNumber last change number, inclusive
+   *
+   * @return the normalized ids of all users affected by a change
+   *
+   * @throws Throwable on LDAP failures
+   */
+  public Set<String> readChangedUserIds(
+    long fromChangeNumber, long toChangeNumber)
+    throws Throwable
+  {
+    Set<String> changedUserIds = new HashSet<>();
+    KeyValueStore<String> index = getUserDnIndex();
+    Filter filter = Filter.createANDFilter(
+      Filter.createGreaterOrEqualFilter("changeNumber",
+        Long.toString(fromChangeNumber)),
+      Filter.createLessOrEqualFilter("changeNumber",
+        Long.toString(toChangeNumber)),
+      Filter.createORFilter(
+        Filter.createEqualityFilter("changeType", "delete"),
+        Filter.createEqualityFilter("changeType", "modrdn"),
+        Filter.createEqualityFilter("changeType", "moddn"),
+        Filter.createEqualityFilter("changeType", "modify")));
+    LOGGER.debug("changelog filter={}", filter);
+
+    searchPaged(new SearchRequest(changelogBaseDn, SearchScope.ONE, filter,
+      "changeNumber", "targetDN"), page ->
+    {
+      for(Entry entry : page)
+      {
+        Long changeNumber = entry.getAttributeValueAsLong("changeNumber");
+        String targetDn = entry.getAttributeValue("targetDN");
+
+        // servers without integer ordering for changeNumber over-select
+        if(changeNumber != null && changeNumber >= fromChangeNumber
+          && changeNumber <= toChangeNumber && targetDn != null)
+        {
+          String userId = index.get(normalizedDn(targetDn));
+
+          if(userId != null)
+          {
+            changedUserIds.add(userId);
+          }
+        }
+      }
+    });
+
+    LOGGER.info("{} ldap user(s) changed, deleted or renamed since change "
+      + "number {}", changedUserIds.size(), fromChangeNumber);
+    return changedUserIds;
+  }
 
-  @Value("${ldap.host.ssl}")
-  private boolean ldapSslEnabled;
+  /**
+   * Range of change numbers held by the changelog.
+   *
+   * @param first the oldest change number still available
+   * @param last the newest change number
+   */
+  public record ChangelogRange(long first, long last)
+  {
+  }
 
-  @Value("${ldap.base-dn}")
-  private String ldapBaseDn;
+  /**
+   * Writes the configured attribute projection of all users, plus their
+   * modify timestamp, to the snapshot file {@code ldap.snapshot.file}.
+   *
+   * @return the number of entries written
+   *
+   * @throws Throwable on LDAP or file failures
+   */
+  public int writeSnapshot()
+    throws Throwable
+  {
+    snapshotLock.lock();
+    try
+    {
+      ASN1GeneralizedTime createdTimestamp = new ASN1GeneralizedTime();
+      createSnapshotDirectory();
 
-  @Value("${ldap.bind.dn}")
-  private String ldapBindDn;
+      try(LdapSnapshot.Writer writer = new LdapSnapshot.Writer(
+        snapshotFile, createdTimestamp, snapshotAttributeNames()))
+      {
+        searchPartitioned(
+          createSnapshotSearchRequest(new ASN1GeneralizedTime(0)), page ->
+        {
+          for(Entry entry : page)
+          {
+            writer.add(normalizedUserId(entry), compact(entry),
+              modifyTime(entry));
+          }
+        });
 
-  @EncryptedValue("${ldap.bind.password}")
-  private String ldapBindPassword;
+        int entryCount = writer.commit();
+        LOGGER.info("wrote {} entries to ldap snapshot {}", entryCount,
+          snapshotFile.getAbsolutePath());
+        return entryCount;
+      }
+    }
+    finally
+    {
+      snapshotLock.unlock();
+    }
+  }
 
-  @Value("${ldap.scope}")
-  private String ldapScope;
+  /**
+   * Brings the snapshot file up to date. Only the entries modified since the
+   * newest server modify timestamp in the snapshot are read with all
+   * attributes, so the local clock does not matter; a scan of the user
+   * ids drops deleted users. Unchanged records are copied without decoding.
+   * Without a snapshot, or if the configured attributes changed, the whole
+   * snapshot is written again.
+   *
+   * @return the number of entries in the snapshot
+   *
+   * @throws Throwable on LDAP or file failures
+   */
+  public int refreshSnapshot()
+    throws Throwable
+  {
+    snapshotLock.lock();
+    try
+    {
+      if( ! snapshotFile.exists())
+      {
+        return writeSnapshot();
+      }
 
-  @Value("${ldap.filter}")
-  private String ldapFilter;
+      boolean attributesChanged;
 
-  @Getter
-  @Value("${ldap.user.id}")
-  private String ldapUserId;
+      try(LdapSnapshot previous = LdapSnapshot.open(snapshotFile))
+      {
+        attributesChanged =
+          ! previous.getAttributeNames().equals(snapshotAttributeNames());
+      }
 
-  @Value("${ldap.user.attributes}")
-  private String[] ldapUserAttributeNames;
+      if(attributesChanged)
+      {
+        LOGGER.info("ldap user attributes changed, rewriting snapshot");
+        return writeSnapshot();
+      }
 
-  private LDAPConnection getConnection()
-    throws Exception
-  {
-    LOGGER.debug("host={}", ldapHostname);
-    LOGGER.debug("port={}", ldapPort);
-    LOGGER.debug("ssl={}", ldapSslEnabled);
-    LOGGER.debug("bind dn={}", ldapBindDn);
-    LOGGER.trace("bind pw={}", ldapBindPassword);
+      Set<String> userIds = new HashSet<>();
+      Set<String> changedUserIds = new HashSet<>();
+      ASN1GeneralizedTime createdTimestamp = new ASN1GeneralizedTime();
 
-    LDAPConnection ldapConnection;
+      searchPartitioned(createSearchRequest(new ASN1GeneralizedTime(0), false),
+        page ->
+      {
+        for(Entry entry : page)
+        {
+          userIds.add(normalizedUserId(entry));
+        }
+      });
 
-    LDAPConnectionOptions options = new LDAPConnectionOptions();
-    if(ldapSslEnabled)
-    {
-      ldapConnection = new LDAPConnection(createSSLSocketFactory(), options,
-        ldapHostname, ldapPort,
-        ldapBindDn,
-        ldapBindPassword);
+      try(LdapSnapshot.Writer writer = new LdapSnapshot.Writer(
+        snapshotFile, createdTimestamp, snapshotAttributeNames()))
+      {
+        int unchanged;
+        int previousCount;
+
+        // the previous snapshot is released before the writer replaces it
+        try(LdapSnapshot previous = LdapSnapshot.open(snapshotFile))
+        {
+          searchPartitioned(
+            createSnapshotSearchRequest(previous.getHighWaterMark()), page ->
+          {
+            for(Entry entry : page)
+            {
+              String userId = normalizedUserId(entry);
+              changedUserIds.add(userId);
+              writer.add(userId, compact(entry), modifyTime(entry));
+            }
+          });
+
+          unchanged = previous.copyTo(writer, userId ->
+            userIds.contains(userId) && ! changedUserIds.contains(userId));
+          previousCount = previous.getEntryCount();
+        }
+
+        int entryCount = writer.commit();
+        LOGGER.info("refreshed ldap snapshot {}, {} changed and {} unchanged "
+          + "entries, {} before", snapshotFile.getAbsolutePath(),
+          changedUserIds.size(), unchanged, previousCount);
+        return entryCount;
+      }
     }
-    else
+    finally
     {
-      ldapConnection = new LDAPConnection(options,
-        ldapHostname, ldapPort,
-        ldapBindDn,
-        ldapBindPassword);
+      snapshotLock.unlock();
     }
-    ldapConnection.setConnectionName(ldapHostname);
-    return ldapConnection;
   }
 
-  private SSLSocketFactory createSSLSocketFactory()
-    throws
-    GeneralSecurityException
+  /**
+   * Serves all user reads from the snapshot file until
+   * {@link #closeSnapshot()}, the LDAP server is not contacted for them.
+   *
+   * @throws IOException if the snapshot can not be read
+   */
+  public void openSnapshot()
+    throws IOException
   {
-    SSLUtil sslUtil = new SSLUtil(new TrustAllTrustManager());
-    return sslUtil.createSSLSocketFactory();
+    snapshotLock.lock();
+    try
+    {
+      LdapSnapshot opened = LdapSnapshot.open(snapshotFile);
+
+      if( ! opened.getAttributeNames().equals(snapshotAttributeNames()))
+      {
+        LOGGER.warn("ldap snapshot has attributes {}, configured are {}",
+          opened.getAttributeNames(), snapshotAttributeNames());
+      }
+
+      LOGGER.info("reading ldap users from snapshot {} of {}, {} entries",
+        snapshotFile.getAbsolutePath(),
+        opened.getCreatedTimestamp().getStringRepresentation(),
+        opened.getEntryCount());
+      closeSnapshot();
+      snapshot = opened;
+    }
+    finally
+    {
+      snapshotLock.unlock();
+    }
   }
 
-  private void printLdapEntriesMap()
+  public void closeSnapshot()
   {
-    ldapEntryMap.forEach((k, v) ->
+    snapshotLock.lock();
+    try
     {
-      System.out.println(k + " = " + v);
-    });
+      if(snapshot != null)
+      {
+        snapshot.close();
+        snapshot = null;
+      }
+    }
+    finally
+    {
+      snapshotLock.unlock();
+    }
   }
 
-  public void readLdapEntries(
-    ASN1GeneralizedTime lastSyncTimestamp, boolean withAttributes)
-    throws Throwable
+  private List<String> snapshotAttributeNames()
   {
-    ldapEntryMap.clear();
+    return List.of(withModifyTimestamp(userAttributeNames()));
+  }
 
-    String filter = new MessageFormat(
-      ldapFilter).format(new Object[]
+  ///////////////////////////////////////////////////////////////////////////
+  // user attributes
+  /**
+   * Returns the configured {@code ldap.user.attributes} without the denied
+   * ones. {@code *}, {@code +}, attributes with options like
+   * {@code ;binary} and the names of {@code ldap.user.denied-attributes}
+   * are never requested.
+   *
+   * @return the configured attribute names that may be requested
+   */
+  public List<String> getConfiguredAttributeNames()
+  {
+    List<String> names = new ArrayList<>();
+
+    for(String name : ldapUserAttributeNames)
     {
-      lastSyncTimestamp.toString()
-    });
+      name = name.trim();
 
-    LOGGER.debug("filter={}", filter);
+      if(name.isEmpty())
+      {
+        continue;
+      }
+
+      if(isDeniedAttribute(name))
+      {
+        LOGGER.warn("ldap.user.attributes: '{}' is denied and not requested",
+          name);
+        continue;
+      }
+
+      names.add(name);
+    }
+
+    return names;
+  }
 
-    try(LDAPConnection connection = getConnection())
+  /**
+   * @param name an attribute name
+   *
+   * @return {@code true} if the attribute must never be requested
+   */
+  public boolean isDeniedAttribute(String name)
+  {
+    if(name.equals("*") || name.equals("+") || name.indexOf(';') >= 0)
     {
-      SearchRequest searchRequest;
+      return true;
+    }
 
-      if(withAttributes)
+    for(String denied : deniedAttributeNames)
+    {
+      if(denied.trim().equalsIgnoreCase(name))
       {
-        searchRequest = new SearchRequest(
-          ldapBaseDn, SearchScope.SUB, filter,
-          ldapUserAttributeNames);
+        return true;
       }
-      else
+    }
+
+    return false;
+  }
+
+  /**
+   * Reads the attribute names recorded by {@code analyzeLdapAttributes}.
+   *
+   * @return the lower case names or {@code null} if there is no file
+   *
+   * @throws IOException if the file can not be read
+   */
+  public Set<String> readObservedAttributeNames()
+    throws IOException
+  {
+    if( ! observedAttributesFile.exists())
+    {
+      return null;
+    }
+
+    Set<String> names = new TreeSet<>();
+
+    for(String line : Files.readAllLines(observedAttributesFile.toPath()))
+    {
+      line = line.trim();
+      if( ! line.isEmpty() && ! line.startsWith("#"))
       {
-        searchRequest = new SearchRequest(
-          ldapBaseDn, SearchScope.SUB, filter,
-          ldapUserId);
+        names.add(line.toLowerCase());
       }
+    }
 
-      int totalSourceEntries = 0;
-      ASN1OctetString resumeCookie = null;
-      SimplePagedResultsControl responseControl = null;
+    return names;
+  }
 
-      // int pagedResultSize = ldapConfig.getPagedResultSize() > 0
-      //   ? ldapConfig.getPagedResultSize() : 1000;
-      int pagedResultSize = 1000;
+  /**
+   * Writes the attribute names read by the mapping script, one per line,
+   * for {@code ldap.user.observed-attributes.restrict}.
+   *
+   * @param names the attribute names
+   *
+   * @return the written file
+   *
+   * @throws IOException if the file can not be written
+   */
+  public File writeObservedAttributeNames(Collection<String> names)
+    throws IOException
+  {
+    File directory = observedAttributesFile.getAbsoluteFile().getParentFile();
 
-      do
-      {
-        searchRequest.setControls(
-          new SimplePagedResultsControl(pagedResultSize, resumeCookie));
+    if(directory != null && ! directory.exists())
+    {
+      directory.mkdirs();
+    }
 
-        SearchResult sourceSearchResult = connection.search(searchRequest);
+    List<String> lines = new ArrayList<>();
+    lines.add("# attributes read by the mapping script, "
+      + new ASN1GeneralizedTime().getStringRepresentation());
+    lines.addAll(new TreeSet<>(names));
+    Files.write(observedAttributesFile.toPath(), lines);
 
-        int sourceEntries = sourceSearchResult.getEntryCount();
-        totalSourceEntries += sourceEntries;
+    synchronized(this)
+    {
+      requestedAttributeNames = null;
+      projectedAttributeNames = null;
+    }
 
-        if(sourceEntries > 0)
+    return observedAttributesFile;
+  }
+
+  /**
+   * Returns the user attributes requested by all searches, the configured
+   * ones reduced to those observed by {@code analyzeLdapAttributes} if
+   * {@code ldap.user.observed-attributes.restrict} is set. The user id is
+   * always requested.
+   */
+  private synchronized String[] userAttributeNames()
+  {
+    if(requestedAttributeNames == null)
+    {
+      List<String> names = getConfiguredAttributeNames();
+      Set<String> observed = null;
+
+      if(restrictToObservedAttributes)
+      {
+        try
         {
-          for(Entry entry : sourceSearchResult.getSearchEntries())
-          {
-            ldapEntryMap.put(
-              entry.getAttributeValue(
-                ldapUserId).trim().toLowerCase(), entry);
-          }
+          observed = readObservedAttributeNames();
+        }
+        catch(IOException e)
+        {
+          LOGGER.error("reading observed attributes failed, requesting all "
+            + "configured attributes", e);
+        }
 
-          responseControl = SimplePagedResultsControl.get(sourceSearchResult);
+        if(observed == null)
+        {
+          LOGGER.warn("{} not found, requesting all configured attributes",
+            observedAttributesFile.getPath());
+        }
+      }
 
-          if(responseControl != null)
+      if(observed != null)
+      {
+        List<String> unused = new ArrayList<>();
+
+        for(String name : names)
+        {
+          if( ! observed.contains(name.toLowerCase())
+            && ! name.equalsIgnoreCase(ldapUserId))
           {
-            resumeCookie = responseControl.getCookie();
+            unused.add(name);
           }
         }
+
+        names.removeAll(unused);
+        LOGGER.info("requesting {} of {} configured ldap attributes, not "
+          + "read by the mapping script: {}", names.size(),
+          names.size() + unused.size(), unused);
       }
-      while(responseControl != null && responseControl.moreResultsToReturn());
 
-      if(totalSourceEntries == 0)
+      if(names.stream().noneMatch(ldapUserId :: equalsIgnoreCase))
       {
-        LOGGER.info("no ldap entries found");
+        names.add(ldapUserId);
       }
-      else
+
+      requestedAttributeNames = names.toArray(String[] :: new);
+    }
+
+    return requestedAttributeNames;
+  }
+
+  /**
+   * Returns the lower case names of the requested user attributes, the only
+   * ones kept in a {@link CompactLdapEntry}.
+   */
+  private synchronized Set<String> projectedAttributeNames()
+  {
+    if(projectedAttributeNames == null)
+    {
+      Set<String> names = new HashSet<>();
+
+      for(String name : userAttributeNames())
       {
-        LOGGER.
-          info("loaded {} ldap entries", totalSourceEntries);
+        names.add(name.toLowerCase());
       }
+
+      projectedAttributeNames = Set.copyOf(names);
+    }
+
+    return projectedAttributeNames;
+  }
+
+  private CompactLdapEntry compact(Entry entry)
+  {
+    return CompactLdapEntry.of(entry, projectedAttributeNames());
+  }
+
+  private static String[] withModifyTimestamp(String[] attributeNames)
+  {
+    List<String> names = new ArrayList<>(List.of(attributeNames));
+
+    if(names.stream().noneMatch("modifyTimestamp" :: equalsIgnoreCase))
+    {
+      names.add("modifyTimestamp");
     }
+
+    return names.toArray(String[] :: new);
   }
 
-  public void readAllLdapEntryUIDs()
-    throws Throwable
+  private SearchRequest createSnapshotSearchRequest(
+    ASN1GeneralizedTime lastSyncTimestamp)
+    throws LDAPException
+  {
+    SearchRequest searchRequest = createSearchRequest(lastSyncTimestamp, true);
+    searchRequest.setAttributes(snapshotAttributeNames());
+    return searchRequest;
+  }
+
+  private void createSnapshotDirectory()
+  {
+    File directory = snapshotFile.getAbsoluteFile().getParentFile();
+
+    if(directory != null && ! directory.exists())
+    {
+      directory.mkdirs();
+    }
+  }
+
+  private static long modifyTime(Entry entry)
+  {
+    Date modifyTimestamp = entry.getAttributeValueAsDate("modifyTimestamp");
+    return modifyTimestamp != null ? modifyTimestamp.getTime() : -1;
+  }
+
+  private synchronized KeyValueStore<String> getUserDnIndex()
+  {
+    if(userDnIndex == null)
+    {
+      userDnIndex = keyValueStoreHandler.openMap("ldapUserDns");
+    }
+    return userDnIndex;
+  }
+
+  /**
+   * Prepares the DN index for a read, a read of the whole directory replaces
+   * all DNs.
+   */
+  private void startUserDnIndex(boolean rebuild)
+  {
+    if(changelogEnabled && rebuild)
+    {
+      getUserDnIndex().wipeAll();
+    }
+  }
+
+  private void indexUserDn(String dn, String userId)
+  {
+    if(changelogEnabled && userId != null)
+    {
+      getUserDnIndex().put(normalizedDn(dn), userId);
+    }
+  }
+
+  private void commitUserDnIndex()
+  {
+    if(changelogEnabled)
+    {
+      getUserDnIndex().commit();
+    }
+  }
+
+  private static String normalizedDn(String dn)
+  {
+    try
+    {
+      return DN.normalize(dn);
+    }
+    catch(LDAPException e)
+    {
+      return dn.trim().toLowerCase();
+    }
+  }
+
+  /**
+   * @return the normalized ids of all users in the directory, read by the
+   * last full read, used for delete detection
+   */
+  public SortedIdSet getLdapUserIds()
+  {
+    SortedIdSet userIds = ldapUserIds;
+    return userIds != null ? userIds : SortedIdSet.empty(userIdNormalizer);
+  }
+
+  private void replaceLdapUserIds(SortedIdSet userIds)
+  {
+    SortedIdSet previous = ldapUserIds;
+    ldapUserIds = userIds;
+    LOGGER.debug("{} ldap user ids{}", userIds.getSize(),
+      userIds.isSpilled() ? ", spilled to disk" : "");
+
+    if(previous != null)
+    {
+      previous.close();
+    }
+  }
+
+  private String normalizedUserId(Entry entry)
+  {
+    return userIdNormalizer.apply(entry.getAttributeValue(ldapUserId));
+  }
+
+  private String normalizedUserId(CompactLdapEntry entry)
+  {
+    return userIdNormalizer.apply(entry.getAttributeValue(ldapUserId));
+  }
+
+  private static boolean isFullDirectory(ASN1GeneralizedTime lastSyncTimestamp)
   {
-    readLdapEntries(new ASN1GeneralizedTime(0), false);
+    return lastSyncTimestamp.getTime() == 0;
   }
 
   public void test()
@@ -220,7 +2105,7 @@ public class LdapHandler
     LOGGER.debug("user id={}", ldapUserId);
 
     readAllLdapEntryUIDs();
-    printLdapEntriesMap();
+    LOGGER.info("{} ldap user ids", getLdapUserIds().getSize());
     readLdapEntries(new ASN1GeneralizedTime(0), true);
     printLdapEntriesMap();
   }
@@ -229,8 +2114,10 @@ public class LdapHandler
     throws Throwable
   {
     ldapRoleGroupsEntryMap.clear();
+    LDAPConnection connection = acquireConnection();
+    boolean reusable = false;
 
-    try(LDAPConnection connection = getConnection())
+    try
     {
       SearchRequest searchRequest;
 
@@ -246,14 +2133,10 @@ public class LdapHandler
       ASN1OctetString resumeCookie = null;
       SimplePagedResultsControl responseControl = null;
 
-      // int pagedResultSize = ldapConfig.getPagedResultSize() > 0
-      //   ? ldapConfig.getPagedResultSize() : 1000;
-      int pagedResultSize = 1000;
-
       do
       {
-        searchRequest.setControls(
-          new SimplePagedResultsControl(pagedResultSize, resumeCookie));
+        searchRequest.setControls(new SimplePagedResultsControl(
+          Math.max(1, pagedResultSize), resumeCookie));
 
         SearchResult sourceSearchResult = connection.search(searchRequest);
 
@@ -319,13 +2202,42 @@ public class LdapHandler
         LOGGER.
           info("loaded {} roles/groups entries", ldapRoleGroupsEntryMap.size());
       }
+      reusable = true;
+    }
+    finally
+    {
+      releaseConnection(connection, reusable);
     }
 
   }
 
 
+  private volatile LDAPConnection changeConnection;
+
+  private volatile LDAPConnectionPool connectionPool;
+
+  private KeyValueStore<String> userDnIndex;
+
+  private volatile LdapSnapshot snapshot;
+
+  /**
+   * Serializes writing, refreshing, opening and closing the snapshot.
+   */
+  private final ReentrantLock snapshotLock = new ReentrantLock();
+
+  private String[] requestedAttributeNames;
+
+  private Set<String> projectedAttributeNames;
+
+  private List<PartitionRange> partitionRanges;
+
+  private volatile boolean partitionCoverageVerified = true;
+
   @Getter
-  private final HashMap<String, Entry> ldapEntryMap = new HashMap<>();
+  private final HashMap<String, CompactLdapEntry> ldapEntryMap =
+    new HashMap<>();
+
+  private volatile SortedIdSet ldapUserIds;
 
   @Getter
   private final HashMap<String, String> ldapRoleGroupsEntryMap = new HashMap<>();
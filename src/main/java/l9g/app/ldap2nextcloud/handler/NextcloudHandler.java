@@ -16,8 +16,10 @@
 package l9g.app.ldap2nextcloud.handler;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import l9g.app.ldap2nextcloud.config.Config;
 import l9g.app.ldap2nextcloud.model.NextcloudCreateUser;
 import lombok.Getter;
@@ -26,7 +28,12 @@ import l9g.app.ldap2nextcloud.client.NextcloudClient;
 import l9g.app.ldap2nextcloud.config.AttributesMapService;
 import l9g.app.ldap2nextcloud.model.NextcloudGroup;
 import l9g.app.ldap2nextcloud.model.NextcloudUpdateUser;
+import l9g.app.ldap2nextcloud.model.PlanOperation;
+import l9g.app.ldap2nextcloud.model.SyncScope;
+import l9g.app.ldap2nextcloud.model.UserDiff;
+import l9g.app.ldap2nextcloud.util.PlanFile;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 
@@ -48,6 +55,8 @@ public class NextcloudHandler
 
   private final KeyValueStoreHandler keyValueStoreHandler;
 
+  private final NextcloudUserCacheHandler userCacheHandler;
+
   @Value("${nextcloud.quota-default:nolimit}")
   String quotaDefault;
 
@@ -61,10 +70,56 @@ public class NextcloudHandler
   {
     log.debug("readNextcloudGroups");
     nextcloudGroupIds.clear();
+    groupCreations.clear();
     nextcloudGroupIds.addAll(nextcloudClient.listGroups());
+    nextcloudGroupsLoaded = true;
     log.info("loaded {} nextcloud groups", nextcloudGroupIds.size());
   }
 
+  /**
+   * Forgets all known groups without listing them again. Groups are then
+   * looked up one by one before they are created, which is cheaper when only
+   * a few users are synced.
+   */
+  public void resetNextcloudGroups()
+  {
+    log.debug("resetNextcloudGroups");
+    nextcloudGroupIds.clear();
+    groupCreations.clear();
+    nextcloudGroupsLoaded = false;
+  }
+
+  /**
+   * Reads the current members of a group.
+   *
+   * @param groupId the group id
+   *
+   * @return the member ids
+   *
+   * @throws NextcloudOperationException if the members could not be read
+   */
+  public List<String> readGroupMembers(String groupId)
+  {
+    List<String> members;
+
+    try
+    {
+      members = nextcloudClient.listGroupMembers(groupId);
+    }
+    catch(Throwable t)
+    {
+      throw failed("*** READ GROUP MEMBERS FAILED *** ", t);
+    }
+
+    if(members == null)
+    {
+      throw new NextcloudOperationException(
+        "*** READ GROUP MEMBERS FAILED *** " + groupId, null);
+    }
+
+    return members;
+  }
+
   public void readNextcloudUsers()
   {
     log.debug("readNextcloudUsers");
@@ -89,10 +144,17 @@ public class NextcloudHandler
     return user;
   }
 
-  public synchronized NextcloudCreateUser createUser(NextcloudCreateUser user)
+  public NextcloudCreateUser createUser(NextcloudCreateUser user)
   {
     long startTimestamp = System.currentTimeMillis();
-    if(config.isDryRun())
+    if(planFile != null)
+    {
+      PlanOperation operation =
+        new PlanOperation(PlanOperation.Type.CREATE_USER, user.getUserId());
+      operation.setUser(user);
+      planFile.write(operation);
+    }
+    else if(config.isDryRun())
     {
       log.info("CREATE DRY RUN: {}", user);
     }
@@ -114,21 +176,32 @@ public class NextcloudHandler
         updateUser(userId, "locale", user.getLocale());
         updateUser(userId, "language", user.getLanguage());
         updateUser(userId, "phone", user.getPhone());
+        nextcloudUserIds.add(userId);
+        userCacheHandler.putCreated(user);
       }
       catch(Throwable t)
       {
-        delayedErrorExit("*** CREATE USER FAILED *** " + t.getMessage());
+        userCacheHandler.invalidate(user.getUserId());
+        throw failed("*** CREATE USER FAILED *** ", t);
       }
     }
     log.debug("duration : {}ms", System.currentTimeMillis() - startTimestamp);
     return user;
   }
 
-  public synchronized void updateUser(String userId, String key, String value)
+  public void updateUser(String userId, String key, String value)
   {
     if(userId != null && key != null && value != null)
     {
-      if(config.isDryRun())
+      if(planFile != null)
+      {
+        PlanOperation operation =
+          new PlanOperation(PlanOperation.Type.UPDATE_USER, userId);
+        operation.setKey(key);
+        operation.setValue(value);
+        planFile.write(operation);
+      }
+      else if(config.isDryRun())
       {
         log.debug("UPDATE DRY RUN: {},{},{}", userId, key, value);
       }
@@ -137,19 +210,55 @@ public class NextcloudHandler
         try
         {
           log.debug("UPDATE: {}", userId);
-          nextcloudClient.userUpdate(userId, key, value);
+          if(isOk(nextcloudClient.userUpdate(userId, key, value)))
+          {
+            userCacheHandler.updateField(userId, key, value);
+          }
+          else
+          {
+            userCacheHandler.invalidate(userId);
+          }
         }
         catch(Throwable t)
         {
-          t.printStackTrace();
-          delayedErrorExit("*** UPDATE USER KEY FAILED *** " + t.getMessage());
+          userCacheHandler.invalidate(userId);
+          throw failed("*** UPDATE USER KEY FAILED *** ", t);
         }
       }
     }
   }
 
-  public synchronized void updateUser(NextcloudCreateUser user)
+  /**
+   * Updates the Nextcloud user with the values and groups of the mapped user.
+   * Only fields and group memberships that actually differ are written.
+   *
+   * @param user the user mapped from LDAP
+   *
+   * @return the applied differences, or {@code null} on a dry run or if the
+   * user was not found in Nextcloud
+   */
+  public UserDiff updateUser(NextcloudCreateUser user)
   {
+    return updateUser(user, null, SyncScope.ALL);
+  }
+
+  /**
+   * Updates the Nextcloud user with the values and groups of the mapped user.
+   * Only fields and group memberships that actually differ are written.
+   *
+   * @param user the user mapped from LDAP
+   * @param nextcloudUser the current Nextcloud state of the user if already
+   * fetched, {@code null} to read it from the cache or from Nextcloud
+   * @param scope the fields and groups to compare and write
+   *
+   * @return the applied differences, or {@code null} on a dry run or if the
+   * user was not found in Nextcloud
+   */
+  public UserDiff updateUser(NextcloudCreateUser user,
+    NextcloudUpdateUser nextcloudUser, SyncScope scope)
+  {
+    UserDiff diff = null;
+
     if(user != null)
     {
       if(config.isDryRun())
@@ -160,57 +269,118 @@ public class NextcloudHandler
       {
         try
         {
-          log.info("UPDATE: {}", user);
-
           String userId = user.getUserId();
-          NextcloudUpdateUser nextcloudUser = nextcloudClient.findUserById(userId);
+          if(nextcloudUser == null)
+          {
+            nextcloudUser = userCacheHandler.get(userId);
+          }
+          if(nextcloudUser == null)
+          {
+            nextcloudUser = nextcloudClient.findUserById(userId);
+            userCacheHandler.put(nextcloudUser);
+          }
+
           if(nextcloudUser != null)
           {
             log.debug("update user : {}", user);
             log.debug("nextcloud user : {}", nextcloudUser);
 
-            // updateUser(userId, "displayname", user.getDisplayName());
-            updateUser(userId, "address", user.getAddress());
-            updateUser(userId, "email", user.getEmail());
-            updateUser(userId, "phone", user.getPhone());
-            updateUser(userId, "website", user.getWebsite());
-            updateUser(userId, "organisation", user.getOrganisation());
-
-            // check groups to remove from
-            nextcloudUser.getGroups().forEach(group ->
-            {
-              if( ! user.getGroups().contains(group)
-                && attributesMapService.getGroups().containsKey(group)) // remove from configurated groups only
-              {
-                log.debug("REMOVE: user {} from group {}", userId, group);
-                nextcloudClient.userRemoveGroup(userId, group);
-              }
-            });
-
-            // check groups to add to
-            user.getGroups().forEach(group ->
+            diff = UserDiff.compute(user, nextcloudUser,
+              attributesMapService.getGroups().keySet(), scope);
+
+            if(diff.isEmpty())
             {
-              if( ! nextcloudUser.getGroups().contains(group))
-              {
-                log.debug("ADD: user {} to group {}", userId, group);
-                nextcloudClient.userAddGroup(userId, group);
-              }
-            });
+              log.debug("UNCHANGED: {}", userId);
+              return diff;
+            }
+
+            log.info("UPDATE: {} {}", userId, diff);
+
+            // updateUser(userId, "displayname", user.getDisplayName());
+            diff.getChangedFields().forEach((key, value)
+              -> updateUser(userId, key, value));
+
+            // remove from configurated groups only
+            diff.getGroupsToRemove().forEach(group
+              -> removeUserFromGroup(userId, group));
+
+            diff.getGroupsToAdd().forEach(group
+              -> addUserToGroup(userId, group));
           }
         }
         catch(Throwable t)
         {
-          t.printStackTrace();
-          delayedErrorExit("*** UPDATE USER FAILED *** " + t.getMessage());
+          userCacheHandler.invalidate(user.getUserId());
+          throw failed("*** UPDATE USER FAILED *** ", t);
         }
       }
     }
+
+    return diff;
+  }
+
+  public void addUserToGroup(String userId, String group)
+  {
+    if(planFile != null)
+    {
+      PlanOperation operation =
+        new PlanOperation(PlanOperation.Type.ADD_GROUP, userId);
+      operation.setGroupId(group);
+      planFile.write(operation);
+    }
+    else if(config.isDryRun())
+    {
+      log.debug("ADD DRY RUN: user {} to group {}", userId, group);
+    }
+    else
+    {
+      log.debug("ADD: user {} to group {}", userId, group);
+      if(isOk(nextcloudClient.userAddGroup(userId, group)))
+      {
+        userCacheHandler.addGroup(userId, group);
+      }
+      else
+      {
+        userCacheHandler.invalidate(userId);
+      }
+    }
+  }
+
+  public void removeUserFromGroup(String userId, String group)
+  {
+    if(planFile != null)
+    {
+      PlanOperation operation =
+        new PlanOperation(PlanOperation.Type.REMOVE_GROUP, userId);
+      operation.setGroupId(group);
+      planFile.write(operation);
+    }
+    else if(config.isDryRun())
+    {
+      log.debug("REMOVE DRY RUN: user {} from group {}", userId, group);
+    }
+    else
+    {
+      log.debug("REMOVE: user {} from group {}", userId, group);
+      if(isOk(nextcloudClient.userRemoveGroup(userId, group)))
+      {
+        userCacheHandler.removeGroup(userId, group);
+      }
+      else
+      {
+        userCacheHandler.invalidate(userId);
+      }
+    }
   }
 
   public void deleteUser(String user)
   {
 
-    if(config.isDryRun())
+    if(planFile != null)
+    {
+      planFile.write(new PlanOperation(PlanOperation.Type.DELETE_USER, user));
+    }
+    else if(config.isDryRun())
     {
       log.info("DELETE user DRY RUN: {}", user);
     }
@@ -226,21 +396,31 @@ public class NextcloudHandler
       log.info("DELETE user: {}", user);
       try
       {
+        userCacheHandler.invalidate(user);
         nextcloudClient.userDelete(user);
+        nextcloudUserIds.remove(user);
         // nextcloudClient.usersAnonymize(user.getId(), anonymizedUser);
       }
       catch(Throwable t)
       {
-        delayedErrorExit("*** DELETE user FAILED *** " + t.getMessage());
+        throw failed("*** DELETE user FAILED *** ", t);
       }
     }
   }
 
-  public synchronized NextcloudGroup createGroup(String groupId, String description)
+  public NextcloudGroup createGroup(String groupId, String description)
   {
     NextcloudGroup group = new NextcloudGroup(groupId, description);
 
-    if(config.isDryRun())
+    if(planFile != null)
+    {
+      PlanOperation operation =
+        new PlanOperation(PlanOperation.Type.CREATE_GROUP, null);
+      operation.setGroupId(groupId);
+      operation.setValue(description);
+      planFile.write(operation);
+    }
+    else if(config.isDryRun())
     {
       log.info("CREATE DRY RUN: {}", group);
     }
@@ -253,14 +433,14 @@ public class NextcloudHandler
       }
       catch(Throwable t)
       {
-        delayedErrorExit("*** CREATE GROUP FAILED *** " + t.getMessage());
+        throw failed("*** CREATE GROUP FAILED *** ", t);
       }
     }
 
     return group;
   }
 
-  public synchronized void updateGroup(String groupId, String displayName)
+  public void updateGroup(String groupId, String displayName)
   {
     if(config.isDryRun())
     {
@@ -275,12 +455,12 @@ public class NextcloudHandler
       }
       catch(Throwable t)
       {
-        delayedErrorExit("*** UPDATE GROUP FAILED *** " + t.getMessage());
+        throw failed("*** UPDATE GROUP FAILED *** ", t);
       }
     }
   }
 
-  public synchronized void deleteGroup(String groupId)
+  public void deleteGroup(String groupId)
   {
     if(config.isDryRun())
     {
@@ -302,33 +482,100 @@ public class NextcloudHandler
       }
       catch(Throwable t)
       {
-        delayedErrorExit("*** UPDATE GROUP FAILED *** " + t.getMessage());
+        throw failed("*** DELETE GROUP FAILED *** ", t);
       }
     }
   }
 
-  private void delayedErrorExit(String message)
+  /**
+   * Creates the group unless it is already known. Concurrent callers for the
+   * same group id wait for a single creation instead of issuing their own.
+   *
+   * @param groupId the group id
+   * @param displayName the group display name
+   *
+   * @return {@code true} if this call created the group
+   */
+  public boolean createGroupIfAbsent(String groupId, String displayName)
   {
+    if(nextcloudGroupIds.contains(groupId))
+    {
+      return false;
+    }
 
-    log.error(message);
+    CompletableFuture<Boolean> creation = new CompletableFuture<>();
+    CompletableFuture<Boolean> running =
+      groupCreations.putIfAbsent(groupId, creation);
+
+    if(running != null)
+    {
+      running.join();
+      return false;
+    }
 
     try
     {
-      Thread.sleep(30000); // 30s delay to send error mail
+      if( ! nextcloudGroupsLoaded && nextcloudClient.groupExists(groupId))
+      {
+        nextcloudGroupIds.add(groupId);
+        creation.complete(Boolean.FALSE);
+        return false;
+      }
+
+      createGroup(groupId, displayName);
+      nextcloudGroupIds.add(groupId);
+      creation.complete(Boolean.TRUE);
+    }
+    catch(Throwable t)
+    {
+      groupCreations.remove(groupId);
+      creation.completeExceptionally(t);
+      throw t;
     }
-    catch(InterruptedException ex)
+
+    return true;
+  }
+
+  /**
+   * OCS v1 reports success with status code 100, OCS v2 with 200.
+   */
+  private static boolean isOk(int statuscode)
+  {
+    return statuscode == 100 || statuscode == 200;
+  }
+
+  private static NextcloudOperationException failed(String message,
+    Throwable t)
+  {
+    if(t instanceof NextcloudOperationException operationException)
     {
-      // do nothing
+      return operationException;
     }
-    System.exit(-1);
+    return new NextcloudOperationException(message + t.getMessage(), t);
   }
 
   private final ObjectMapper objectMapper = new ObjectMapper();
 
+  /**
+   * If set, all write operations are recorded to this plan instead of being
+   * sent to Nextcloud.
+   */
+  @Getter
+  @Setter
+  private volatile PlanFile planFile;
+
+  private final ConcurrentHashMap<String, CompletableFuture<Boolean>> groupCreations =
+    new ConcurrentHashMap<>();
+
   @Getter
-  private final Set<String> nextcloudUserIds = new HashSet<>();
+  private final Set<String> nextcloudUserIds = ConcurrentHashMap.newKeySet();
 
   @Getter
-  private final Set<String> nextcloudGroupIds = new HashSet<>();
+  private final Set<String> nextcloudGroupIds = ConcurrentHashMap.newKeySet();
+
+  /**
+   * {@code true} if {@code nextcloudGroupIds} holds all Nextcloud groups.
+   */
+  private volatile boolean nextcloudGroupsLoaded;
 
 }
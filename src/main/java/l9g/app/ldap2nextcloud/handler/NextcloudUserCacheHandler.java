@@ -0,0 +1,318 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import l9g.app.ldap2nextcloud.config.Config;
+import l9g.app.ldap2nextcloud.model.NextcloudCreateUser;
+import l9g.app.ldap2nextcloud.model.NextcloudUpdateUser;
+import l9g.app.ldap2nextcloud.util.KeyValueStore;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Persistent write-through cache of the last known Nextcloud state of each
+ * user. Entries are stored as JSON in the {@code nextcloudUsers} map of the
+ * key-value store and expire after the configured TTL.
+ * <p>
+ * Updates of a cached user are atomic, concurrent group and field updates of
+ * the same user do not overwrite each other.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+@Slf4j
+public class NextcloudUserCacheHandler
+{
+  private final Config config;
+
+  private final boolean enabled;
+
+  private final long ttlMillis;
+
+  private final KeyValueStore<String> cacheMap;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  public NextcloudUserCacheHandler(Config config,
+    KeyValueStoreHandler keyValueStoreHandler,
+    @Value("${nextcloud.user-cache.enabled:false}") boolean enabled,
+    @Value("${nextcloud.user-cache.ttl-minutes:1440}") long ttlMinutes)
+  {
+    this.config = config;
+    this.enabled = enabled;
+    this.ttlMillis = TimeUnit.MINUTES.toMillis(ttlMinutes);
+    this.cacheMap = keyValueStoreHandler.openMap("nextcloudUsers");
+    log.debug("user cache enabled = {}, ttl = {}min, {} entries",
+      enabled, ttlMinutes, cacheMap.size());
+  }
+
+  /**
+   * Returns the cached user if present and not expired.
+   *
+   * @param userId the user id
+   *
+   * @return the cached user, or {@code null} if the cache is disabled, a
+   * refresh is forced or no valid entry exists
+   */
+  public NextcloudUpdateUser get(String userId)
+  {
+    if( ! enabled || config.isRefreshUserCache())
+    {
+      return null;
+    }
+
+    CachedUser cachedUser = read(userId);
+
+    if(cachedUser == null
+      || System.currentTimeMillis() - cachedUser.getTimestamp() > ttlMillis)
+    {
+      return null;
+    }
+
+    log.trace("cache hit: {}", userId);
+    return cachedUser.getUser();
+  }
+
+  public void put(NextcloudUpdateUser user)
+  {
+    if(enabled && user != null && user.getUserId() != null)
+    {
+      write(user);
+    }
+  }
+
+  /**
+   * Stores the state of a freshly created user.
+   *
+   * @param createUser the user sent to Nextcloud
+   */
+  public void putCreated(NextcloudCreateUser createUser)
+  {
+    if(enabled)
+    {
+      NextcloudUpdateUser user = new NextcloudUpdateUser();
+      user.setUserId(createUser.getUserId());
+      user.setEmail(createUser.getEmail());
+      user.setDisplayName(createUser.getDisplayName());
+      user.setPhone(createUser.getPhone());
+      user.setAddress(createUser.getAddress());
+      user.setWebsite(createUser.getWebsite());
+      user.setOrganisation(createUser.getOrganisation());
+      user.setLanguage(createUser.getLanguage());
+      user.setLocale(createUser.getLocale());
+      user.setGroups(createUser.getGroups() != null
+        ? new ArrayList<>(createUser.getGroups()) : new ArrayList<>());
+      write(user);
+    }
+  }
+
+  /**
+   * Applies a successful field update to the cached user.
+   *
+   * @param userId the user id
+   * @param key the OCS user key
+   * @param value the new value
+   */
+  public void updateField(String userId, String key, String value)
+  {
+    Consumer<NextcloudUpdateUser> update = switch(key)
+    {
+      case "address" ->
+        user -> user.setAddress(value);
+      case "email" ->
+        user -> user.setEmail(value);
+      case "phone" ->
+        user -> user.setPhone(value);
+      case "website" ->
+        user -> user.setWebsite(value);
+      case "organisation" ->
+        user -> user.setOrganisation(value);
+      case "displayname" ->
+        user -> user.setDisplayName(value);
+      case "language" ->
+        user -> user.setLanguage(value);
+      case "locale" ->
+        user -> user.setLocale(value);
+      default ->
+        null;
+    };
+
+    if(update != null)
+    {
+      modify(userId, update);
+    }
+    else
+    {
+      invalidate(userId);
+    }
+  }
+
+  public void addGroup(String userId, String groupId)
+  {
+    modify(userId, user ->
+    {
+      if( ! user.getGroups().contains(groupId))
+      {
+        user.getGroups().add(groupId);
+      }
+    });
+  }
+
+  public void removeGroup(String userId, String groupId)
+  {
+    modify(userId, user -> user.getGroups().remove(groupId));
+  }
+
+  public void invalidate(String userId)
+  {
+    if(enabled && userId != null)
+    {
+      cacheMap.remove(userId);
+    }
+  }
+
+  public void commit()
+  {
+    if(enabled)
+    {
+      cacheMap.commit();
+    }
+  }
+
+  public int size()
+  {
+    return cacheMap.size();
+  }
+
+  public void wipeAll()
+  {
+    log.info("Wiping all entries from nextcloud user cache.");
+    cacheMap.wipeAll();
+  }
+
+  /**
+   * Atomically applies an update to the cached user, if there is one.
+   */
+  private void modify(String userId, Consumer<NextcloudUpdateUser> update)
+  {
+    if(enabled && userId != null)
+    {
+      cacheMap.compute(userId, (id, json) ->
+      {
+        CachedUser cachedUser = json != null ? decode(id, json) : null;
+
+        if(cachedUser == null)
+        {
+          return null;
+        }
+
+        NextcloudUpdateUser user = cachedUser.getUser();
+        if(user.getGroups() == null)
+        {
+          user.setGroups(new ArrayList<>());
+        }
+        update.accept(user);
+        return encode(user);
+      });
+    }
+  }
+
+  private CachedUser read(String userId)
+  {
+    String json = cacheMap.get(userId);
+
+    if(json != null)
+    {
+      CachedUser cachedUser = decode(userId, json);
+
+      if(cachedUser == null)
+      {
+        cacheMap.remove(userId);
+      }
+
+      return cachedUser;
+    }
+
+    return null;
+  }
+
+  private CachedUser decode(String userId, String json)
+  {
+    try
+    {
+      return objectMapper.readValue(json, CachedUser.class);
+    }
+    catch(JsonProcessingException e)
+    {
+      log.warn("dropping unreadable cache entry for {}", userId);
+      return null;
+    }
+  }
+
+  private void write(NextcloudUpdateUser user)
+  {
+    String json = encode(user);
+
+    if(json != null)
+    {
+      cacheMap.put(user.getUserId(), json);
+    }
+    else
+    {
+      cacheMap.remove(user.getUserId());
+    }
+  }
+
+  /**
+   * @return the JSON of a freshly timestamped cache entry, or {@code null}
+   * if the user can not be serialized
+   */
+  private String encode(NextcloudUpdateUser user)
+  {
+    CachedUser cachedUser = new CachedUser();
+    cachedUser.setTimestamp(System.currentTimeMillis());
+    cachedUser.setUser(user);
+
+    try
+    {
+      return objectMapper.writeValueAsString(cachedUser);
+    }
+    catch(JsonProcessingException e)
+    {
+      log.warn("can not cache user {}: {}", user.getUserId(), e.getMessage());
+      return null;
+    }
+  }
+
+  @Getter
+  @Setter
+  static class CachedUser
+  {
+    private long timestamp;
+
+    private NextcloudUpdateUser user;
+
+  }
+
+}
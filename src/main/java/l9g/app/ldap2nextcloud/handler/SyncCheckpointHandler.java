@@ -0,0 +1,167 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.unboundid.asn1.ASN1Exception;
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import l9g.app.ldap2nextcloud.util.HighWaterMarks;
+import l9g.app.ldap2nextcloud.util.KeyValueStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Records the progress of a running sync in the key-value store, so that a
+ * failed run can be resumed instead of processing every user again.
+ * <p>
+ * The checkpoint holds the start timestamp of the run, the lower bounds used
+ * for the LDAP search partitions, the sync mode and the ids of all users processed so
+ * far. It is removed when the run completes.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+@Slf4j
+public class SyncCheckpointHandler
+{
+  private final static String START_TIMESTAMP = "startTimestamp";
+
+  private final static String LOWER_BOUND = "lowerBound";
+
+  private final static String PARTITION_LOWER_BOUND = "lowerBound:";
+
+  private final static String FULL_SYNC = "fullSync";
+
+  private final KeyValueStore<String> checkpointMap;
+
+  private final KeyValueStore<Long> processedUsersMap;
+
+  private final int commitInterval;
+
+  private final AtomicInteger uncommitted = new AtomicInteger();
+
+  public SyncCheckpointHandler(KeyValueStoreHandler keyValueStoreHandler,
+    @Value("${sync.checkpoint.commit-interval:500}") int commitInterval)
+  {
+    this.checkpointMap = keyValueStoreHandler.openMap("syncCheckpoint");
+    this.processedUsersMap = keyValueStoreHandler.openMap("syncProcessedUsers");
+    this.commitInterval = Math.max(1, commitInterval);
+  }
+
+  /**
+   * Returns {@code true} if an unfinished run left a checkpoint.
+   *
+   * @return {@code true} if a checkpoint exists
+   */
+  public boolean exists()
+  {
+    return checkpointMap.containsKey(START_TIMESTAMP);
+  }
+
+  /**
+   * Starts a new checkpoint, discarding any previous one.
+   *
+   * @param startTimestamp the start of this run
+   * @param lowerBounds the lower bounds of the LDAP modify timestamp filter
+   * @param fullSync {@code true} for a full sync
+   */
+  public void start(ASN1GeneralizedTime startTimestamp,
+    HighWaterMarks lowerBounds, boolean fullSync)
+  {
+    processedUsersMap.wipeAll();
+    checkpointMap.wipeAll();
+    checkpointMap.put(START_TIMESTAMP, startTimestamp.toString());
+    checkpointMap.put(LOWER_BOUND,
+      new ASN1GeneralizedTime(lowerBounds.getLowerBound()).toString());
+    lowerBounds.getPartitionLowerBounds().forEach((partition, lowerBound)
+      -> checkpointMap.put(PARTITION_LOWER_BOUND + partition,
+        new ASN1GeneralizedTime(lowerBound).toString()));
+    checkpointMap.put(FULL_SYNC, Boolean.toString(fullSync));
+    checkpointMap.commit();
+  }
+
+  public ASN1GeneralizedTime getStartTimestamp()
+    throws ASN1Exception
+  {
+    return new ASN1GeneralizedTime(checkpointMap.get(START_TIMESTAMP));
+  }
+
+  public HighWaterMarks getLowerBounds()
+    throws ASN1Exception
+  {
+    Map<String, Long> partitionLowerBounds = new HashMap<>();
+
+    for(String key : checkpointMap.keys())
+    {
+      if(key.startsWith(PARTITION_LOWER_BOUND))
+      {
+        partitionLowerBounds.put(key.substring(PARTITION_LOWER_BOUND.length()),
+          new ASN1GeneralizedTime(checkpointMap.get(key)).getTime());
+      }
+    }
+
+    return new HighWaterMarks(
+      new ASN1GeneralizedTime(checkpointMap.get(LOWER_BOUND)).getTime(),
+      partitionLowerBounds);
+  }
+
+  public boolean isFullSync()
+  {
+    return Boolean.parseBoolean(checkpointMap.get(FULL_SYNC));
+  }
+
+  public int getProcessedUsersCount()
+  {
+    return processedUsersMap.size();
+  }
+
+  public boolean isProcessed(String userId)
+  {
+    return processedUsersMap.containsKey(userId);
+  }
+
+  /**
+   * Marks a user as processed. Changes are committed every
+   * {@code sync.checkpoint.commit-interval} users.
+   *
+   * @param userId the processed user
+   */
+  public void markProcessed(String userId)
+  {
+    processedUsersMap.put(userId, System.currentTimeMillis());
+
+    if(uncommitted.incrementAndGet() >= commitInterval)
+    {
+      uncommitted.set(0);
+      processedUsersMap.commit();
+    }
+  }
+
+  /**
+   * Removes the checkpoint after a completed run.
+   */
+  public void clear()
+  {
+    log.debug("clearing sync checkpoint");
+    uncommitted.set(0);
+    processedUsersMap.wipeAll();
+    checkpointMap.wipeAll();
+  }
+
+}
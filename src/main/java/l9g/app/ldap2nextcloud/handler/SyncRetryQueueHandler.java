@@ -0,0 +1,241 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import l9g.app.ldap2nextcloud.model.RetryItem;
+import l9g.app.ldap2nextcloud.util.KeyValueStore;
+import l9g.app.ldap2nextcloud.util.UserIdNormalizer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Persistent queue of users whose sync failed. Entries are stored as JSON in
+ * the {@code syncRetryQueue} map of the key-value store, keyed by the user
+ * id normalized with {@link UserIdNormalizer}, so an id read from LDAP and
+ * the same id reported by Nextcloud in a different case address one entry.
+ * <p>
+ * Each failure doubles the delay until the next retry, starting at
+ * {@code sync.retry.initial-backoff-minutes} and capped at
+ * {@code sync.retry.max-backoff-minutes}. After
+ * {@code sync.retry.max-attempts} failures a user is no longer retried but
+ * stays in the queue until it is synced successfully or removed.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+@Slf4j
+public class SyncRetryQueueHandler
+{
+  private final KeyValueStore<String> queueMap;
+
+  private final long initialBackoffMillis;
+
+  private final long maxBackoffMillis;
+
+  private final int maxAttempts;
+
+  private final UserIdNormalizer userIdNormalizer;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  public SyncRetryQueueHandler(KeyValueStoreHandler keyValueStoreHandler,
+    UserIdNormalizer userIdNormalizer,
+    @Value("${sync.retry.initial-backoff-minutes:5}") long initialBackoffMinutes,
+    @Value("${sync.retry.max-backoff-minutes:1440}") long maxBackoffMinutes,
+    @Value("${sync.retry.max-attempts:10}") int maxAttempts)
+  {
+    this.queueMap = keyValueStoreHandler.openMap("syncRetryQueue");
+    this.initialBackoffMillis = TimeUnit.MINUTES.toMillis(initialBackoffMinutes);
+    this.maxBackoffMillis = TimeUnit.MINUTES.toMillis(maxBackoffMinutes);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.userIdNormalizer = userIdNormalizer;
+    normalizeKeys();
+    log.debug("{} user(s) in retry queue", queueMap.size());
+  }
+
+  /**
+   * Records a failed operation and schedules its next retry.
+   *
+   * @param userId the user id
+   * @param operation the failed operation
+   * @param error the failure
+   *
+   * @return the queued item
+   */
+  public synchronized RetryItem recordFailure(String userId,
+    RetryItem.Operation operation, Throwable error)
+  {
+    long now = System.currentTimeMillis();
+    RetryItem item = read(userIdNormalizer.apply(userId));
+
+    if(item == null)
+    {
+      item = new RetryItem();
+      item.setUserId(userId);
+      item.setFirstFailure(now);
+    }
+
+    item.setOperation(operation);
+    item.setError(error.getMessage() != null
+      ? error.getMessage() : error.getClass().getName());
+    item.setAttempts(item.getAttempts() + 1);
+    item.setLastFailure(now);
+
+    if(item.getAttempts() >= maxAttempts)
+    {
+      log.error("giving up on user {} after {} attempt(s)", userId,
+        item.getAttempts());
+      item.setNextRetry(Long.MAX_VALUE);
+    }
+    else
+    {
+      long backoff = initialBackoffMillis << Math.min(30, item.getAttempts() - 1);
+      item.setNextRetry(now + Math.min(maxBackoffMillis, backoff));
+    }
+
+    write(item);
+    return item;
+  }
+
+  /**
+   * Removes a user after a successful sync.
+   *
+   * @param userId the user id
+   */
+  public void succeeded(String userId)
+  {
+    String key = userIdNormalizer.apply(userId);
+
+    if(queueMap.containsKey(key))
+    {
+      log.info("user {} synced, removed from retry queue", userId);
+      queueMap.remove(key);
+    }
+  }
+
+  public void remove(String userId)
+  {
+    queueMap.remove(userIdNormalizer.apply(userId));
+  }
+
+  /**
+   * @return all queued users whose next retry is due
+   */
+  public List<RetryItem> due()
+  {
+    long now = System.currentTimeMillis();
+    return list().stream().filter(item -> item.getNextRetry() <= now).toList();
+  }
+
+  public List<RetryItem> list()
+  {
+    List<RetryItem> items = new ArrayList<>();
+
+    for(String key : queueMap.keys())
+    {
+      RetryItem item = read(key);
+      if(item != null)
+      {
+        items.add(item);
+      }
+    }
+
+    return items;
+  }
+
+  public int size()
+  {
+    return queueMap.size();
+  }
+
+  public void commit()
+  {
+    queueMap.commit();
+  }
+
+  public void wipeAll()
+  {
+    log.info("Wiping all entries from retry queue.");
+    queueMap.wipeAll();
+  }
+
+  /**
+   * Moves entries written with raw user ids by older versions, or with
+   * another {@code sync.user-id.normalization}, to their normalized key.
+   */
+  private void normalizeKeys()
+  {
+    int moved = 0;
+
+    for(String key : new ArrayList<>(queueMap.keys()))
+    {
+      RetryItem item = read(key);
+
+      if(item != null && ! key.equals(userIdNormalizer.apply(item.getUserId())))
+      {
+        queueMap.remove(key);
+        write(item);
+        moved ++;
+      }
+    }
+
+    if(moved > 0)
+    {
+      log.info("{} retry queue entries moved to normalized user ids", moved);
+      queueMap.commit();
+    }
+  }
+
+  private RetryItem read(String key)
+  {
+    String json = queueMap.get(key);
+
+    if(json != null)
+    {
+      try
+      {
+        return objectMapper.readValue(json, RetryItem.class);
+      }
+      catch(JsonProcessingException e)
+      {
+        log.warn("dropping unreadable retry queue entry for {}", key);
+        queueMap.remove(key);
+      }
+    }
+
+    return null;
+  }
+
+  private void write(RetryItem item)
+  {
+    try
+    {
+      queueMap.put(userIdNormalizer.apply(item.getUserId()),
+        objectMapper.writeValueAsString(item));
+    }
+    catch(JsonProcessingException e)
+    {
+      log.warn("can not queue user {}: {}", item.getUserId(), e.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.model;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.DN;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.util.StaticUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Read-only projection of an LDAP entry, keeping only its DN and the
+ * returned attribute values. Attribute names are stored lower case and
+ * interned, all values share one flat array. Compared to the UnboundID
+ * {@link Entry} with its parsed attribute and octet string objects this
+ * keeps a fraction of the heap per user.
+ * <p>
+ * Offers the {@link Entry} accessors used by the mapping script; attribute
+ * names are matched ignoring case. Only the requested attributes are kept.
+ * Values are kept as strings; binary values are rejected instead of being
+ * decoded lossily.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public final class CompactLdapEntry
+{
+  private CompactLdapEntry(String dn, String[] names, int[] offsets,
+    String[] values)
+  {
+    this(dn, names, offsets, values, null);
+  }
+
+  private CompactLdapEntry(String dn, String[] names, int[] offsets,
+    String[] values, Set<String> readAttributeNames)
+  {
+    this.dn = dn;
+    this.names = names;
+    this.offsets = offsets;
+    this.values = values;
+    this.readAttributeNames = readAttributeNames;
+  }
+
+  /**
+   * Copies the DN and all attribute values of an entry.
+   *
+   * @param entry the LDAP entry
+   *
+   * @return the compact entry
+   *
+   * @throws IllegalArgumentException if a value is not valid UTF-8
+   */
+  public static CompactLdapEntry of(Entry entry)
+  {
+    return of(entry, null);
+  }
+
+  /**
+   * Copies the DN and the values of the given attributes of an entry. Other
+   * attributes the server returned, e.g. operational ones, are dropped.
+   *
+   * @param entry the LDAP entry
+   * @param attributeNames the lower case names of the attributes to keep,
+   * {@code null} keeps all
+   *
+   * @return the compact entry
+   *
+   * @throws IllegalArgumentException if a kept value is not valid UTF-8,
+   * binary attributes can not be kept as strings
+   */
+  public static CompactLdapEntry of(Entry entry, Set<String> attributeNames)
+  {
+    List<Attribute> attributes = new ArrayList<>();
+    int valueCount = 0;
+
+    for(Attribute attribute : entry.getAttributes())
+    {
+      if(attributeNames == null || attributeNames.contains(
+        attribute.getBaseName().toLowerCase()))
+      {
+        for(byte[] value : attribute.getValueByteArrays())
+        {
+          if( ! StaticUtils.isValidUTF8(value))
+          {
+            throw new IllegalArgumentException("binary value of attribute "
+              + attribute.getName() + " in " + entry.getDN()
+              + ", add it to ldap.user.denied-attributes");
+          }
+        }
+
+        attributes.add(attribute);
+        valueCount += attribute.size();
+      }
+    }
+
+    String[] names = new String[attributes.size()];
+    int[] offsets = new int[attributes.size() + 1];
+    String[] values = new String[valueCount];
+    int index = 0;
+    int valueIndex = 0;
+
+    for(Attribute attribute : attributes)
+    {
+      names[index] = attribute.getName().toLowerCase().intern();
+      offsets[index] = valueIndex;
+      for(String value : attribute.getValues())
+      {
+        values[valueIndex ++] = value;
+      }
+      index ++;
+    }
+
+    offsets[index] = valueIndex;
+    return new CompactLdapEntry(entry.getDN(), names, offsets, values);
+  }
+
+  /**
+   * Decodes an entry written by {@link #toByteArray()}.
+   *
+   * @param buffer positioned at the start of the encoded entry, advanced
+   * behind it
+   *
+   * @return the entry
+   */
+  public static CompactLdapEntry readFrom(ByteBuffer buffer)
+  {
+    String dn = readString(buffer);
+    int attributeCount = buffer.getInt();
+    String[] names = new String[attributeCount];
+    int[] offsets = new int[attributeCount + 1];
+    List<String> values = new ArrayList<>();
+
+    for(int i = 0; i < attributeCount; i ++)
+    {
+      names[i] = readString(buffer).intern();
+      offsets[i] = values.size();
+      int valueCount = buffer.getInt();
+      for(int j = 0; j < valueCount; j ++)
+      {
+        values.add(readString(buffer));
+      }
+    }
+
+    offsets[attributeCount] = values.size();
+    return new CompactLdapEntry(
+      dn, names, offsets, values.toArray(String[] :: new));
+  }
+
+  /**
+   * Encodes the DN and all attribute values as length prefixed UTF-8
+   * strings.
+   *
+   * @return the encoded entry
+   */
+  public byte[] toByteArray()
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+    try(DataOutputStream out = new DataOutputStream(bytes))
+    {
+      writeString(out, dn);
+      out.writeInt(names.length);
+
+      for(int i = 0; i < names.length; i ++)
+      {
+        writeString(out, names[i]);
+        out.writeInt(offsets[i + 1] - offsets[i]);
+        for(int j = offsets[i]; j < offsets[i + 1]; j ++)
+        {
+          writeString(out, values[j]);
+        }
+      }
+    }
+    catch(IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+    throws IOException
+  {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer)
+  {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  public String getDN()
+  {
+    return dn;
+  }
+
+  /**
+   * Returns a view of this entry that adds the lower case name of every
+   * attribute asked for to the given set, whether the entry has it or not.
+   *
+   * @param readAttributeNames receives the attribute names, must be
+   * thread-safe if the view is shared
+   *
+   * @return the recording view, sharing the values of this entry
+   */
+  public CompactLdapEntry recordingReads(Set<String> readAttributeNames)
+  {
+    return new CompactLdapEntry(dn, names, offsets, values, readAttributeNames);
+  }
+
+  /**
+   * @param name the attribute name
+   *
+   * @return the first value of the attribute or {@code null} if the entry
+   * does not have it
+   */
+  public String getAttributeValue(String name)
+  {
+    int index = indexOf(name);
+    return index < 0 || offsets[index] == offsets[index + 1]
+      ? null : values[offsets[index]];
+  }
+
+  /**
+   * @param name the attribute name
+   *
+   * @return all values of the attribute or {@code null} if the entry does
+   * not have it
+   */
+  public String[] getAttributeValues(String name)
+  {
+    int index = indexOf(name);
+    return index < 0
+      ? null : Arrays.copyOfRange(values, offsets[index], offsets[index + 1]);
+  }
+
+  /**
+   * @param name the attribute name
+   *
+   * @return the UTF-8 bytes of the first value of the attribute or
+   * {@code null} if the entry does not have it
+   */
+  public byte[] getAttributeValueBytes(String name)
+  {
+    String value = getAttributeValue(name);
+    return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param name the attribute name
+   *
+   * @return the first value of the attribute parsed as generalized time, or
+   * {@code null} if the entry does not have it or it is not a valid time
+   */
+  public Date getAttributeValueAsDate(String name)
+  {
+    String value = getAttributeValue(name);
+    return value == null ? null : new Attribute(name, value).getValueAsDate();
+  }
+
+  /**
+   * @param name the attribute name
+   *
+   * @return the first value of the attribute parsed as long, or {@code null}
+   * if the entry does not have it or it is not a valid number
+   */
+  public Long getAttributeValueAsLong(String name)
+  {
+    String value = getAttributeValue(name);
+    return value == null ? null : new Attribute(name, value).getValueAsLong();
+  }
+
+  /**
+   * @param name the attribute name
+   *
+   * @return the first value of the attribute parsed like
+   * {@link Entry#getAttributeValueAsBoolean(String)}, or {@code null} if the
+   * entry does not have it or it is not a valid boolean
+   */
+  public Boolean getAttributeValueAsBoolean(String name)
+  {
+    String value = getAttributeValue(name);
+    return value == null
+      ? null : new Attribute(name, value).getValueAsBoolean();
+  }
+
+  /**
+   * @return the parsed DN
+   *
+   * @throws LDAPException if the DN is malformed
+   */
+  public DN getParsedDN()
+    throws LDAPException
+  {
+    return new DN(dn);
+  }
+
+  /**
+   * @return the object classes or {@code null} if they were not read
+   */
+  public String[] getObjectClassValues()
+  {
+    return getAttributeValues("objectClass");
+  }
+
+  /**
+   * @param objectClass the object class, compared ignoring case
+   *
+   * @return {@code true} if the entry has the object class
+   */
+  public boolean hasObjectClass(String objectClass)
+  {
+    return hasAttributeValue("objectClass", objectClass);
+  }
+
+  public boolean hasAttribute(String name)
+  {
+    return indexOf(name) >= 0;
+  }
+
+  /**
+   * @param name the attribute name
+   * @param value the value, compared ignoring case
+   *
+   * @return {@code true} if the attribute has the value
+   */
+  public boolean hasAttributeValue(String name, String value)
+  {
+    int index = indexOf(name);
+
+    if(index >= 0)
+    {
+      for(int i = offsets[index]; i < offsets[index + 1]; i ++)
+      {
+        if(values[i].equalsIgnoreCase(value))
+        {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  private int indexOf(String name)
+  {
+    if(readAttributeNames != null && name != null)
+    {
+      readAttributeNames.add(name.toLowerCase());
+    }
+
+    for(int i = 0; i < names.length; i ++)
+    {
+      if(names[i].equalsIgnoreCase(name))
+      {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder builder = new StringBuilder("CompactLdapEntry(dn=");
+    builder.append(dn);
+
+    for(int i = 0; i < names.length; i ++)
+    {
+      builder.append(", ").append(names[i]).append('=').append(
+        Arrays.toString(Arrays.copyOfRange(values, offsets[i], offsets[i + 1])));
+    }
+
+    return builder.append(')').toString();
+  }
+
+  private final String dn;
+
+  private final String[] names;
+
+  /**
+   * Start of the values of {@code names[i]} in {@code values}, with one
+   * extra element marking the end of the last attribute.
+   */
+  private final int[] offsets;
+
+  private final String[] values;
+
+  /**
+   * Receives the names of all attributes asked for, {@code null} if reads
+   * are not recorded.
+   */
+  private final Set<String> readAttributeNames;
+
+}
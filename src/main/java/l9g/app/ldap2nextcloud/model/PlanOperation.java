@@ -0,0 +1,112 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.util.Map;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * A single Nextcloud write operation of a sync plan, stored as one JSON line.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@ToString
+@Getter
+@Setter
+@NoArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PlanOperation
+{
+  public enum Type
+  {
+    /**
+     * Start timestamp of the planning run, written as first line by older
+     * versions and ignored.
+     */
+    TIMESTAMP,
+    /**
+     * Sync state reached by the planning run, written once as last line. It
+     * becomes the last sync state when every operation was applied.
+     */
+    SYNC_STATE,
+    CREATE_GROUP,
+    CREATE_USER,
+    UPDATE_USER,
+    ADD_GROUP,
+    REMOVE_GROUP,
+    DELETE_USER
+  }
+
+  private Type type;
+
+  private String userId;
+
+  private String groupId;
+
+  /**
+   * OCS user key of an {@code UPDATE_USER} operation.
+   */
+  private String key;
+
+  /**
+   * New value of an {@code UPDATE_USER}, group display name of a
+   * {@code CREATE_GROUP} or the start timestamp of the planning run of a
+   * {@code TIMESTAMP} or {@code SYNC_STATE} operation.
+   */
+  private String value;
+
+  /**
+   * Default modify timestamp lower bound of the next run in milliseconds,
+   * {@code SYNC_STATE} only.
+   */
+  private Long lowerBound;
+
+  /**
+   * Modify timestamp lower bounds of the next run in milliseconds by
+   * partition key, {@code SYNC_STATE} only.
+   */
+  private Map<String, Long> partitionLowerBounds;
+
+  /**
+   * Last changelog change number seen by the planning run,
+   * {@code SYNC_STATE} only.
+   */
+  private Long changeNumber;
+
+  /**
+   * {@code true} if the planning run scanned all LDAP user ids for deleted
+   * users, {@code SYNC_STATE} only.
+   */
+  private Boolean fullScan;
+
+  /**
+   * The complete user of a {@code CREATE_USER} operation.
+   */
+  private NextcloudCreateUser user;
+
+  public PlanOperation(Type type, String userId)
+  {
+    this.type = type;
+    this.userId = userId;
+  }
+
+}
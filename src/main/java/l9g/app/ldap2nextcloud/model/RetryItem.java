@@ -0,0 +1,64 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.model;
+
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * A user whose sync failed, waiting in the retry queue.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@ToString
+@Getter
+@Setter
+@NoArgsConstructor
+public class RetryItem
+{
+  public enum Operation
+  {
+    /**
+     * Create or update the user from its LDAP entry.
+     */
+    SYNC,
+    DELETE
+  }
+
+  private String userId;
+
+  private Operation operation;
+
+  /**
+   * Message of the last failure.
+   */
+  private String error;
+
+  private int attempts;
+
+  private long firstFailure;
+
+  private long lastFailure;
+
+  /**
+   * Earliest time of the next retry, {@code Long.MAX_VALUE} after the last
+   * attempt.
+   */
+  private long nextRetry;
+
+}
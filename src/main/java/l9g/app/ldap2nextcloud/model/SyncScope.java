@@ -0,0 +1,103 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.model;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Selects the user fields and whether group memberships are evaluated and
+ * written by an update. A scoped sync neither creates nor deletes users.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Getter
+@ToString
+public class SyncScope
+{
+  /**
+   * All fields and group memberships, the regular sync.
+   */
+  public final static SyncScope ALL =
+    new SyncScope(Set.copyOf(UserDiff.UPDATE_FIELDS), true);
+
+  private SyncScope(Set<String> fields, boolean groups)
+  {
+    this.fields = fields;
+    this.groups = groups;
+  }
+
+  /**
+   * Creates a scope from the command line selectors. Without any selector the
+   * scope covers everything.
+   *
+   * @param onlyFields comma separated OCS user keys, may be empty
+   * @param onlyGroups evaluate group memberships
+   *
+   * @return the scope
+   *
+   * @throws IllegalArgumentException if a field is not one of
+   * {@link UserDiff#UPDATE_FIELDS}
+   */
+  public static SyncScope of(String onlyFields, boolean onlyGroups)
+  {
+    Set<String> fields = new LinkedHashSet<>();
+
+    if(onlyFields != null)
+    {
+      for(String field : onlyFields.split(","))
+      {
+        field = field.trim().toLowerCase();
+        if( ! field.isEmpty())
+        {
+          if( ! UserDiff.UPDATE_FIELDS.contains(field))
+          {
+            throw new IllegalArgumentException("unknown field '" + field
+              + "', expected one of " + UserDiff.UPDATE_FIELDS);
+          }
+          fields.add(field);
+        }
+      }
+    }
+
+    if(fields.isEmpty() && ! onlyGroups)
+    {
+      return ALL;
+    }
+
+    return new SyncScope(Set.copyOf(fields), onlyGroups);
+  }
+
+  /**
+   * @return the same fields without group memberships
+   */
+  public SyncScope withoutGroups()
+  {
+    return groups ? new SyncScope(fields, false) : this;
+  }
+
+  public boolean isAll()
+  {
+    return this == ALL;
+  }
+
+  private final Set<String> fields;
+
+  private final boolean groups;
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Field by field difference between a mapped user and the user currently
+ * stored in Nextcloud.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Getter
+@ToString
+public class UserDiff
+{
+  /**
+   * OCS user keys compared on update.
+   */
+  public final static List<String> UPDATE_FIELDS = List.of(
+    "address", "email", "phone", "website", "organisation");
+
+  /**
+   * Changed OCS user keys and their new values, in {@link #UPDATE_FIELDS}
+   * order.
+   */
+  private final Map<String, String> changedFields = new LinkedHashMap<>();
+
+  private final List<String> groupsToAdd = new ArrayList<>();
+
+  private final List<String> groupsToRemove = new ArrayList<>();
+
+  /**
+   * Compares the mapped user with the current Nextcloud user.
+   * <p>
+   * A {@code null} value in the mapped user leaves the Nextcloud value
+   * untouched. Otherwise {@code null} and empty values are treated as equal.
+   * Groups are only removed if they are managed by this application.
+   *
+   * @param user the user mapped from LDAP
+   * @param nextcloudUser the current Nextcloud user
+   * @param managedGroups ids of the configured groups
+   *
+   * @return the differences, never {@code null}
+   */
+  public static UserDiff compute(NextcloudCreateUser user,
+    NextcloudUpdateUser nextcloudUser, Set<String> managedGroups)
+  {
+    return compute(user, nextcloudUser, managedGroups, SyncScope.ALL);
+  }
+
+  /**
+   * Compares the fields and groups selected by the scope only.
+   *
+   * @param user the user mapped from LDAP
+   * @param nextcloudUser the current Nextcloud user
+   * @param managedGroups ids of the configured groups
+   * @param scope the fields and groups to compare
+   *
+   * @return the differences, never {@code null}
+   */
+  public static UserDiff compute(NextcloudCreateUser user,
+    NextcloudUpdateUser nextcloudUser, Set<String> managedGroups,
+    SyncScope scope)
+  {
+    UserDiff diff = new UserDiff();
+
+    for(String field : UPDATE_FIELDS)
+    {
+      if( ! scope.getFields().contains(field))
+      {
+        continue;
+      }
+
+      String value = fieldValue(user, field);
+      if(value != null
+        && ! normalize(value).equals(normalize(fieldValue(nextcloudUser, field))))
+      {
+        diff.changedFields.put(field, value);
+      }
+    }
+
+    if( ! scope.isGroups())
+    {
+      return diff;
+    }
+
+    List<String> groups = user.getGroups() != null
+      ? user.getGroups() : List.of();
+    List<String> nextcloudGroups = nextcloudUser.getGroups() != null
+      ? nextcloudUser.getGroups() : List.of();
+
+    nextcloudGroups.forEach(group ->
+    {
+      if( ! groups.contains(group) && managedGroups.contains(group))
+      {
+        diff.groupsToRemove.add(group);
+      }
+    });
+
+    groups.forEach(group ->
+    {
+      if( ! nextcloudGroups.contains(group))
+      {
+        diff.groupsToAdd.add(group);
+      }
+    });
+
+    return diff;
+  }
+
+  public boolean isEmpty()
+  {
+    return changedFields.isEmpty()
+      && groupsToAdd.isEmpty() && groupsToRemove.isEmpty();
+  }
+
+  static String normalize(String value)
+  {
+    return value == null ? "" : value;
+  }
+
+  static String fieldValue(NextcloudCreateUser user, String field)
+  {
+    return switch(field)
+    {
+      case "address" ->
+        user.getAddress();
+      case "email" ->
+        user.getEmail();
+      case "phone" ->
+        user.getPhone();
+      case "website" ->
+        user.getWebsite();
+      case "organisation" ->
+        user.getOrganisation();
+      default ->
+        throw new IllegalArgumentException("unknown field: " + field);
+    };
+  }
+
+  static String fieldValue(NextcloudUpdateUser user, String field)
+  {
+    return switch(field)
+    {
+      case "address" ->
+        user.getAddress();
+      case "email" ->
+        user.getEmail();
+      case "phone" ->
+        user.getPhone();
+      case "website" ->
+        user.getWebsite();
+      case "organisation" ->
+        user.getOrganisation();
+      default ->
+        throw new IllegalArgumentException("unknown field: " + field);
+    };
+  }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.util;
+
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Getter;
+
+/**
+ * Lower bounds of the LDAP modify timestamp filter, one per search
+ * partition, and the newest modify timestamps observed while searching.
+ * <p>
+ * A partition without an own mark uses the default lower bound. After a
+ * run {@link #next(long)} derives the lower bounds of the next run from the
+ * server side modify timestamps, so the client clock only ever limits them.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public final class HighWaterMarks
+{
+  /**
+   * @param lowerBound the default lower bound
+   * @param partitionLowerBounds lower bounds in milliseconds by partition key
+   */
+  public HighWaterMarks(long lowerBound, Map<String, Long> partitionLowerBounds)
+  {
+    this.lowerBound = lowerBound;
+    this.partitionLowerBounds =
+      Collections.unmodifiableMap(new TreeMap<>(partitionLowerBounds));
+  }
+
+  /**
+   * @param lowerBound the lower bound of every partition
+   *
+   * @return marks without partition specific lower bounds
+   */
+  public static HighWaterMarks of(ASN1GeneralizedTime lowerBound)
+  {
+    return new HighWaterMarks(lowerBound.getTime(), Map.of());
+  }
+
+  /**
+   * @param partition the partition key
+   *
+   * @return the lower bound of the partition
+   */
+  public ASN1GeneralizedTime getLowerBound(String partition)
+  {
+    return new ASN1GeneralizedTime(
+      partitionLowerBounds.getOrDefault(partition, lowerBound));
+  }
+
+  /**
+   * @return the lowest lower bound of all partitions
+   */
+  public ASN1GeneralizedTime getMinimumLowerBound()
+  {
+    long minimum = lowerBound;
+
+    for(long partitionLowerBound : partitionLowerBounds.values())
+    {
+      minimum = Math.min(minimum, partitionLowerBound);
+    }
+
+    return new ASN1GeneralizedTime(minimum);
+  }
+
+  /**
+   * @param partitions the searched partition keys
+   *
+   * @return {@code true} if every partition is searched from unix time 0
+   */
+  public boolean isFullDirectory(Collection<String> partitions)
+  {
+    for(String partition : partitions)
+    {
+      if(getLowerBound(partition).getTime() != 0)
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Records a completely searched partition. Thread-safe.
+   *
+   * @param partition the partition key
+   * @param modifyTime the newest modify timestamp of the returned entries in
+   * milliseconds, {@code -1} if no entry had one
+   */
+  public void observe(String partition, long modifyTime)
+  {
+    observed.merge(partition, modifyTime, Math :: max);
+  }
+
+  /**
+   * Derives the lower bounds of the next run. A partition advances to the
+   * newest modify timestamp observed in it, but not beyond {@code limit};
+   * an entry changed while the search was running may have been passed
+   * already although another entry with a newer timestamp was returned.
+   * Partitions without a modify timestamp keep their lower bound, marks of
+   * partitions not searched by this run are dropped. The new default is the
+   * lowest partition mark.
+   *
+   * @param limit start of the run in milliseconds
+   *
+   * @return the next marks, or these marks if nothing was searched
+   */
+  public HighWaterMarks next(long limit)
+  {
+    if(observed.isEmpty())
+    {
+      return this;
+    }
+
+    Map<String, Long> nextLowerBounds = new TreeMap<>();
+    long nextLowerBound = Long.MAX_VALUE;
+
+    for(Map.Entry<String, Long> entry : observed.entrySet())
+    {
+      long previous = getLowerBound(entry.getKey()).getTime();
+      long mark = entry.getValue() >= 0
+        ? Math.max(previous, Math.min(entry.getValue(), limit)) : previous;
+      nextLowerBounds.put(entry.getKey(), mark);
+      nextLowerBound = Math.min(nextLowerBound, mark);
+    }
+
+    return new HighWaterMarks(nextLowerBound, nextLowerBounds);
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder builder = new StringBuilder();
+    builder.append(new ASN1GeneralizedTime(lowerBound).getStringRepresentation());
+
+    for(Map.Entry<String, Long> entry : partitionLowerBounds.entrySet())
+    {
+      builder.append(", ").append(entry.getKey()).append('=').append(
+        new ASN1GeneralizedTime(entry.getValue()).getStringRepresentation());
+    }
+
+    return builder.toString();
+  }
+
+  /**
+   * Default lower bound in milliseconds.
+   */
+  @Getter
+  private final long lowerBound;
+
+  /**
+   * Lower bounds in milliseconds by partition key.
+   */
+  @Getter
+  private final Map<String, Long> partitionLowerBounds;
+
+  private final Map<String, Long> observed = new ConcurrentHashMap<>();
+
+}
@@ -19,6 +19,7 @@ import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import java.util.Collection;
 import java.util.Set;
+import java.util.function.BiFunction;
 
 /**
  * A simple persistent key-value store backed by H2 MVStore.
@@ -94,6 +95,22 @@ public class KeyValueStore<V> implements AutoCloseable
     return map.getOrDefault(key, defaultValue);
   }
 
+  /**
+   * Atomically replaces the value of the given key. The function may be
+   * called more than once if the value is changed concurrently.
+   *
+   * @param key the key
+   * @param remappingFunction computes the new value from the key and the
+   * current value ({@code null} if absent), {@code null} removes the entry
+   *
+   * @return the new value, or {@code null}
+   */
+  public V compute(String key,
+    BiFunction<String, ? super V, ? extends V> remappingFunction)
+  {
+    return map.compute(key, remappingFunction);
+  }
+
   /**
    * Removes the entry for the given key.
    *
@@ -0,0 +1,501 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.util;
+
+import com.unboundid.asn1.ASN1Exception;
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import l9g.app.ldap2nextcloud.model.CompactLdapEntry;
+import lombok.Getter;
+
+/**
+ * Read-only, memory mapped snapshot of the configured attribute projection
+ * of all LDAP users.
+ * <p>
+ * The file holds a header with the start time of the read and the attribute
+ * names, one record per user, an index of the record offsets sorted by
+ * normalized user id and the newest modify timestamp of the records:
+ * <pre>
+ * header  magic, version, created timestamp, attribute names
+ * records user id, modify timestamp (ms, -1 if unknown), entry length, entry
+ * index   record count, record offsets sorted by user id
+ * footer  newest modify timestamp (ms), index offset
+ * </pre>
+ * Version 1 files have no newest modify timestamp, their created timestamp
+ * is used instead.
+ * Strings are stored as length prefixed UTF-8. Full scans read the records
+ * in file order, lookups by id are binary searches over the index; both
+ * decode only the records they return. Files are limited to 2 GB.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class LdapSnapshot implements AutoCloseable
+{
+  private final static int MAGIC = 0x4c32534e; // L2SN
+
+  private final static int VERSION = 2;
+
+  /**
+   * Receives the records of a snapshot.
+   */
+  @FunctionalInterface
+  public interface RecordConsumer
+  {
+    void accept(String userId, CompactLdapEntry entry)
+      throws Throwable;
+
+  }
+
+  private LdapSnapshot(File file, MappedByteBuffer buffer)
+    throws IOException
+  {
+    this.file = file;
+    this.buffer = buffer;
+
+    ByteBuffer header = buffer.duplicate();
+    int magic = header.getInt();
+    int version = header.getInt();
+
+    if(magic != MAGIC || version < 1 || version > VERSION)
+    {
+      throw new IOException("not an ldap snapshot: " + file);
+    }
+
+    try
+    {
+      createdTimestamp = new ASN1GeneralizedTime(readString(header));
+    }
+    catch(ASN1Exception e)
+    {
+      throw new IOException("invalid ldap snapshot timestamp: " + file, e);
+    }
+
+    int attributeCount = header.getInt();
+    List<String> names = new ArrayList<>(attributeCount);
+
+    for(int i = 0; i < attributeCount; i ++)
+    {
+      names.add(readString(header));
+    }
+
+    attributeNames = List.copyOf(names);
+    recordsOffset = header.position();
+    indexOffset = (int)buffer.getLong(buffer.limit() - Long.BYTES);
+    entryCount = buffer.getInt(indexOffset);
+    highWaterMark = version == 1 ? createdTimestamp : new ASN1GeneralizedTime(
+      Math.max(0, buffer.getLong(buffer.limit() - 2 * Long.BYTES)));
+  }
+
+  /**
+   * Maps a snapshot file.
+   *
+   * @param file the snapshot file
+   *
+   * @return the snapshot
+   *
+   * @throws IOException if the file can not be read or is no snapshot
+   */
+  public static LdapSnapshot open(File file)
+    throws IOException
+  {
+    try(FileChannel channel = FileChannel.open(
+      file.toPath(), StandardOpenOption.READ))
+    {
+      if(channel.size() > Integer.MAX_VALUE)
+      {
+        throw new IOException("ldap snapshot larger than 2 GB: " + file);
+      }
+
+      return new LdapSnapshot(file,
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Hands all records to the consumer in file order.
+   *
+   * @param consumer called for every record
+   *
+   * @throws Throwable if the consumer fails
+   */
+  public void forEach(RecordConsumer consumer)
+    throws Throwable
+  {
+    forEachModifiedSince(null, consumer);
+  }
+
+  /**
+   * Hands all records modified at or after the given time to the consumer,
+   * like the {@code modifyTimestamp>=} condition of {@code ldap.filter}.
+   * Records without a modify timestamp are always returned.
+   *
+   * @param timestamp the lower bound, {@code null} for all records
+   * @param consumer called for every matching record
+   *
+   * @throws Throwable if the consumer fails
+   */
+  public void forEachModifiedSince(ASN1GeneralizedTime timestamp,
+    RecordConsumer consumer)
+    throws Throwable
+  {
+    long lowerBound = timestamp != null ? timestamp.getTime() : 0;
+    ByteBuffer records = buffer.duplicate().position(recordsOffset);
+
+    while(records.position() < indexOffset)
+    {
+      String userId = readString(records);
+      long modifyTime = records.getLong();
+      int length = records.getInt();
+      int next = records.position() + length;
+
+      if(modifyTime < 0 || modifyTime >= lowerBound)
+      {
+        consumer.accept(userId, CompactLdapEntry.readFrom(records));
+      }
+
+      records.position(next);
+    }
+  }
+
+  /**
+   * @param userId the normalized user id
+   *
+   * @return the entry of the user or {@code null} if it is not in the
+   * snapshot
+   */
+  public CompactLdapEntry get(String userId)
+  {
+    int low = 0;
+    int high = entryCount - 1;
+
+    while(low <= high)
+    {
+      int middle = (low + high) >>> 1;
+      ByteBuffer record = record(middle);
+      int compared = readString(record).compareTo(userId);
+
+      if(compared < 0)
+      {
+        low = middle + 1;
+      }
+      else if(compared > 0)
+      {
+        high = middle - 1;
+      }
+      else
+      {
+        record.getLong();
+        record.getInt();
+        return CompactLdapEntry.readFrom(record);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @return all normalized user ids in sorted order, without decoding any
+   * entry
+   */
+  public List<String> getUserIds()
+  {
+    List<String> userIds = new ArrayList<>(entryCount);
+
+    for(int i = 0; i < entryCount; i ++)
+    {
+      userIds.add(readString(record(i)));
+    }
+
+    return userIds;
+  }
+
+  /**
+   * Copies the records of the selected users unchanged to a new snapshot.
+   *
+   * @param writer the new snapshot
+   * @param keep selects the normalized user ids to copy
+   *
+   * @return the number of records copied
+   *
+   * @throws IOException if the new snapshot can not be written
+   */
+  public int copyTo(Writer writer, Predicate<String> keep)
+    throws IOException
+  {
+    int copied = 0;
+    ByteBuffer records = buffer.duplicate().position(recordsOffset);
+
+    while(records.position() < indexOffset)
+    {
+      int start = records.position();
+      String userId = readString(records);
+      long modifyTime = records.getLong();
+      int length = records.getInt();
+      int next = records.position() + length;
+
+      if(keep.test(userId))
+      {
+        byte[] record = new byte[next - start];
+        buffer.get(start, record);
+        writer.addRecord(userId, modifyTime, record);
+        copied ++;
+      }
+
+      records.position(next);
+    }
+
+    return copied;
+  }
+
+  private ByteBuffer record(int index)
+  {
+    return buffer.duplicate().position(
+      (int)buffer.getLong(indexOffset + Integer.BYTES + index * Long.BYTES));
+  }
+
+  /**
+   * Releases the mapping, so the file can be replaced or deleted even on
+   * platforms that lock mapped files. Must not be called while another
+   * thread still reads records. If the JVM does not allow to release it
+   * explicitly, the mapping is released by the garbage collector.
+   */
+  @Override
+  public synchronized void close()
+  {
+    ByteBuffer mapped = buffer;
+    buffer = null;
+
+    if(mapped != null)
+    {
+      unmap(mapped);
+    }
+  }
+
+  private static void unmap(ByteBuffer mapped)
+  {
+    try
+    {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+      unsafeField.setAccessible(true);
+      unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+        .invoke(unsafeField.get(null), mapped);
+    }
+    catch(ReflectiveOperationException | RuntimeException e)
+    {
+      // left to the garbage collector
+    }
+  }
+
+  /**
+   * Writes a new snapshot to a temporary file, which replaces the snapshot
+   * file on {@link #commit()}. Records may be added in any order.
+   */
+  public static class Writer implements AutoCloseable
+  {
+    /**
+     * @param file the snapshot file
+     * @param createdTimestamp start of the LDAP read
+     * @param attributeNames the attribute projection of the entries
+     *
+     * @throws IOException if the temporary file can not be created
+     */
+    public Writer(File file, ASN1GeneralizedTime createdTimestamp,
+      List<String> attributeNames)
+      throws IOException
+    {
+      this.file = file;
+      this.tempFile = new File(file.getPath() + ".tmp");
+      this.out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tempFile), 65536));
+
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeString(out, createdTimestamp.toString());
+      out.writeInt(attributeNames.size());
+
+      for(String name : attributeNames)
+      {
+        writeString(out, name);
+      }
+    }
+
+    /**
+     * Appends the entry of a user.
+     *
+     * @param userId the normalized user id
+     * @param entry the entry
+     * @param modifyTime the modify timestamp in ms, {@code -1} if unknown
+     *
+     * @throws IOException if the record can not be written
+     */
+    public synchronized void add(String userId, CompactLdapEntry entry,
+      long modifyTime)
+      throws IOException
+    {
+      recordOffsets.add(new RecordOffset(userId, out.size()));
+      newestModifyTime = Math.max(newestModifyTime, modifyTime);
+      writeString(out, userId);
+      out.writeLong(modifyTime);
+      byte[] encoded = entry.toByteArray();
+      out.writeInt(encoded.length);
+      out.write(encoded);
+      checkSize();
+    }
+
+    private synchronized void addRecord(String userId, long modifyTime,
+      byte[] record)
+      throws IOException
+    {
+      recordOffsets.add(new RecordOffset(userId, out.size()));
+      newestModifyTime = Math.max(newestModifyTime, modifyTime);
+      out.write(record);
+      checkSize();
+    }
+
+    private void checkSize()
+      throws IOException
+    {
+      // the byte counter stops at Integer.MAX_VALUE
+      if(out.size() == Integer.MAX_VALUE)
+      {
+        throw new IOException("ldap snapshot larger than 2 GB: " + file);
+      }
+    }
+
+    /**
+     * Writes the index and replaces the snapshot file.
+     *
+     * @return the number of records
+     *
+     * @throws IOException if the snapshot can not be written
+     */
+    public synchronized int commit()
+      throws IOException
+    {
+      recordOffsets.sort(Comparator.comparing(RecordOffset :: userId));
+      long indexOffset = out.size();
+      out.writeInt(recordOffsets.size());
+
+      for(RecordOffset recordOffset : recordOffsets)
+      {
+        out.writeLong(recordOffset.offset());
+      }
+
+      out.writeLong(newestModifyTime);
+      out.writeLong(indexOffset);
+      out.close();
+      Files.move(tempFile.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      committed = true;
+      return recordOffsets.size();
+    }
+
+    /**
+     * Discards the temporary file unless the snapshot was committed.
+     */
+    @Override
+    public synchronized void close()
+      throws IOException
+    {
+      if( ! committed)
+      {
+        out.close();
+        Files.deleteIfExists(tempFile.toPath());
+      }
+    }
+
+    private record RecordOffset(String userId, long offset)
+    {
+    }
+
+    private final File file;
+
+    private final File tempFile;
+
+    private final DataOutputStream out;
+
+    private final List<RecordOffset> recordOffsets = new ArrayList<>();
+
+    private long newestModifyTime = -1;
+
+    private boolean committed;
+
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+    throws IOException
+  {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer)
+  {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Getter
+  private final File file;
+
+  /**
+   * Start of the LDAP read that wrote this snapshot.
+   */
+  @Getter
+  private final ASN1GeneralizedTime createdTimestamp;
+
+  /**
+   * Newest server modify timestamp of the records, the lower bound of the
+   * next refresh. Unlike the local clock it can not run ahead of the server.
+   */
+  @Getter
+  private final ASN1GeneralizedTime highWaterMark;
+
+  /**
+   * The attribute projection of the entries.
+   */
+  @Getter
+  private final List<String> attributeNames;
+
+  @Getter
+  private final int entryCount;
+
+  private final int recordsOffset;
+
+  private final int indexOffset;
+
+  private volatile ByteBuffer buffer;
+
+}
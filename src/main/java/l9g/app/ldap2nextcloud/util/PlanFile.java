@@ -0,0 +1,119 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import l9g.app.ldap2nextcloud.model.PlanOperation;
+import lombok.Getter;
+
+/**
+ * A sync plan stored as JSON lines, one {@link PlanOperation} per line.
+ * Writing is thread-safe.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class PlanFile implements AutoCloseable
+{
+  private final static ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  /**
+   * Creates or truncates a plan file for writing.
+   *
+   * @param file the plan file
+   *
+   * @throws IOException if the file can not be created
+   */
+  public PlanFile(File file)
+    throws IOException
+  {
+    this.file = file;
+    this.writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Appends an operation.
+   *
+   * @param operation the operation
+   */
+  public synchronized void write(PlanOperation operation)
+  {
+    try
+    {
+      writer.write(OBJECT_MAPPER.writeValueAsString(operation));
+      writer.newLine();
+      operationCount ++;
+    }
+    catch(IOException e)
+    {
+      throw new UncheckedIOException("writing plan file " + file, e);
+    }
+  }
+
+  /**
+   * Reads all operations of a plan file in order.
+   *
+   * @param file the plan file
+   *
+   * @return the operations
+   *
+   * @throws IOException if the file can not be read or parsed
+   */
+  public static List<PlanOperation> read(File file)
+    throws IOException
+  {
+    List<PlanOperation> operations = new ArrayList<>();
+
+    try(BufferedReader reader =
+      Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+    {
+      String line;
+      while((line = reader.readLine()) != null)
+      {
+        if( ! line.isBlank())
+        {
+          operations.add(OBJECT_MAPPER.readValue(line, PlanOperation.class));
+        }
+      }
+    }
+
+    return operations;
+  }
+
+  @Override
+  public synchronized void close()
+    throws IOException
+  {
+    writer.close();
+  }
+
+  @Getter
+  private final File file;
+
+  private final BufferedWriter writer;
+
+  @Getter
+  private int operationCount;
+
+}
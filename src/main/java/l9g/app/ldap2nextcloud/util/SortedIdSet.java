@@ -0,0 +1,474 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import lombok.Getter;
+
+/**
+ * An immutable set of user ids, sorted and deduplicated by a key function.
+ * The ids are stored as one UTF-8 byte array with offsets, or, for very
+ * large sets, in a sorted spill file. Two sets built with the same key
+ * function are compared with a single linear merge-join, see
+ * {@link #mergeJoin}.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public final class SortedIdSet implements Iterable<String>, AutoCloseable
+{
+  /**
+   * Collects ids for a {@link SortedIdSet}. Once more than
+   * {@code spillThreshold} ids are buffered they are sorted and written to a
+   * temporary chunk file; {@link #build()} merges the chunks. Adding is
+   * thread-safe.
+   */
+  public static class Builder
+  {
+    public Builder(UnaryOperator<String> keyFunction, int spillThreshold)
+    {
+      this.keyFunction = keyFunction;
+      this.spillThreshold = Math.max(1, spillThreshold);
+    }
+
+    public synchronized void add(String id)
+    {
+      buffer.add(id);
+
+      if(buffer.size() >= spillThreshold)
+      {
+        spill();
+      }
+    }
+
+    public synchronized void addAll(Iterable<String> ids)
+    {
+      ids.forEach(this :: add);
+    }
+
+    /**
+     * @return the set, the builder must not be used afterwards
+     */
+    public synchronized SortedIdSet build()
+    {
+      String[] ids = sortedUnique(buffer);
+      buffer.clear();
+
+      if(chunks.isEmpty())
+      {
+        return new SortedIdSet(keyFunction, ids);
+      }
+
+      writeChunk(ids);
+      return mergeChunks();
+    }
+
+    private String[] sortedUnique(List<String> ids)
+    {
+      String[][] keyed = new String[ids.size()][];
+
+      for(int i = 0; i < keyed.length; i ++)
+      {
+        String id = ids.get(i);
+        keyed[i] = new String[]
+        {
+          keyFunction.apply(id), id
+        };
+      }
+
+      Arrays.sort(keyed, Comparator.comparing(pair -> pair[0]));
+
+      List<String> unique = new ArrayList<>(keyed.length);
+      String lastKey = null;
+
+      for(String[] pair : keyed)
+      {
+        if( ! pair[0].equals(lastKey))
+        {
+          unique.add(pair[1]);
+          lastKey = pair[0];
+        }
+      }
+
+      return unique.toArray(String[] :: new);
+    }
+
+    private void spill()
+    {
+      writeChunk(sortedUnique(buffer));
+      buffer.clear();
+    }
+
+    private void writeChunk(String[] ids)
+    {
+      try
+      {
+        File chunk = File.createTempFile("ids-chunk-", ".txt");
+        chunk.deleteOnExit();
+        chunks.add(chunk);
+
+        try(BufferedWriter writer = Files.newBufferedWriter(
+          chunk.toPath(), StandardCharsets.UTF_8))
+        {
+          for(String id : ids)
+          {
+            writer.write(id);
+            writer.newLine();
+          }
+        }
+      }
+      catch(IOException e)
+      {
+        throw new UncheckedIOException("spilling user ids", e);
+      }
+    }
+
+    private SortedIdSet mergeChunks()
+    {
+      PriorityQueue<ChunkReader> readers = new PriorityQueue<>(
+        Comparator.comparing(ChunkReader :: getKey));
+
+      try
+      {
+        File merged = File.createTempFile("ids-", ".txt");
+        merged.deleteOnExit();
+        int size = 0;
+
+        for(File chunk : chunks)
+        {
+          ChunkReader reader = new ChunkReader(chunk, keyFunction);
+          if(reader.getId() != null)
+          {
+            readers.add(reader);
+          }
+          else
+          {
+            reader.close();
+          }
+        }
+
+        try(BufferedWriter writer = Files.newBufferedWriter(
+          merged.toPath(), StandardCharsets.UTF_8))
+        {
+          String lastKey = null;
+
+          while( ! readers.isEmpty())
+          {
+            ChunkReader reader = readers.poll();
+
+            if( ! reader.getKey().equals(lastKey))
+            {
+              writer.write(reader.getId());
+              writer.newLine();
+              lastKey = reader.getKey();
+              size ++;
+            }
+
+            if(reader.next())
+            {
+              readers.add(reader);
+            }
+            else
+            {
+              reader.close();
+            }
+          }
+        }
+
+        return new SortedIdSet(keyFunction, merged, size);
+      }
+      catch(IOException e)
+      {
+        throw new UncheckedIOException("merging user ids", e);
+      }
+      finally
+      {
+        readers.forEach(ChunkReader :: close);
+        chunks.forEach(File :: delete);
+        chunks.clear();
+      }
+    }
+
+    private final UnaryOperator<String> keyFunction;
+
+    private final int spillThreshold;
+
+    private final List<String> buffer = new ArrayList<>();
+
+    private final List<File> chunks = new ArrayList<>();
+
+  }
+
+  private SortedIdSet(UnaryOperator<String> keyFunction, String[] ids)
+  {
+    this.keyFunction = keyFunction;
+    this.size = ids.length;
+    this.file = null;
+    this.offsets = new int[ids.length + 1];
+
+    byte[][] encoded = new byte[ids.length][];
+    int length = 0;
+
+    for(int i = 0; i < ids.length; i ++)
+    {
+      encoded[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+      offsets[i] = length;
+      length += encoded[i].length;
+    }
+
+    offsets[ids.length] = length;
+    this.data = new byte[length];
+
+    for(int i = 0; i < ids.length; i ++)
+    {
+      System.arraycopy(encoded[i], 0, data, offsets[i], encoded[i].length);
+    }
+  }
+
+  private SortedIdSet(UnaryOperator<String> keyFunction, File file, int size)
+  {
+    this.keyFunction = keyFunction;
+    this.size = size;
+    this.file = file;
+    this.offsets = null;
+    this.data = null;
+  }
+
+  /**
+   * @param keyFunction the normalization used for sorting and comparison
+   *
+   * @return an empty set
+   */
+  public static SortedIdSet empty(UnaryOperator<String> keyFunction)
+  {
+    return new SortedIdSet(keyFunction, new String[0]);
+  }
+
+  /**
+   * @return {@code true} if the ids are kept in a spill file
+   */
+  public boolean isSpilled()
+  {
+    return file != null;
+  }
+
+  /**
+   * Iterates the ids in key order.
+   */
+  @Override
+  public Iterator<String> iterator()
+  {
+    if(file == null)
+    {
+      return new Iterator<>()
+      {
+        @Override
+        public boolean hasNext()
+        {
+          return index < size;
+        }
+
+        @Override
+        public String next()
+        {
+          if( ! hasNext())
+          {
+            throw new NoSuchElementException();
+          }
+          String id = new String(data, offsets[index],
+            offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+          index ++;
+          return id;
+        }
+
+        private int index;
+
+      };
+    }
+
+    ChunkReader reader = new ChunkReader(file, keyFunction);
+
+    return new Iterator<>()
+    {
+      @Override
+      public boolean hasNext()
+      {
+        return reader.getId() != null;
+      }
+
+      @Override
+      public String next()
+      {
+        String id = reader.getId();
+
+        if(id == null)
+        {
+          throw new NoSuchElementException();
+        }
+
+        if( ! reader.next())
+        {
+          reader.close();
+        }
+
+        return id;
+      }
+
+    };
+  }
+
+  /**
+   * Walks two sets built with the same key function in one pass and reports
+   * the ids found in one set only.
+   *
+   * @param left the first set
+   * @param right the second set
+   * @param onlyLeft called for every id of {@code left} missing in
+   * {@code right}
+   * @param onlyRight called for every id of {@code right} missing in
+   * {@code left}
+   */
+  public static void mergeJoin(SortedIdSet left, SortedIdSet right,
+    Consumer<String> onlyLeft, Consumer<String> onlyRight)
+  {
+    Iterator<String> leftIds = left.iterator();
+    Iterator<String> rightIds = right.iterator();
+    String leftId = leftIds.hasNext() ? leftIds.next() : null;
+    String rightId = rightIds.hasNext() ? rightIds.next() : null;
+
+    while(leftId != null || rightId != null)
+    {
+      int compare = leftId == null ? 1 : rightId == null ? -1
+        : left.keyFunction.apply(leftId).compareTo(
+          right.keyFunction.apply(rightId));
+
+      if(compare < 0)
+      {
+        onlyLeft.accept(leftId);
+      }
+      else if(compare > 0)
+      {
+        onlyRight.accept(rightId);
+      }
+
+      if(compare <= 0)
+      {
+        leftId = leftIds.hasNext() ? leftIds.next() : null;
+      }
+      if(compare >= 0)
+      {
+        rightId = rightIds.hasNext() ? rightIds.next() : null;
+      }
+    }
+  }
+
+  /**
+   * Deletes the spill file.
+   */
+  @Override
+  public void close()
+  {
+    if(file != null)
+    {
+      file.delete();
+    }
+  }
+
+  /**
+   * Reads a sorted id file line by line.
+   */
+  private static class ChunkReader
+  {
+    ChunkReader(File file, UnaryOperator<String> keyFunction)
+    {
+      this.keyFunction = keyFunction;
+
+      try
+      {
+        reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+      }
+      catch(IOException e)
+      {
+        throw new UncheckedIOException("reading user ids", e);
+      }
+
+      next();
+    }
+
+    boolean next()
+    {
+      try
+      {
+        id = reader.readLine();
+        key = id == null ? null : keyFunction.apply(id);
+        return id != null;
+      }
+      catch(IOException e)
+      {
+        throw new UncheckedIOException("reading user ids", e);
+      }
+    }
+
+    void close()
+    {
+      try
+      {
+        reader.close();
+      }
+      catch(IOException e)
+      {
+        // nothing left to read
+      }
+    }
+
+    private final UnaryOperator<String> keyFunction;
+
+    private final BufferedReader reader;
+
+    @Getter
+    private String id;
+
+    @Getter
+    private String key;
+
+  }
+
+  private final UnaryOperator<String> keyFunction;
+
+  @Getter
+  private final int size;
+
+  private final File file;
+
+  private final int[] offsets;
+
+  private final byte[] data;
+
+}
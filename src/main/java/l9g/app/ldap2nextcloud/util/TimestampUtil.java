@@ -19,10 +19,17 @@ import com.unboundid.asn1.ASN1GeneralizedTime;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
 import l9g.app.ldap2nextcloud.Application;
 import lombok.Getter;
+import lombok.Setter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +44,12 @@ public class TimestampUtil
 
   private static final String TIMESTAMP_FILENAME = "lastsync.timestamp";
 
+  private static final String MARKS_FILENAME = "lastsync.marks";
+
+  private static final String CHANGENUMBER_FILENAME = "lastsync.changenumber";
+
+  private static final String FULLSCAN_FILENAME = "lastfullscan.timestamp";
+
   private static final String VAR_DIRECTORY_NAME 
     = Application.CONFIG_PATH + "var";
 
@@ -66,11 +79,27 @@ public class TimestampUtil
 
     LOGGER.debug("timestampFile={}", timestampFile.getAbsolutePath());
 
+    marksFile = new File(varDirectory, prefix + "-" + MARKS_FILENAME);
+    changeNumberFile
+      = new File(varDirectory, prefix + "-" + CHANGENUMBER_FILENAME);
+    fullScanFile = new File(varDirectory, prefix + "-" + FULLSCAN_FILENAME);
+
     ASN1GeneralizedTime timestamp = null;
+    ASN1GeneralizedTime fullScanTimestamp = null;
+    Map<String, Long> partitionMarks = new HashMap<>();
+    long changeNumber = -1;
 
     try
     {
-      timestamp = readLastSyncTimestamp();
+      timestamp = readTimestamp(timestampFile);
+      fullScanTimestamp = readTimestamp(fullScanFile);
+      partitionMarks = readMarks(marksFile);
+      String changeNumberString = readLine(changeNumberFile);
+
+      if (changeNumberString != null && changeNumberString.length() > 0)
+      {
+        changeNumber = Long.parseLong(changeNumberString);
+      }
     }
     catch (Throwable t)
     {
@@ -79,49 +108,196 @@ public class TimestampUtil
     }
 
     lastSyncTimestamp = timestamp;
+    lastSyncMarks = new HighWaterMarks(timestamp.getTime(), partitionMarks);
+    lastFullScanTimestamp = fullScanTimestamp;
+    lastChangeNumber = changeNumber;
+    LOGGER.debug("last sync {} marks = {}, change number = {}", prefix,
+      lastSyncMarks, lastChangeNumber);
   }
 
-  private ASN1GeneralizedTime readLastSyncTimestamp() throws Throwable
+  private ASN1GeneralizedTime readTimestamp(File file) throws Throwable
   {
     ASN1GeneralizedTime timestamp = new ASN1GeneralizedTime(0l);
+    String timestampString = readLine(file);
+
+    if (timestampString != null && timestampString.length() > 0)
+    {
+      timestamp = new ASN1GeneralizedTime(timestampString);
+    }
+
+    return timestamp;
+  }
+
+  private Map<String, Long> readMarks(File file) throws Throwable
+  {
+    Map<String, Long> marks = new HashMap<>();
 
-    if (timestampFile.exists() && timestampFile.canRead())
+    if (file.exists() && file.canRead())
     {
-      String timestampString;
+      Properties properties = new Properties();
 
-      try (BufferedReader reader = new BufferedReader(new FileReader(
-        timestampFile)))
+      try (Reader reader = new FileReader(file))
       {
-        timestampString = reader.readLine().trim();
+        properties.load(reader);
       }
 
-      if (timestampString != null && timestampString.length() > 0)
+      for (String partition : properties.stringPropertyNames())
       {
-        timestamp = new ASN1GeneralizedTime(timestampString);
+        marks.put(partition, new ASN1GeneralizedTime(
+          properties.getProperty(partition).trim()).getTime());
       }
     }
 
-    LOGGER.debug("last sync {} timestamp = {}", prefix, timestamp);
-    return timestamp;
+    return marks;
   }
 
+  private String readLine(File file) throws IOException
+  {
+    String line = null;
+
+    if (file.exists() && file.canRead())
+    {
+      try (BufferedReader reader = new BufferedReader(new FileReader(file)))
+      {
+        line = reader.readLine();
+      }
+    }
+
+    return line != null ? line.trim() : null;
+  }
+
+  /**
+   * Writes the lower bound of the next run, the default of the current
+   * high-water marks if they were set, otherwise the start of the current
+   * run. The partition marks are written next to it.
+   *
+   * @throws IOException if a file can not be written
+   */
   public void writeCurrentTimestamp() throws IOException
   {
-    LOGGER.info("Writing timestamp to {}", timestampFile.getAbsolutePath());
+    ASN1GeneralizedTime timestamp = currentMarks != null
+      ? new ASN1GeneralizedTime(currentMarks.getLowerBound())
+      : currentTimestamp;
+
+    LOGGER.info("Writing timestamp {} to {}",
+      timestamp.getStringRepresentation(), timestampFile.getAbsolutePath());
     try (PrintWriter out = new PrintWriter(timestampFile))
+    {
+      out.println(timestamp.toString());
+    }
+
+    if (currentMarks != null
+      && !currentMarks.getPartitionLowerBounds().isEmpty())
+    {
+      LOGGER.info("Writing {} partition marks to {}",
+        currentMarks.getPartitionLowerBounds().size(),
+        marksFile.getAbsolutePath());
+      Properties properties = new Properties();
+      currentMarks.getPartitionLowerBounds().forEach((partition, mark)
+        -> properties.setProperty(partition,
+          new ASN1GeneralizedTime(mark).toString()));
+
+      try (Writer writer = new FileWriter(marksFile))
+      {
+        properties.store(writer, "ldap modify timestamp high-water marks");
+      }
+    }
+    else if (marksFile.exists())
+    {
+      marksFile.delete();
+    }
+  }
+
+  /**
+   * Writes the changelog high-water mark of the current run, if one was set.
+   *
+   * @throws IOException if the file can not be written
+   */
+  public void writeCurrentChangeNumber() throws IOException
+  {
+    if (currentChangeNumber >= 0)
+    {
+      LOGGER.info("Writing change number {} to {}", currentChangeNumber,
+        changeNumberFile.getAbsolutePath());
+      try (PrintWriter out = new PrintWriter(changeNumberFile))
+      {
+        out.println(currentChangeNumber);
+      }
+    }
+  }
+
+  /**
+   * Records the start of the current run as the last complete scan of all
+   * LDAP user ids.
+   *
+   * @throws IOException if the file can not be written
+   */
+  public void writeFullScanTimestamp() throws IOException
+  {
+    LOGGER.info("Writing full scan timestamp to {}",
+      fullScanFile.getAbsolutePath());
+    try (PrintWriter out = new PrintWriter(fullScanFile))
     {
       out.println(currentTimestamp.toString());
     }
   }
 
-  private final ASN1GeneralizedTime currentTimestamp;
+  /**
+   * Start of the current run, replaced by the original start when a run is
+   * resumed from a checkpoint.
+   */
+  @Getter
+  @Setter
+  private ASN1GeneralizedTime currentTimestamp;
 
   @Getter
   private final ASN1GeneralizedTime lastSyncTimestamp;
 
+  /**
+   * Lower bounds of the modify timestamp filter by search partition, derived
+   * from the modify timestamps returned by the last completed run.
+   */
+  @Getter
+  private final HighWaterMarks lastSyncMarks;
+
+  /**
+   * Lower bounds for the next run, written instead of the start of the
+   * current run if set.
+   */
+  @Getter
+  @Setter
+  private HighWaterMarks currentMarks;
+
+  /**
+   * Start of the last run that scanned all LDAP user ids, unix time 0 if
+   * unknown.
+   */
+  @Getter
+  private final ASN1GeneralizedTime lastFullScanTimestamp;
+
+  /**
+   * Changelog high-water mark of the last completed run, {@code -1} if
+   * unknown.
+   */
+  @Getter
+  private final long lastChangeNumber;
+
+  /**
+   * Last change number seen by the current run, {@code -1} if none.
+   */
+  @Getter
+  @Setter
+  private long currentChangeNumber = -1;
+
   private final File varDirectory;
 
   private final File timestampFile;
 
+  private final File marksFile;
+
+  private final File changeNumberFile;
+
+  private final File fullScanFile;
+
   private final String prefix;
 }
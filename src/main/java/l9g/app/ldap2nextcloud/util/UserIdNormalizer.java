@@ -0,0 +1,101 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.util;
+
+import java.util.Locale;
+import java.util.function.UnaryOperator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * The rule that makes LDAP and Nextcloud user ids comparable, configured
+ * with {@code sync.user-id.normalization}:
+ * <ul>
+ * <li>{@code exact} compares the ids as they are,</li>
+ * <li>{@code trim} removes surrounding white space,</li>
+ * <li>{@code lowercase} (default) trims and converts to lower case.</li>
+ * </ul>
+ * Also creates the {@link SortedIdSet}s used for delete detection.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+public class UserIdNormalizer implements UnaryOperator<String>
+{
+  public enum Normalization
+  {
+    EXACT, TRIM, LOWERCASE
+  }
+
+  public UserIdNormalizer(
+    @Value("${sync.user-id.normalization:lowercase}") String normalization,
+    @Value("${sync.user-id.spill-threshold:1000000}") int spillThreshold)
+  {
+    this.normalization =
+      Normalization.valueOf(normalization.trim().toUpperCase(Locale.ROOT));
+    this.spillThreshold = spillThreshold;
+  }
+
+  /**
+   * @param userId a user id
+   *
+   * @return the normalized id, {@code null} stays {@code null}
+   */
+  @Override
+  public String apply(String userId)
+  {
+    if(userId == null)
+    {
+      return null;
+    }
+
+    return switch(normalization)
+    {
+      case EXACT ->
+        userId;
+      case TRIM ->
+        userId.trim();
+      case LOWERCASE ->
+        userId.trim().toLowerCase(Locale.ROOT);
+    };
+  }
+
+  /**
+   * @return a builder for a set ordered by the normalized ids, spilling to
+   * disk above {@code sync.user-id.spill-threshold} ids
+   */
+  public SortedIdSet.Builder sortedIdSetBuilder()
+  {
+    return new SortedIdSet.Builder(this, spillThreshold);
+  }
+
+  /**
+   * @param userIds the ids
+   *
+   * @return the ids as sorted set
+   */
+  public SortedIdSet sortedIdSetOf(Iterable<String> userIds)
+  {
+    SortedIdSet.Builder builder = sortedIdSetBuilder();
+    builder.addAll(userIds);
+    return builder.build();
+  }
+
+  private final Normalization normalization;
+
+  private final int spillThreshold;
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives the token bucket, the AIMD rate and the circuit breaker with
+ * canned responses.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class OcsRateLimiterTest
+{
+  private final MockClientHttpRequest request =
+    new MockClientHttpRequest(HttpMethod.GET, URI.create("http://nc/ocs"));
+
+  private final Queue<HttpStatus> statuses = new ArrayDeque<>();
+
+  private int executions;
+
+  private String retryAfter = "0";
+
+  private final ClientHttpRequestExecution execution = (httpRequest, body) ->
+  {
+    executions ++;
+    MockClientHttpResponse response =
+      new MockClientHttpResponse(new byte[0], statuses.remove());
+    response.getHeaders().set("Retry-After", retryAfter);
+    return response;
+  };
+
+  private OcsRateLimiter rateLimiter;
+
+  @BeforeEach
+  void setUp()
+  {
+    rateLimiter = new OcsRateLimiter();
+    set("enabled", true);
+    set("initialRate", 100.0);
+    set("minRate", 1.0);
+    set("maxRate", 1000.0);
+    set("burst", 100.0);
+    set("increase", 100.0);
+    set("decreaseFactor", 0.5);
+    set("maxRetries", 0);
+    set("defaultRetryAfterSeconds", 0);
+    set("breakerWindow", 2);
+    set("breakerErrorThreshold", 0.5);
+    set("breakerOpenSeconds", 60);
+  }
+
+  @Test
+  void successRaisesRateAdditively()
+    throws IOException
+  {
+    call(HttpStatus.OK);
+    assertEquals(101.0, rateLimiter.getRate(), 1e-9);
+    call(HttpStatus.OK);
+    assertEquals(101.0 + 100.0 / 101.0, rateLimiter.getRate(), 1e-9);
+  }
+
+  @Test
+  void throttlingCutsRateAndRetries()
+    throws IOException
+  {
+    set("maxRetries", 1);
+    set("breakerWindow", 10);
+
+    assertEquals(200, call(HttpStatus.TOO_MANY_REQUESTS, HttpStatus.OK));
+    assertEquals(2, executions);
+    assertEquals(50.0 + 100.0 / 50.0, rateLimiter.getRate(), 1e-9);
+  }
+
+  @Test
+  void rateStaysWithinBounds()
+    throws IOException
+  {
+    set("breakerWindow", 100);
+
+    for(int i = 0; i < 8; i ++)
+    {
+      call(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+    assertEquals(1.0, rateLimiter.getRate(), 1e-9);
+  }
+
+  @Test
+  void errorsOpenCircuit()
+    throws IOException
+  {
+    call(HttpStatus.INTERNAL_SERVER_ERROR);
+    call(HttpStatus.INTERNAL_SERVER_ERROR);
+
+    assertTrue(rateLimiter.isCircuitOpen());
+    assertThrows(IOException.class, () -> call(HttpStatus.OK));
+    assertEquals(2, executions);
+  }
+
+  @Test
+  void successfulTrialClosesCircuit()
+    throws IOException
+  {
+    set("breakerOpenSeconds", 0);
+    call(HttpStatus.INTERNAL_SERVER_ERROR);
+    call(HttpStatus.INTERNAL_SERVER_ERROR);
+
+    assertEquals(200, call(HttpStatus.OK));
+    assertEquals(200, call(HttpStatus.OK));
+    assertFalse(rateLimiter.isCircuitOpen());
+  }
+
+  @Test
+  void failedTrialOpensCircuitAgain()
+    throws IOException
+  {
+    set("breakerOpenSeconds", 0);
+    call(HttpStatus.INTERNAL_SERVER_ERROR);
+    call(HttpStatus.INTERNAL_SERVER_ERROR);
+    call(HttpStatus.INTERNAL_SERVER_ERROR);
+
+    set("breakerOpenSeconds", 60);
+    set("circuitOpenUntil", 1L); // open period over, half open
+    call(HttpStatus.INTERNAL_SERVER_ERROR);
+    assertTrue(rateLimiter.isCircuitOpen());
+  }
+
+  @Test
+  void interruptedWaitDoesNotBlockTrial()
+    throws IOException
+  {
+    set("breakerOpenSeconds", 0);
+    retryAfter = "1";
+    call(HttpStatus.TOO_MANY_REQUESTS);
+    call(HttpStatus.TOO_MANY_REQUESTS);
+
+    // the circuit is half open and requests are paused for a second
+    Thread.currentThread().interrupt();
+    assertThrows(InterruptedIOException.class, () -> call(HttpStatus.OK));
+    assertTrue(Thread.interrupted());
+
+    statuses.clear();
+    assertEquals(200, call(HttpStatus.OK));
+    assertFalse(rateLimiter.isCircuitOpen());
+  }
+
+  private int call(HttpStatus... responses)
+    throws IOException
+  {
+    statuses.addAll(List.of(responses));
+    return rateLimiter.intercept(request, new byte[0], execution)
+      .getStatusCode().value();
+  }
+
+  private void set(String name, Object value)
+  {
+    ReflectionTestUtils.setField(rateLimiter, name, value);
+  }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import l9g.app.ldap2nextcloud.client.OcsRateLimiter;
+import l9g.app.ldap2nextcloud.config.AttributesMapService;
+import l9g.app.ldap2nextcloud.config.Config;
+import l9g.app.ldap2nextcloud.handler.KeyValueStoreHandler;
+import l9g.app.ldap2nextcloud.handler.LdapHandler;
+import l9g.app.ldap2nextcloud.handler.NextcloudHandler;
+import l9g.app.ldap2nextcloud.handler.NextcloudUserCacheHandler;
+import l9g.app.ldap2nextcloud.handler.SyncCheckpointHandler;
+import l9g.app.ldap2nextcloud.handler.SyncRetryQueueHandler;
+import l9g.app.ldap2nextcloud.model.PlanOperation;
+import l9g.app.ldap2nextcloud.util.PlanFile;
+import l9g.app.ldap2nextcloud.util.TimestampUtil;
+import l9g.app.ldap2nextcloud.util.UserIdNormalizer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Applies plans and checks the sync state left behind.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class PlanExecutorTest
+{
+  private final static long START = 1_767_225_600_000L; // 2026-01-01
+
+  private final static long LOWER_BOUND = START - 60_000;
+
+  private final static long PARTITION_LOWER_BOUND = START - 120_000;
+
+  @TempDir
+  private Path tempDir;
+
+  private String appHome;
+
+  private KeyValueStoreHandler keyValueStoreHandler;
+
+  private NextcloudHandler nextcloudHandler;
+
+  private PlanExecutor planExecutor;
+
+  @BeforeEach
+  void setUp()
+  {
+    appHome = System.setProperty("app.home", tempDir.toString());
+    keyValueStoreHandler = new KeyValueStoreHandler(
+      tempDir.resolve("store.kv").toString());
+    nextcloudHandler = mock(NextcloudHandler.class);
+    Config config = mock(Config.class);
+
+    SyncEngine syncEngine = new SyncEngine(config, mock(LdapHandler.class),
+      nextcloudHandler, mock(AttributesMapService.class),
+      mock(NextcloudUserCacheHandler.class), mock(SyncCheckpointHandler.class),
+      mock(OcsRateLimiter.class), mock(SyncRetryQueueHandler.class),
+      new UserIdNormalizer("lowercase", 1000000));
+    planExecutor = new PlanExecutor(
+      config, nextcloudHandler, keyValueStoreHandler, syncEngine);
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    keyValueStoreHandler.close();
+
+    if(appHome != null)
+    {
+      System.setProperty("app.home", appHome);
+    }
+    else
+    {
+      System.clearProperty("app.home");
+    }
+  }
+
+  @Test
+  void appliedPlanStoresSyncState()
+    throws Throwable
+  {
+    File file = writePlan();
+
+    assertEquals(0, planExecutor.apply(file, 2));
+
+    verify(nextcloudHandler).updateUser("jdoe", "email", "jdoe@example.org");
+    TimestampUtil timestampUtil = new TimestampUtil("nextcloud-users");
+    assertEquals(LOWER_BOUND, timestampUtil.getLastSyncTimestamp().getTime());
+    assertEquals(Map.of("ou=people", PARTITION_LOWER_BOUND),
+      timestampUtil.getLastSyncMarks().getPartitionLowerBounds());
+    assertEquals(42, timestampUtil.getLastChangeNumber());
+    assertEquals(START, timestampUtil.getLastFullScanTimestamp().getTime());
+  }
+
+  @Test
+  void failedPlanKeepsSyncState()
+    throws Throwable
+  {
+    File file = writePlan();
+    doThrow(new IllegalStateException("unavailable")).when(nextcloudHandler)
+      .updateUser("jdoe", "email", "jdoe@example.org");
+
+    assertEquals(1, planExecutor.apply(file, 2));
+
+    assertFalse(Files.exists(
+      tempDir.resolve("data/var/nextcloud-users-lastsync.timestamp")));
+  }
+
+  private File writePlan()
+    throws Exception
+  {
+    File file = tempDir.resolve("sync.plan").toFile();
+
+    try(PlanFile planFile = new PlanFile(file))
+    {
+      PlanOperation update =
+        new PlanOperation(PlanOperation.Type.UPDATE_USER, "jdoe");
+      update.setKey("email");
+      update.setValue("jdoe@example.org");
+      planFile.write(update);
+
+      PlanOperation state =
+        new PlanOperation(PlanOperation.Type.SYNC_STATE, null);
+      state.setValue(new ASN1GeneralizedTime(START).toString());
+      state.setLowerBound(LOWER_BOUND);
+      state.setPartitionLowerBounds(
+        Map.of("ou=people", PARTITION_LOWER_BOUND));
+      state.setChangeNumber(42L);
+      state.setFullScan(true);
+      planFile.write(state);
+    }
+
+    List<PlanOperation> operations = PlanFile.read(file);
+    assertEquals(2, operations.size());
+    return file;
+  }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the full refresh schedule of {@link SyncDaemon} cycles.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class SyncDaemonTest
+{
+  private final static int REFRESH_CYCLES = 3;
+
+  private SyncEngine syncEngine;
+
+  private SyncDaemon syncDaemon;
+
+  private List<SyncOptions> runs;
+
+  private int failingRun;
+
+  @BeforeEach
+  void setUp()
+    throws Throwable
+  {
+    runs = new ArrayList<>();
+    syncEngine = mock(SyncEngine.class);
+    when(syncEngine.sync(any())).thenAnswer(invocation ->
+    {
+      runs.add(invocation.getArgument(0));
+      if(runs.size() == failingRun)
+      {
+        throw new IllegalStateException("nextcloud not reachable");
+      }
+      return new SyncStatistics();
+    });
+    syncDaemon = new SyncDaemon(syncEngine);
+  }
+
+  @Test
+  void fullRefreshEveryNCycles()
+  {
+    for(int i = 0; i < 7; i ++)
+    {
+      cycle();
+    }
+
+    assertEquals(7, runs.size());
+    for(int i = 0; i < runs.size(); i ++)
+    {
+      assertEquals(i % REFRESH_CYCLES != 0, runs.get(i).isKeepState(),
+        "cycle " + i);
+      assertTrue(runs.get(i).isResume());
+    }
+  }
+
+  @Test
+  void failedCycleForcesFullRefresh()
+  {
+    failingRun = 2;
+
+    cycle();
+    cycle();
+    cycle();
+    cycle();
+
+    assertEquals(4, runs.size());
+    assertFalse(runs.get(0).isKeepState());
+    assertTrue(runs.get(1).isKeepState());
+    // the failed second cycle invalidates the kept ids
+    assertFalse(runs.get(2).isKeepState());
+    assertTrue(runs.get(3).isKeepState());
+  }
+
+  private void cycle()
+  {
+    ReflectionTestUtils.invokeMethod(syncDaemon, "cycle", REFRESH_CYCLES);
+  }
+
+}
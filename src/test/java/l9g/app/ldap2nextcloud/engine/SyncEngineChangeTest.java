@@ -0,0 +1,235 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import l9g.app.ldap2nextcloud.client.OcsRateLimiter;
+import l9g.app.ldap2nextcloud.config.AttributesMapService;
+import l9g.app.ldap2nextcloud.config.Config;
+import l9g.app.ldap2nextcloud.handler.LdapHandler;
+import l9g.app.ldap2nextcloud.handler.NextcloudHandler;
+import l9g.app.ldap2nextcloud.handler.NextcloudUserCacheHandler;
+import l9g.app.ldap2nextcloud.handler.SyncCheckpointHandler;
+import l9g.app.ldap2nextcloud.handler.SyncRetryQueueHandler;
+import l9g.app.ldap2nextcloud.model.CompactLdapEntry;
+import l9g.app.ldap2nextcloud.model.NextcloudCreateUser;
+import l9g.app.ldap2nextcloud.model.NextcloudUpdateUser;
+import l9g.app.ldap2nextcloud.model.SyncScope;
+import l9g.app.ldap2nextcloud.util.UserIdNormalizer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Applies persistent search changes of entries read from an in-memory
+ * directory server.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class SyncEngineChangeTest
+{
+  private final static String BASE_DN = "dc=example,dc=org";
+
+  private final static String USER_DN = "uid=jdoe,ou=people," + BASE_DN;
+
+  @TempDir
+  private Path tempDir;
+
+  private InMemoryDirectoryServer directory;
+
+  private JavaScriptEngine js;
+
+  private NextcloudHandler nextcloudHandler;
+
+  private SyncEngine syncEngine;
+
+  private SyncStatistics statistics;
+
+  @BeforeEach
+  void setUp()
+    throws Exception
+  {
+    InMemoryDirectoryServerConfig directoryConfig =
+      new InMemoryDirectoryServerConfig(BASE_DN);
+    directory = new InMemoryDirectoryServer(directoryConfig);
+    directory.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+    directory.add("dn: ou=people," + BASE_DN,
+      "objectClass: organizationalUnit", "ou: people");
+    directory.add("dn: ou=staff," + BASE_DN,
+      "objectClass: organizationalUnit", "ou: staff");
+    directory.add("dn: " + USER_DN, "objectClass: inetOrgPerson",
+      "uid: jdoe", "cn: John Doe", "sn: Doe", "mail: jdoe@example.org");
+
+    File script = tempDir.resolve("ldap2nextcloud.js").toFile();
+    Files.writeString(script.toPath(), """
+      (
+        function ldap2nextcloud( mode, nextcloudUser, ldapEntry )
+        {
+          nextcloudUser.setDisplayName(ldapEntry.getAttributeValue("cn"));
+          nextcloudUser.setEmail(ldapEntry.getAttributeValue("mail"));
+        }
+      );
+      """);
+    js = new JavaScriptEngine(script);
+
+    LdapHandler ldapHandler = mock(LdapHandler.class);
+    when(ldapHandler.getLdapUserId()).thenReturn("uid");
+    nextcloudHandler = mock(NextcloudHandler.class);
+
+    syncEngine = new SyncEngine(mock(Config.class), ldapHandler,
+      nextcloudHandler, mock(AttributesMapService.class),
+      mock(NextcloudUserCacheHandler.class), mock(SyncCheckpointHandler.class),
+      mock(OcsRateLimiter.class), mock(SyncRetryQueueHandler.class),
+      new UserIdNormalizer("lowercase", 1000000));
+    ReflectionTestUtils.setField(syncEngine, "protectedUsers", List.of("admin"));
+    statistics = new SyncStatistics();
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    js.close();
+    directory.shutDown(true);
+  }
+
+  @Test
+  void addCreatesUser()
+    throws Throwable
+  {
+    syncEngine.syncChange(js, PersistentSearchChangeType.ADD, userEntry(),
+      statistics);
+
+    ArgumentCaptor<NextcloudCreateUser> user =
+      ArgumentCaptor.forClass(NextcloudCreateUser.class);
+    verify(nextcloudHandler).createUser(user.capture());
+    assertEquals("jdoe", user.getValue().getUserId());
+    assertEquals("John Doe", user.getValue().getDisplayName());
+    assertEquals(1, statistics.getCreatedUsers().get());
+    assertEquals(0, statistics.getFailedUsers().get());
+  }
+
+  @Test
+  void modifyUpdatesUser()
+    throws Throwable
+  {
+    NextcloudUpdateUser nextcloudUser = existingUser();
+    directory.modify(USER_DN, new Modification(
+      ModificationType.REPLACE, "mail", "john.doe@example.org"));
+
+    syncEngine.syncChange(js, PersistentSearchChangeType.MODIFY, userEntry(),
+      statistics);
+
+    ArgumentCaptor<NextcloudCreateUser> user =
+      ArgumentCaptor.forClass(NextcloudCreateUser.class);
+    verify(nextcloudHandler).updateUser(
+      user.capture(), eq(nextcloudUser), eq(SyncScope.ALL));
+    verify(nextcloudHandler, never()).createUser(any());
+    assertEquals("john.doe@example.org", user.getValue().getEmail());
+    assertEquals(1, statistics.getUpdatedUsers().get());
+  }
+
+  @Test
+  void modifyDnUpdatesUser()
+    throws Throwable
+  {
+    NextcloudUpdateUser nextcloudUser = existingUser();
+    directory.modifyDN(USER_DN, "uid=jdoe", true, "ou=staff," + BASE_DN);
+    CompactLdapEntry entry = CompactLdapEntry.of(
+      directory.getEntry("uid=jdoe,ou=staff," + BASE_DN));
+
+    syncEngine.syncChange(js, PersistentSearchChangeType.MODIFY_DN, entry,
+      statistics);
+
+    ArgumentCaptor<NextcloudCreateUser> user =
+      ArgumentCaptor.forClass(NextcloudCreateUser.class);
+    verify(nextcloudHandler).updateUser(
+      user.capture(), eq(nextcloudUser), eq(SyncScope.ALL));
+    verify(nextcloudHandler, never()).deleteUser(anyString());
+    assertEquals("jdoe", user.getValue().getUserId());
+  }
+
+  @Test
+  void deleteDeletesUser()
+    throws Throwable
+  {
+    existingUser();
+    CompactLdapEntry entry = userEntry();
+    directory.delete(USER_DN);
+
+    syncEngine.syncChange(js, PersistentSearchChangeType.DELETE, entry,
+      statistics);
+
+    verify(nextcloudHandler).deleteUser("jdoe");
+    assertEquals(1, statistics.getDeletedUsers().get());
+  }
+
+  @Test
+  void deleteOfUnknownUserIsIgnored()
+    throws Throwable
+  {
+    CompactLdapEntry entry = userEntry();
+    directory.delete(USER_DN);
+
+    syncEngine.syncChange(js, PersistentSearchChangeType.DELETE, entry,
+      statistics);
+
+    verify(nextcloudHandler, never()).deleteUser(anyString());
+  }
+
+  @Test
+  void changeKeyIsNormalizedUserId()
+    throws Exception
+  {
+    directory.modify(USER_DN, new Modification(
+      ModificationType.REPLACE, "uid", "JDoe"));
+
+    assertEquals("jdoe", syncEngine.changeKey(userEntry()));
+  }
+
+  private CompactLdapEntry userEntry()
+    throws Exception
+  {
+    return CompactLdapEntry.of(directory.getEntry(USER_DN));
+  }
+
+  private NextcloudUpdateUser existingUser()
+  {
+    NextcloudUpdateUser nextcloudUser = new NextcloudUpdateUser();
+    when(nextcloudHandler.findUserById("jdoe")).thenReturn(nextcloudUser);
+    return nextcloudUser;
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the bound and the failure handling of {@link SyncWorkerPool}.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class SyncWorkerPoolTest
+{
+  private final static int WORKERS = 3;
+
+  private final static int TASKS = 30;
+
+  @Test
+  void atMostWorkerThreadsTasksRun()
+    throws Throwable
+  {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    AtomicInteger done = new AtomicInteger();
+
+    try(SyncWorkerPool pool = new SyncWorkerPool(WORKERS, false))
+    {
+      for(int i = 0; i < TASKS; i ++)
+      {
+        pool.submit(js ->
+        {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math :: max);
+          Thread.sleep(5);
+          running.decrementAndGet();
+          done.incrementAndGet();
+        });
+      }
+
+      pool.await();
+    }
+
+    assertEquals(TASKS, done.get());
+    assertTrue(maxRunning.get() <= WORKERS, "max running " + maxRunning);
+    assertTrue(maxRunning.get() > 1, "tasks did not run concurrently");
+  }
+
+  @Test
+  void failureIsRethrownOnce()
+    throws Throwable
+  {
+    IOException failure = new IOException("nextcloud unavailable");
+
+    try(SyncWorkerPool pool = new SyncWorkerPool(WORKERS, false))
+    {
+      pool.submit(js ->
+      {
+        throw failure;
+      });
+
+      assertSame(failure, assertThrows(IOException.class, pool :: await));
+      assertDoesNotThrow(pool :: await);
+    }
+  }
+
+  @Test
+  void drainDiscardsFailure()
+    throws Throwable
+  {
+    try(SyncWorkerPool pool = new SyncWorkerPool(WORKERS, false))
+    {
+      pool.submit(js ->
+      {
+        throw new IOException("nextcloud unavailable");
+      });
+
+      pool.drain();
+
+      assertDoesNotThrow(() -> pool.submit(js -> {}));
+      assertDoesNotThrow(pool :: await);
+    }
+  }
+
+}
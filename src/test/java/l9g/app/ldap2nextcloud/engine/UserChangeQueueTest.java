@@ -0,0 +1,99 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class UserChangeQueueTest
+{
+  private final static int USERS = 5;
+
+  private final static int CHANGES = 50;
+
+  @Test
+  void changesOfAUserRunInOrder()
+    throws Throwable
+  {
+    Map<String, List<Integer>> applied = new ConcurrentHashMap<>();
+
+    try(SyncWorkerPool pool = new SyncWorkerPool(4, false))
+    {
+      UserChangeQueue queue = new UserChangeQueue(pool);
+
+      for(int i = 0; i < CHANGES; i ++)
+      {
+        for(int u = 0; u < USERS; u ++)
+        {
+          String userId = "user" + u;
+          int change = i;
+          queue.submit(userId, js ->
+          {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(2));
+            applied.computeIfAbsent(userId,
+              id -> Collections.synchronizedList(new ArrayList<>())).add(change);
+          });
+        }
+      }
+
+      pool.await();
+    }
+
+    assertEquals(USERS, applied.size());
+    for(List<Integer> changes : applied.values())
+    {
+      for(int i = 0; i < CHANGES; i ++)
+      {
+        assertEquals(i, changes.get(i));
+      }
+    }
+  }
+
+  @Test
+  void failureDoesNotStopLaterChanges()
+    throws Throwable
+  {
+    List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+
+    try(SyncWorkerPool pool = new SyncWorkerPool(1, false))
+    {
+      UserChangeQueue queue = new UserChangeQueue(pool);
+      queue.submit("user", js ->
+      {
+        Thread.sleep(50);
+        throw new IllegalStateException("failed");
+      });
+      queue.submit("user", js -> applied.add(1));
+
+      assertThrows(IllegalStateException.class, pool :: await);
+    }
+
+    assertEquals(List.of(1), applied);
+  }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the user attributes requested from the configured, denied and
+ * observed attribute names.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class LdapHandlerAttributesTest
+{
+  @TempDir
+  private Path tempDir;
+
+  private LdapHandler ldapHandler;
+
+  @BeforeEach
+  void setUp()
+  {
+    ldapHandler = TestLdapHandlers.create("localhost:389", tempDir);
+    TestLdapHandlers.set(ldapHandler, "ldapUserAttributeNames", new String[]
+    {
+      "uid", "cn", " mail ", "jpegPhoto", "*", "+", "userCertificate;binary",
+      "", "sn"
+    });
+    TestLdapHandlers.set(ldapHandler, "deniedAttributeNames", new String[]
+    {
+      "JPEGPHOTO"
+    });
+  }
+
+  @Test
+  void deniedAttributesAreNotRequested()
+  {
+    assertEquals(List.of("uid", "cn", "mail", "sn"),
+      ldapHandler.getConfiguredAttributeNames());
+    assertEquals(List.of("uid", "cn", "mail", "sn"),
+      List.of(userAttributeNames()));
+  }
+
+  @Test
+  void observedAttributesRoundTrip()
+    throws Exception
+  {
+    assertNull(ldapHandler.readObservedAttributeNames());
+
+    File file = ldapHandler.writeObservedAttributeNames(List.of("Mail", "cn"));
+
+    assertTrue(Files.readAllLines(file.toPath()).get(0).startsWith("#"));
+    assertEquals(Set.of("mail", "cn"),
+      ldapHandler.readObservedAttributeNames());
+  }
+
+  @Test
+  void restrictKeepsObservedAttributesAndUserId()
+    throws Exception
+  {
+    TestLdapHandlers.set(ldapHandler, "restrictToObservedAttributes", true);
+    assertEquals(List.of("uid", "cn", "mail", "sn"),
+      List.of(userAttributeNames()));
+
+    // writing the file drops the cached attribute names
+    ldapHandler.writeObservedAttributeNames(List.of("mail", "jpegPhoto"));
+
+    assertEquals(List.of("uid", "mail"), List.of(userAttributeNames()));
+  }
+
+  @Test
+  void userIdIsAlwaysRequested()
+  {
+    TestLdapHandlers.set(ldapHandler, "ldapUserId", "employeeNumber");
+
+    assertEquals(List.of("uid", "cn", "mail", "sn", "employeeNumber"),
+      List.of(userAttributeNames()));
+  }
+
+  private String[] userAttributeNames()
+  {
+    return ReflectionTestUtils.invokeMethod(ldapHandler, "userAttributeNames");
+  }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static l9g.app.ldap2nextcloud.handler.TestLdapHandlers.BASE_DN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Detects deleted, renamed and modified users from the changelog of an
+ * in-memory directory server.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class LdapHandlerChangelogTest
+{
+  private final static int USERS = 20;
+
+  @TempDir
+  private Path tempDir;
+
+  private InMemoryDirectoryServer directory;
+
+  private LdapHandler ldapHandler;
+
+  @BeforeEach
+  void setUp()
+    throws Exception
+  {
+    InMemoryDirectoryServerConfig config =
+      new InMemoryDirectoryServerConfig(BASE_DN);
+    config.addAdditionalBindCredentials(
+      TestLdapHandlers.BIND_DN, TestLdapHandlers.BIND_PASSWORD);
+    config.setSchema(null);
+    config.setMaxChangeLogEntries(1000);
+    directory = new InMemoryDirectoryServer(config);
+    directory.startListening();
+
+    directory.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+    for(int i = 0; i < USERS; i ++)
+    {
+      directory.add("dn: cn=u" + i + "," + BASE_DN, "objectClass: person",
+        "cn: u" + i, "uid: ID" + i, "modifyTimestamp: 20200101000000Z");
+    }
+
+    ldapHandler = TestLdapHandlers.create(
+      "localhost:" + directory.getListenPort(), tempDir);
+    TestLdapHandlers.set(ldapHandler, "changelogEnabled", true);
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    ldapHandler.closeConnectionPool();
+    directory.shutDown(true);
+  }
+
+  @Test
+  void changedUsersAreFound()
+    throws Throwable
+  {
+    assertTrue(ldapHandler.isChangelogEnabled());
+    ldapHandler.readAllLdapEntryUIDs();
+    LdapHandler.ChangelogRange before = ldapHandler.readChangelogRange();
+    assertNotNull(before);
+
+    directory.delete("cn=u3," + BASE_DN);
+    directory.modify("dn: cn=u5," + BASE_DN, "changetype: modify",
+      "replace: objectClass", "objectClass: device");
+    directory.modifyDN("cn=u7," + BASE_DN, "cn=u7x", true);
+    directory.add("dn: ou=groups," + BASE_DN,
+      "objectClass: organizationalUnit", "ou: groups");
+
+    LdapHandler.ChangelogRange after = ldapHandler.readChangelogRange();
+    assertEquals(before.last() + 4, after.last());
+
+    Set<String> changedUserIds =
+      ldapHandler.readChangedUserIds(before.last() + 1, after.last());
+    assertEquals(Set.of("id3", "id5", "id7"), changedUserIds);
+
+    Set<String> foundUserIds =
+      ldapHandler.readLdapEntriesByUserIds(changedUserIds, entry ->
+    {
+    });
+    assertEquals(Set.of("id7"), foundUserIds);
+  }
+
+  @Test
+  void fullReadFindsAllUsers()
+    throws Throwable
+  {
+    Set<String> userIds = new HashSet<>();
+    ldapHandler.readLdapEntries(new ASN1GeneralizedTime(0), true);
+    ldapHandler.getLdapUserIds().forEach(userIds :: add);
+    assertEquals(USERS, userIds.size());
+  }
+
+}
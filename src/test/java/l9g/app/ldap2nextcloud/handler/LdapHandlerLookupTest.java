@@ -0,0 +1,124 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static l9g.app.ldap2nextcloud.handler.TestLdapHandlers.BASE_DN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Looks up users by id in batches on an in-memory directory server.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class LdapHandlerLookupTest
+{
+  private final static int USERS = 20;
+
+  @TempDir
+  private Path tempDir;
+
+  private InMemoryDirectoryServer directory;
+
+  private final AtomicInteger userSearches = new AtomicInteger();
+
+  private LdapHandler ldapHandler;
+
+  @BeforeEach
+  void setUp()
+    throws Exception
+  {
+    InMemoryDirectoryServerConfig config =
+      new InMemoryDirectoryServerConfig(BASE_DN);
+    config.addAdditionalBindCredentials(
+      TestLdapHandlers.BIND_DN, TestLdapHandlers.BIND_PASSWORD);
+    config.setSchema(null);
+    config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor()
+    {
+      @Override
+      public void processSearchRequest(InMemoryInterceptedSearchRequest request)
+      {
+        if(BASE_DN.equals(request.getRequest().getBaseDN()))
+        {
+          userSearches.incrementAndGet();
+        }
+      }
+
+    });
+    directory = new InMemoryDirectoryServer(config);
+    directory.startListening();
+
+    directory.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+    for(int i = 0; i < USERS; i ++)
+    {
+      directory.add("dn: uid=u" + i + "," + BASE_DN, "objectClass: person",
+        "uid: u" + i, "cn: User " + i);
+    }
+
+    ldapHandler = TestLdapHandlers.create(
+      "localhost:" + directory.getListenPort(), tempDir);
+    TestLdapHandlers.set(ldapHandler, "lookupBatchSize", 4);
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    ldapHandler.closeConnectionPool();
+    directory.shutDown(true);
+  }
+
+  @Test
+  void idsAreLookedUpInBatches()
+    throws Throwable
+  {
+    List<String> cns = new ArrayList<>();
+
+    Set<String> found = ldapHandler.readLdapEntriesByUserIds(List.of(
+      "u1", "U2", "u3", "u4", "u5", "u6", "u7", "u8", "missing", "u19"),
+      entry -> cns.add(entry.getAttributeValue("cn")));
+
+    assertEquals(Set.of("u1", "u2", "u3", "u4", "u5", "u6", "u7", "u8",
+      "u19"), found);
+    assertEquals(9, cns.size());
+    // ten ids in batches of four
+    assertEquals(3, userSearches.get());
+  }
+
+  @Test
+  void noIdsNoSearch()
+    throws Throwable
+  {
+    assertEquals(Set.of(), ldapHandler.readLdapEntriesByUserIds(List.of(),
+      entry ->
+    {
+    }));
+    assertEquals(0, userSearches.get());
+  }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.schema.Schema;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import l9g.app.ldap2nextcloud.util.HighWaterMarks;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static l9g.app.ldap2nextcloud.handler.TestLdapHandlers.BASE_DN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the configured partitions together return every user exactly
+ * once, or are rejected.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class LdapHandlerPartitionTest
+{
+  private final static String[] OUS =
+  {
+    "a", "b", "c"
+  };
+
+  private final static int USERS_PER_OU = 20;
+
+  private final static int USERS = OUS.length * USERS_PER_OU;
+
+  @TempDir
+  private Path tempDir;
+
+  private InMemoryDirectoryServer directory;
+
+  private LdapHandler ldapHandler;
+
+  @BeforeEach
+  void setUp()
+    throws Exception
+  {
+    InMemoryDirectoryServerConfig config =
+      new InMemoryDirectoryServerConfig(BASE_DN);
+    config.addAdditionalBindCredentials(
+      TestLdapHandlers.BIND_DN, TestLdapHandlers.BIND_PASSWORD);
+    // the standard uid has no ORDERING rule, id ranges need one
+    config.setSchema(Schema.mergeSchemas(Schema.getDefaultStandardSchema(),
+      new Schema(new Entry("dn: cn=schema", "objectClass: subschema",
+        "attributeTypes: ( 0.9.2342.19200300.100.1.1 NAME ( 'uid' 'userid' ) "
+        + "EQUALITY caseIgnoreMatch ORDERING caseIgnoreOrderingMatch "
+        + "SUBSTR caseIgnoreSubstringsMatch "
+        + "SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 )"))));
+    directory = new InMemoryDirectoryServer(config);
+    directory.startListening();
+    directory.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+
+    for(String ou : OUS)
+    {
+      directory.add("dn: ou=" + ou + "," + BASE_DN,
+        "objectClass: organizationalUnit", "ou: " + ou);
+      for(int i = 0; i < USERS_PER_OU; i ++)
+      {
+        // user ids of every ou spread over all id ranges
+        String uid = OUS[i % OUS.length] + ou + i;
+        directory.add("dn: uid=" + uid + ",ou=" + ou + "," + BASE_DN,
+          "objectClass: inetOrgPerson", "uid: " + uid, "cn: " + uid,
+          "sn: " + uid);
+      }
+    }
+
+    ldapHandler = TestLdapHandlers.create(
+      "localhost:" + directory.getListenPort(), tempDir);
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    ldapHandler.closeConnectionPool();
+    directory.shutDown(true);
+  }
+
+  @Test
+  void baseDnsAndIdRangesReturnEveryUserOnce()
+    throws Throwable
+  {
+    setPartitions(new String[]
+    {
+      "ou=a," + BASE_DN, "ou=b," + BASE_DN, "ou=c," + BASE_DN
+    }, new String[]
+    {
+      "c", "b", "B"
+    });
+
+    assertEquals(USERS, streamedDns().size());
+    assertEquals(Set.of("ou=a,dc=example,dc=org [,b)",
+      "ou=a,dc=example,dc=org [b,c)", "ou=a,dc=example,dc=org [c,)",
+      "ou=b,dc=example,dc=org [,b)", "ou=b,dc=example,dc=org [b,c)",
+      "ou=b,dc=example,dc=org [c,)", "ou=c,dc=example,dc=org [,b)",
+      "ou=c,dc=example,dc=org [b,c)", "ou=c,dc=example,dc=org [c,)"),
+      searchedPartitions());
+    assertTrue(ldapHandler.isPartitionCoverageVerified());
+  }
+
+  @Test
+  void uncoveredUsersSearchWholeBase()
+    throws Throwable
+  {
+    setPartitions(new String[]
+    {
+      "ou=a," + BASE_DN, "ou=b," + BASE_DN
+    }, new String[0]);
+
+    assertEquals(USERS, streamedDns().size());
+    assertEquals(Set.of(BASE_DN), searchedPartitions());
+    assertTrue(ldapHandler.isPartitionCoverageVerified());
+  }
+
+  @Test
+  void misconfiguredPartitionsAreRejected()
+  {
+    setPartitions(new String[]
+    {
+      "ou=a," + BASE_DN, "ou=x,ou=a," + BASE_DN
+    }, new String[0]);
+    assertThrows(IllegalArgumentException.class, this :: streamedDns);
+
+    setPartitions(new String[]
+    {
+      "ou=a,dc=example,dc=com"
+    }, new String[0]);
+    assertThrows(IllegalArgumentException.class, this :: streamedDns);
+  }
+
+  @Test
+  void idRangesNeedOrderingRule()
+  {
+    TestLdapHandlers.set(ldapHandler, "ldapUserId", "cn");
+    setPartitions(new String[0], new String[]
+    {
+      "b"
+    });
+
+    assertThrows(IllegalArgumentException.class, this :: streamedDns);
+  }
+
+  private void setPartitions(String[] baseDns, String[] idBoundaries)
+  {
+    TestLdapHandlers.set(ldapHandler, "partitionBaseDns", baseDns);
+    TestLdapHandlers.set(ldapHandler, "partitionIdBoundaries", idBoundaries);
+    TestLdapHandlers.set(ldapHandler, "partitionRanges", null);
+  }
+
+  /**
+   * @return the DNs of all streamed entries, failing on duplicates
+   */
+  private Set<String> streamedDns()
+    throws Throwable
+  {
+    List<String> dns = Collections.synchronizedList(new ArrayList<>());
+    ldapHandler.streamLdapEntries(new ASN1GeneralizedTime(0), 10,
+      entry -> dns.add(entry.getDN()));
+
+    Set<String> uniqueDns = new HashSet<>(dns);
+    assertEquals(dns.size(), uniqueDns.size(), "users returned twice");
+    return uniqueDns;
+  }
+
+  private Set<String> searchedPartitions()
+    throws Throwable
+  {
+    HighWaterMarks marks = HighWaterMarks.of(new ASN1GeneralizedTime(0));
+    ldapHandler.readLdapEntries(marks, false);
+    return marks.next(Long.MAX_VALUE).getPartitionLowerBounds().keySet();
+  }
+
+}
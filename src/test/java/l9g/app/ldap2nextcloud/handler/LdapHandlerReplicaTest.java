@@ -0,0 +1,157 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static l9g.app.ldap2nextcloud.handler.TestLdapHandlers.BASE_DN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads users from two replicated in-memory directory servers.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class LdapHandlerReplicaTest
+{
+  private final static String[] PARTITIONS =
+  {
+    "a", "b", "c"
+  };
+
+  private final static int USERS_PER_PARTITION = 100;
+
+  @TempDir
+  private Path tempDir;
+
+  private final List<InMemoryDirectoryServer> replicas = new ArrayList<>();
+
+  private final List<AtomicInteger> searches = new ArrayList<>();
+
+  private LdapHandler ldapHandler;
+
+  @BeforeEach
+  void setUp()
+    throws Exception
+  {
+    replicas.add(createReplica());
+    replicas.add(createReplica());
+    ldapHandler = TestLdapHandlers.create("localhost:"
+      + replicas.get(0).getListenPort() + ", 127.0.0.1:"
+      + replicas.get(1).getListenPort(), tempDir);
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    ldapHandler.closeConnectionPool();
+    replicas.forEach(replica -> replica.shutDown(true));
+  }
+
+  @Test
+  void roundRobinSpreadsPartitions()
+    throws Throwable
+  {
+    TestLdapHandlers.set(ldapHandler, "ldapHostStrategy", "round-robin");
+    TestLdapHandlers.set(ldapHandler, "partitionBaseDns", new String[]
+    {
+      "ou=a," + BASE_DN, "ou=b," + BASE_DN, "ou=c," + BASE_DN
+    });
+
+    ldapHandler.readLdapEntries(new ASN1GeneralizedTime(0), true);
+
+    assertEquals(PARTITIONS.length * USERS_PER_PARTITION,
+      ldapHandler.getLdapEntryMap().size());
+    assertTrue(searches.get(0).get() > 0, "no search on first replica");
+    assertTrue(searches.get(1).get() > 0, "no search on second replica");
+  }
+
+  @Test
+  void searchRestartsOnOtherReplica()
+    throws Throwable
+  {
+    List<String> dns = Collections.synchronizedList(new ArrayList<>());
+
+    ldapHandler.streamLdapEntries(new ASN1GeneralizedTime(0), 1, entry ->
+    {
+      dns.add(entry.getDN());
+      if(dns.size() == 30)
+      {
+        replicas.get(0).shutDown(true);
+      }
+    });
+
+    assertEquals(PARTITIONS.length * USERS_PER_PARTITION,
+      new HashSet<>(dns).size());
+    assertTrue(searches.get(1).get() > 0, "search was not restarted");
+  }
+
+  private InMemoryDirectoryServer createReplica()
+    throws Exception
+  {
+    AtomicInteger searchCount = new AtomicInteger();
+    InMemoryDirectoryServerConfig config =
+      new InMemoryDirectoryServerConfig(BASE_DN);
+    config.addAdditionalBindCredentials(
+      TestLdapHandlers.BIND_DN, TestLdapHandlers.BIND_PASSWORD);
+    config.setSchema(null);
+    config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor()
+    {
+      @Override
+      public void processSearchRequest(InMemoryInterceptedSearchRequest request)
+      {
+        searchCount.incrementAndGet();
+      }
+
+    });
+
+    InMemoryDirectoryServer replica = new InMemoryDirectoryServer(config);
+    replica.startListening();
+    replica.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+
+    for(String partition : PARTITIONS)
+    {
+      replica.add("dn: ou=" + partition + "," + BASE_DN,
+        "objectClass: organizationalUnit", "ou: " + partition);
+      for(int i = 0; i < USERS_PER_PARTITION; i ++)
+      {
+        String uid = partition + i;
+        replica.add("dn: uid=" + uid + ",ou=" + partition + "," + BASE_DN,
+          "objectClass: person", "uid: " + uid, "cn: " + uid,
+          "modifyTimestamp: 20200101000000Z");
+      }
+    }
+
+    searches.add(searchCount);
+    return replica;
+  }
+
+}
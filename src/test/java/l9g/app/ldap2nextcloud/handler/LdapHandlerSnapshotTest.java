@@ -0,0 +1,167 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import l9g.app.ldap2nextcloud.model.CompactLdapEntry;
+import l9g.app.ldap2nextcloud.util.LdapSnapshot;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static l9g.app.ldap2nextcloud.handler.TestLdapHandlers.BASE_DN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Writes and refreshes the snapshot of an in-memory directory server.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class LdapHandlerSnapshotTest
+{
+  private final static int USERS = 10;
+
+  @TempDir
+  private Path tempDir;
+
+  private InMemoryDirectoryServer directory;
+
+  private LdapHandler ldapHandler;
+
+  @BeforeEach
+  void setUp()
+    throws Exception
+  {
+    startDirectory(true);
+    ldapHandler = TestLdapHandlers.create(
+      "localhost:" + directory.getListenPort(), tempDir);
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    ldapHandler.closeSnapshot();
+    ldapHandler.closeConnectionPool();
+    directory.shutDown(true);
+  }
+
+  @Test
+  void refreshCopiesUnchangedAndRereadsChangedEntries()
+    throws Throwable
+  {
+    assertEquals(USERS, ldapHandler.refreshSnapshot());
+
+    Thread.sleep(20);
+    directory.modify("uid=u1," + BASE_DN,
+      new Modification(ModificationType.REPLACE, "cn", "Renamed User"));
+    directory.delete("uid=u2," + BASE_DN);
+
+    assertEquals(USERS - 1, ldapHandler.refreshSnapshot());
+    assertFalse(Files.exists(tempDir.resolve("ldap.snapshot.tmp")));
+
+    try(LdapSnapshot snapshot =
+      LdapSnapshot.open(tempDir.resolve("ldap.snapshot").toFile()))
+    {
+      assertEquals("Renamed User", snapshot.get("u1").getAttributeValue("cn"));
+      assertEquals("User 3", snapshot.get("u3").getAttributeValue("cn"));
+      assertNull(snapshot.get("u2"));
+    }
+  }
+
+  @Test
+  void refreshStartsAtServerModifyTimestamp()
+    throws Throwable
+  {
+    // modify timestamps set by a server clock a few years behind
+    directory.shutDown(true);
+    startDirectory(false);
+    ldapHandler.closeConnectionPool();
+    TestLdapHandlers.set(ldapHandler, "ldapHostname",
+      "localhost:" + directory.getListenPort());
+    ldapHandler.writeSnapshot();
+
+    directory.modify("uid=u1," + BASE_DN,
+      new Modification(ModificationType.REPLACE, "cn", "Renamed User"),
+      new Modification(ModificationType.REPLACE, "modifyTimestamp",
+        "20210101000000Z"));
+
+    assertEquals(USERS, ldapHandler.refreshSnapshot());
+
+    try(LdapSnapshot snapshot =
+      LdapSnapshot.open(tempDir.resolve("ldap.snapshot").toFile()))
+    {
+      assertEquals("Renamed User", snapshot.get("u1").getAttributeValue("cn"));
+      assertEquals(new ASN1GeneralizedTime("20210101000000Z"),
+        snapshot.getHighWaterMark());
+    }
+  }
+
+  @Test
+  void changedAttributesRewriteSnapshot()
+    throws Throwable
+  {
+    ldapHandler.writeSnapshot();
+    TestLdapHandlers.set(ldapHandler, "ldapUserAttributeNames", new String[]
+    {
+      "uid", "cn", "mail"
+    });
+    TestLdapHandlers.set(ldapHandler, "requestedAttributeNames", null);
+    TestLdapHandlers.set(ldapHandler, "projectedAttributeNames", null);
+
+    assertEquals(USERS, ldapHandler.refreshSnapshot());
+
+    try(LdapSnapshot snapshot =
+      LdapSnapshot.open(tempDir.resolve("ldap.snapshot").toFile()))
+    {
+      assertEquals(List.of("uid", "cn", "mail", "modifyTimestamp"),
+        snapshot.getAttributeNames());
+      CompactLdapEntry entry = snapshot.get("u4");
+      assertEquals("u4@example.org", entry.getAttributeValue("mail"));
+    }
+  }
+
+  private void startDirectory(boolean generateOperationalAttributes)
+    throws Exception
+  {
+    InMemoryDirectoryServerConfig config =
+      new InMemoryDirectoryServerConfig(BASE_DN);
+    config.addAdditionalBindCredentials(
+      TestLdapHandlers.BIND_DN, TestLdapHandlers.BIND_PASSWORD);
+    config.setSchema(null);
+    config.setGenerateOperationalAttributes(generateOperationalAttributes);
+    directory = new InMemoryDirectoryServer(config);
+    directory.startListening();
+
+    directory.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+    for(int i = 0; i < USERS; i ++)
+    {
+      directory.add("dn: uid=u" + i + "," + BASE_DN, "objectClass: person",
+        "uid: u" + i, "cn: User " + i, "mail: u" + i + "@example.org",
+        "modifyTimestamp: 2020010" + (1 + i % 9) + "000000Z");
+    }
+  }
+
+}
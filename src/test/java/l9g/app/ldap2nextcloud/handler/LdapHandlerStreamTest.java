@@ -0,0 +1,131 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static l9g.app.ldap2nextcloud.handler.TestLdapHandlers.BASE_DN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Streams the users of an in-memory directory server page by page.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class LdapHandlerStreamTest
+{
+  // more than three pages of the test handler
+  private final static int USERS = 75;
+
+  @TempDir
+  private Path tempDir;
+
+  private InMemoryDirectoryServer directory;
+
+  private LdapHandler ldapHandler;
+
+  @BeforeEach
+  void setUp()
+    throws Exception
+  {
+    InMemoryDirectoryServerConfig config =
+      new InMemoryDirectoryServerConfig(BASE_DN);
+    config.addAdditionalBindCredentials(
+      TestLdapHandlers.BIND_DN, TestLdapHandlers.BIND_PASSWORD);
+    config.setSchema(null);
+    directory = new InMemoryDirectoryServer(config);
+    directory.startListening();
+
+    directory.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+    for(int i = 0; i < USERS; i ++)
+    {
+      directory.add("dn: uid=u" + i + "," + BASE_DN, "objectClass: person",
+        "uid: U" + i, "cn: User " + i);
+    }
+
+    ldapHandler = TestLdapHandlers.create(
+      "localhost:" + directory.getListenPort(), tempDir);
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    ldapHandler.closeConnectionPool();
+    directory.shutDown(true);
+  }
+
+  @Test
+  void slowConsumerReceivesEveryUserOnce()
+    throws Throwable
+  {
+    List<String> dns = new ArrayList<>();
+
+    ldapHandler.streamLdapEntries(new ASN1GeneralizedTime(0), 1, entry ->
+    {
+      dns.add(entry.getDN());
+      Thread.sleep(1);
+    });
+
+    assertEquals(USERS, dns.size());
+    assertEquals(USERS, new HashSet<>(dns).size());
+    assertEquals(USERS, ldapHandler.getLdapUserIds().getSize());
+    assertEquals("u0", ldapHandler.getLdapUserIds().iterator().next());
+  }
+
+  @Test
+  void incrementalStreamKeepsUserIds()
+    throws Throwable
+  {
+    ldapHandler.streamLdapEntries(new ASN1GeneralizedTime(0), 1, entry ->
+    {
+    });
+
+    List<String> dns = new ArrayList<>();
+    ldapHandler.streamLdapEntries(
+      new ASN1GeneralizedTime(System.currentTimeMillis() + 3_600_000L), 1,
+      entry -> dns.add(entry.getDN()));
+
+    assertEquals(0, dns.size());
+    assertEquals(USERS, ldapHandler.getLdapUserIds().getSize());
+  }
+
+  @Test
+  void consumerFailureEndsStream()
+  {
+    IOException failure = new IOException("nextcloud unavailable");
+
+    assertSame(failure, assertThrows(IOException.class,
+      () -> ldapHandler.streamLdapEntries(new ASN1GeneralizedTime(0), 1,
+        entry ->
+      {
+        throw failure;
+      })));
+  }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import l9g.app.ldap2nextcloud.config.Config;
+import l9g.app.ldap2nextcloud.model.NextcloudUpdateUser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class NextcloudUserCacheHandlerTest
+{
+  private final static int GROUPS = 200;
+
+  @TempDir
+  private Path tempDir;
+
+  private KeyValueStoreHandler keyValueStoreHandler;
+
+  private NextcloudUserCacheHandler cacheHandler;
+
+  @BeforeEach
+  void setUp()
+  {
+    keyValueStoreHandler = new KeyValueStoreHandler(
+      tempDir.resolve("store.kv").toString());
+    cacheHandler = new NextcloudUserCacheHandler(
+      mock(Config.class), keyValueStoreHandler, true, 60);
+
+    NextcloudUpdateUser user = new NextcloudUpdateUser();
+    user.setUserId("jdoe");
+    user.setGroups(new ArrayList<>());
+    cacheHandler.put(user);
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    keyValueStoreHandler.close();
+  }
+
+  @Test
+  void concurrentUpdatesAreNotLost()
+    throws Exception
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> updates = new ArrayList<>();
+
+    try
+    {
+      for(int i = 0; i < GROUPS; i ++)
+      {
+        String groupId = "group" + i;
+        updates.add(executor.submit(
+          () -> cacheHandler.addGroup("jdoe", groupId)));
+      }
+      updates.add(executor.submit(
+        () -> cacheHandler.updateField("jdoe", "email", "jdoe@example.org")));
+
+      for(Future<?> update : updates)
+      {
+        update.get();
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+
+    NextcloudUpdateUser user = cacheHandler.get("jdoe");
+    assertEquals(GROUPS, user.getGroups().size());
+    assertEquals("jdoe@example.org", user.getEmail());
+  }
+
+  @Test
+  void removeGroupAndUnknownField()
+  {
+    cacheHandler.addGroup("jdoe", "staff");
+    cacheHandler.removeGroup("jdoe", "staff");
+    List<String> groups = cacheHandler.get("jdoe").getGroups();
+    assertTrue(groups == null || groups.isEmpty());
+
+    cacheHandler.updateField("jdoe", "quota", "1 GB");
+    assertNull(cacheHandler.get("jdoe"));
+  }
+
+  @Test
+  void updateOfUncachedUserIsIgnored()
+  {
+    cacheHandler.addGroup("unknown", "staff");
+    assertNull(cacheHandler.get("unknown"));
+  }
+
+}
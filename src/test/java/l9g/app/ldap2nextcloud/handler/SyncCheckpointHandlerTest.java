@@ -0,0 +1,108 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import java.nio.file.Path;
+import java.util.Map;
+import l9g.app.ldap2nextcloud.util.HighWaterMarks;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a checkpoint survives a crash of the process.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class SyncCheckpointHandlerTest
+{
+  private final static ASN1GeneralizedTime START =
+    new ASN1GeneralizedTime(1_700_000_000_000L);
+
+  @TempDir
+  private Path tempDir;
+
+  private KeyValueStoreHandler keyValueStoreHandler;
+
+  private SyncCheckpointHandler checkpointHandler;
+
+  @BeforeEach
+  void setUp()
+  {
+    open();
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    keyValueStoreHandler.close();
+  }
+
+  @Test
+  void checkpointIsResumedAfterCrash()
+    throws Exception
+  {
+    checkpointHandler.start(START, new HighWaterMarks(1000L,
+      Map.of("ou=a", 2000L, "ou=b", 3000L)), true);
+    checkpointHandler.markProcessed("u1");
+    checkpointHandler.markProcessed("u2");
+
+    // uncommitted changes are lost
+    keyValueStoreHandler.getStore().closeImmediately();
+    open();
+
+    assertTrue(checkpointHandler.exists());
+    assertEquals(START.getTime(),
+      checkpointHandler.getStartTimestamp().getTime());
+    assertTrue(checkpointHandler.isFullSync());
+    assertEquals(1000L, checkpointHandler.getLowerBounds().getLowerBound());
+    assertEquals(Map.of("ou=a", 2000L, "ou=b", 3000L),
+      checkpointHandler.getLowerBounds().getPartitionLowerBounds());
+    assertTrue(checkpointHandler.isProcessed("u1"));
+    assertTrue(checkpointHandler.isProcessed("u2"));
+    assertFalse(checkpointHandler.isProcessed("u3"));
+  }
+
+  @Test
+  void newRunDiscardsCheckpoint()
+  {
+    checkpointHandler.start(START, HighWaterMarks.of(START), false);
+    checkpointHandler.markProcessed("u1");
+
+    checkpointHandler.start(START, HighWaterMarks.of(START), false);
+
+    assertEquals(0, checkpointHandler.getProcessedUsersCount());
+    assertFalse(checkpointHandler.isFullSync());
+
+    checkpointHandler.clear();
+
+    assertFalse(checkpointHandler.exists());
+  }
+
+  private void open()
+  {
+    keyValueStoreHandler = new KeyValueStoreHandler(
+      tempDir.resolve("store.kv").toString());
+    checkpointHandler = new SyncCheckpointHandler(keyValueStoreHandler, 2);
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import l9g.app.ldap2nextcloud.model.RetryItem;
+import l9g.app.ldap2nextcloud.util.UserIdNormalizer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the retry queue addresses users by their normalized id.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class SyncRetryQueueHandlerTest
+{
+  @TempDir
+  private Path tempDir;
+
+  private KeyValueStoreHandler keyValueStoreHandler;
+
+  private SyncRetryQueueHandler retryQueue;
+
+  @BeforeEach
+  void setUp()
+  {
+    keyValueStoreHandler = new KeyValueStoreHandler(
+      tempDir.resolve("store.kv").toString());
+    retryQueue = create();
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    keyValueStoreHandler.close();
+  }
+
+  @Test
+  void userIdsDifferingInCaseShareOneEntry()
+  {
+    retryQueue.recordFailure("JDoe", RetryItem.Operation.SYNC,
+      new IOException("timeout"));
+    RetryItem item = retryQueue.recordFailure(" jdoe",
+      RetryItem.Operation.SYNC, new IOException("timeout"));
+
+    assertEquals(2, item.getAttempts());
+    assertEquals(1, retryQueue.size());
+
+    retryQueue.succeeded("jdoe");
+    assertEquals(0, retryQueue.size());
+  }
+
+  @Test
+  void rawKeysAreMovedToNormalizedIds()
+  {
+    keyValueStoreHandler.<String>openMap("syncRetryQueue").put("JDoe",
+      "{\"userId\":\"JDoe\",\"operation\":\"SYNC\",\"attempts\":3}");
+
+    retryQueue = create();
+    retryQueue.remove("jdoe");
+
+    assertEquals(0, retryQueue.size());
+  }
+
+  private SyncRetryQueueHandler create()
+  {
+    return new SyncRetryQueueHandler(keyValueStoreHandler,
+      new UserIdNormalizer("lowercase", 1000), 5, 1440, 10);
+  }
+
+}
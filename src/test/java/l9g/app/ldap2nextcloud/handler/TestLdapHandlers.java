@@ -0,0 +1,87 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.handler;
+
+import java.nio.file.Path;
+import l9g.app.ldap2nextcloud.util.UserIdNormalizer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Creates {@link LdapHandler}s configured like the application defaults for
+ * tests against in-memory directory servers.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+final class TestLdapHandlers
+{
+  final static String BASE_DN = "dc=example,dc=org";
+
+  final static String BIND_DN = "cn=admin";
+
+  final static String BIND_PASSWORD = "secret";
+
+  private TestLdapHandlers()
+  {
+  }
+
+  /**
+   * @param hostname comma separated {@code host:port} list
+   * @param directory holds the key-value store and the snapshot
+   *
+   * @return the handler, reading the {@code uid} of all persons
+   */
+  static LdapHandler create(String hostname, Path directory)
+  {
+    LdapHandler handler = new LdapHandler(
+      new UserIdNormalizer("lowercase", 1000000),
+      new KeyValueStoreHandler(directory.resolve("store.kv").toString()));
+
+    set(handler, "ldapHostname", hostname);
+    set(handler, "ldapPort", 389);
+    set(handler, "ldapHostStrategy", "failover");
+    set(handler, "maxSearchRestarts", 3);
+    set(handler, "ldapBaseDn", BASE_DN);
+    set(handler, "ldapBindDn", BIND_DN);
+    set(handler, "ldapBindPassword", BIND_PASSWORD);
+    set(handler, "ldapFilter", "(&(modifyTimestamp>={0})(objectClass=person))");
+    set(handler, "ldapUserId", "uid");
+    set(handler, "ldapUserAttributeNames", new String[]
+    {
+      "uid", "cn"
+    });
+    set(handler, "deniedAttributeNames", new String[0]);
+    set(handler, "observedAttributesFile",
+      directory.resolve("ldap-attributes.observed").toFile());
+    set(handler, "lookupBatchSize", 100);
+    set(handler, "pagedResultSize", 20);
+    set(handler, "partitionBaseDns", new String[0]);
+    set(handler, "partitionIdBoundaries", new String[0]);
+    set(handler, "partitionThreads", 4);
+    set(handler, "poolInitialConnections", 1);
+    set(handler, "poolMaxConnections", 8);
+    set(handler, "poolMaxConnectionAgeSeconds", 900L);
+    set(handler, "poolHealthCheckIntervalSeconds", 60L);
+    set(handler, "changelogBaseDn", "cn=changelog");
+    set(handler, "snapshotFile", directory.resolve("ldap.snapshot").toFile());
+    return handler;
+  }
+
+  static void set(LdapHandler handler, String name, Object value)
+  {
+    ReflectionTestUtils.setField(handler, name, value);
+  }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.model;
+
+import com.unboundid.ldap.sdk.Entry;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the accessors of {@link CompactLdapEntry} with those of the
+ * UnboundID {@link Entry} the mapping script used before.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class CompactLdapEntryTest
+{
+  private final static String[] NAMES =
+  {
+    "uid", "UID", "cn", "mail", "objectClass", "modifyTimestamp",
+    "uidNumber", "pwdReset", "missing"
+  };
+
+  private final static int ENTRY_COUNT = 1000;
+
+  private Entry entry;
+
+  @BeforeEach
+  void setUp()
+    throws Exception
+  {
+    entry = new Entry(
+      "dn: uid=jdoe,ou=people,dc=example,dc=org",
+      "objectClass: top",
+      "objectClass: inetOrgPerson",
+      "uid: jdoe",
+      "cn: John Doe",
+      "mail: jdoe@example.org",
+      "mail: john.doe@example.org",
+      "modifyTimestamp: 20260101120000Z",
+      "uidNumber: 4711",
+      "pwdReset: TRUE");
+  }
+
+  @Test
+  void accessorsMatchEntry()
+    throws Exception
+  {
+    assertMatches(CompactLdapEntry.of(entry));
+  }
+
+  @Test
+  void decodedEntryMatchesEntry()
+    throws Exception
+  {
+    byte[] bytes = CompactLdapEntry.of(entry).toByteArray();
+    assertMatches(CompactLdapEntry.readFrom(ByteBuffer.wrap(bytes)));
+  }
+
+  @Test
+  void invalidValuesAreNull()
+  {
+    CompactLdapEntry compactEntry = CompactLdapEntry.of(entry);
+
+    assertNull(compactEntry.getAttributeValueAsDate("cn"));
+    assertNull(compactEntry.getAttributeValueAsLong("cn"));
+    assertNull(compactEntry.getAttributeValueAsBoolean("cn"));
+  }
+
+  @Test
+  void recordingReadsCollectsNames()
+  {
+    Set<String> readAttributeNames = new HashSet<>();
+    CompactLdapEntry view =
+      CompactLdapEntry.of(entry).recordingReads(readAttributeNames);
+
+    view.getAttributeValue("Mail");
+    view.hasObjectClass("person");
+    view.getAttributeValueAsLong("missing");
+
+    assertEquals(Set.of("mail", "objectclass", "missing"), readAttributeNames);
+  }
+
+  @Test
+  void projectionKeepsOnlyGivenAttributes()
+  {
+    CompactLdapEntry compactEntry =
+      CompactLdapEntry.of(entry, Set.of("uid", "mail"));
+
+    assertEquals("jdoe", compactEntry.getAttributeValue("UID"));
+    assertEquals(2, compactEntry.getAttributeValues("mail").length);
+    assertFalse(compactEntry.hasAttribute("cn"));
+    assertFalse(compactEntry.hasAttribute("modifyTimestamp"));
+    assertEquals(entry.getDN(), compactEntry.getDN());
+  }
+
+  @Test
+  void binaryValueIsRejected()
+  {
+    entry.addAttribute("jpegPhoto", new byte[]
+    {
+      (byte)0xff, (byte)0xd8, (byte)0xff, (byte)0xe0
+    });
+
+    assertThrows(IllegalArgumentException.class,
+      () -> CompactLdapEntry.of(entry));
+    assertEquals("jdoe",
+      CompactLdapEntry.of(entry, Set.of("uid")).getAttributeValue("uid"));
+  }
+
+  @Test
+  void compactEntriesUseLessHeap()
+  {
+    List<Entry> entries = new ArrayList<>();
+    List<CompactLdapEntry> compactEntries = new ArrayList<>();
+
+    for(int i = 0; i < ENTRY_COUNT; i ++)
+    {
+      Entry syntheticEntry = entry.duplicate();
+      syntheticEntry.setDN("uid=user" + i + ",ou=people,dc=example,dc=org");
+      syntheticEntry.setAttribute("uid", "user" + i);
+      syntheticEntry.setAttribute("cn", "User " + i);
+      syntheticEntry.setAttribute("mail", "user" + i + "@example.org");
+      syntheticEntry.setAttribute("uidNumber", Integer.toString(10000 + i));
+      entries.add(syntheticEntry);
+      compactEntries.add(CompactLdapEntry.of(syntheticEntry));
+    }
+
+    long entrySize = GraphLayout.parseInstance(entries).totalSize();
+    long compactSize = GraphLayout.parseInstance(compactEntries).totalSize();
+
+    assertTrue(compactSize * 2 < entrySize, "compact entries " + compactSize
+      + " bytes, entries " + entrySize + " bytes");
+  }
+
+  private void assertMatches(CompactLdapEntry compactEntry)
+    throws Exception
+  {
+    assertEquals(entry.getDN(), compactEntry.getDN());
+    assertEquals(entry.getParsedDN(), compactEntry.getParsedDN());
+    assertArrayEquals(entry.getObjectClassValues(),
+      compactEntry.getObjectClassValues());
+    assertTrue(compactEntry.hasObjectClass("InetOrgPerson"));
+    assertFalse(compactEntry.hasObjectClass("person"));
+
+    for(String name : NAMES)
+    {
+      assertEquals(entry.hasAttribute(name), compactEntry.hasAttribute(name));
+      assertEquals(entry.getAttributeValue(name),
+        compactEntry.getAttributeValue(name));
+      assertArrayEquals(entry.getAttributeValues(name),
+        compactEntry.getAttributeValues(name));
+      assertArrayEquals(entry.getAttributeValueBytes(name),
+        compactEntry.getAttributeValueBytes(name));
+      assertEquals(entry.getAttributeValueAsDate(name),
+        compactEntry.getAttributeValueAsDate(name));
+      assertEquals(entry.getAttributeValueAsLong(name),
+        compactEntry.getAttributeValueAsLong(name));
+      assertEquals(entry.getAttributeValueAsBoolean(name),
+        compactEntry.getAttributeValueAsBoolean(name));
+    }
+  }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.model;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Parses scopes and restricts diffs to them.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class SyncScopeTest
+{
+  @Test
+  void noSelectorSelectsAll()
+  {
+    assertSame(SyncScope.ALL, SyncScope.of(null, false));
+    assertSame(SyncScope.ALL, SyncScope.of(" , ", false));
+    assertTrue(SyncScope.ALL.isGroups());
+    assertEquals(Set.copyOf(UserDiff.UPDATE_FIELDS),
+      SyncScope.ALL.getFields());
+  }
+
+  @Test
+  void selectorsAreParsed()
+  {
+    SyncScope scope = SyncScope.of(" Email,phone ", false);
+
+    assertFalse(scope.isAll());
+    assertFalse(scope.isGroups());
+    assertEquals(Set.of("email", "phone"), scope.getFields());
+
+    SyncScope groupsOnly = SyncScope.of("", true);
+
+    assertTrue(groupsOnly.isGroups());
+    assertTrue(groupsOnly.getFields().isEmpty());
+    assertFalse(groupsOnly.withoutGroups().isGroups());
+  }
+
+  @Test
+  void unknownFieldIsRejected()
+  {
+    assertThrows(IllegalArgumentException.class,
+      () -> SyncScope.of("email,displayname", false));
+  }
+
+  @Test
+  void diffIsLimitedToScope()
+  {
+    NextcloudCreateUser user = new NextcloudCreateUser();
+    user.setEmail("new@example.org");
+    user.setPhone("+49 1");
+    user.setGroups(List.of("staff"));
+    NextcloudUpdateUser nextcloudUser = new NextcloudUpdateUser();
+    nextcloudUser.setEmail("old@example.org");
+    nextcloudUser.setPhone("+49 2");
+    nextcloudUser.setGroups(List.of("students"));
+    Set<String> managedGroups = Set.of("staff", "students");
+
+    UserDiff emailOnly = UserDiff.compute(user, nextcloudUser, managedGroups,
+      SyncScope.of("email", false));
+
+    assertEquals(Map.of("email", "new@example.org"),
+      emailOnly.getChangedFields());
+    assertTrue(emailOnly.getGroupsToAdd().isEmpty());
+    assertTrue(emailOnly.getGroupsToRemove().isEmpty());
+
+    UserDiff groupsOnly = UserDiff.compute(user, nextcloudUser, managedGroups,
+      SyncScope.of(null, true));
+
+    assertTrue(groupsOnly.getChangedFields().isEmpty());
+    assertEquals(List.of("staff"), groupsOnly.getGroupsToAdd());
+    assertEquals(List.of("students"), groupsOnly.getGroupsToRemove());
+  }
+
+}
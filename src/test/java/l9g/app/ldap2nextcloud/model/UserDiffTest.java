@@ -0,0 +1,106 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.model;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares mapped users with Nextcloud users field by field.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class UserDiffTest
+{
+  private final static Set<String> MANAGED_GROUPS = Set.of("staff", "students");
+
+  private NextcloudCreateUser user;
+
+  private NextcloudUpdateUser nextcloudUser;
+
+  @BeforeEach
+  void setUp()
+  {
+    user = new NextcloudCreateUser();
+    user.setUserId("jdoe");
+    user.setEmail("jdoe@example.org");
+    user.setPhone("+49 5331 939 0");
+    user.setOrganisation("Example");
+    user.setGroups(List.of("staff"));
+
+    nextcloudUser = new NextcloudUpdateUser();
+    nextcloudUser.setUserId("jdoe");
+    nextcloudUser.setEmail("jdoe@example.org");
+    nextcloudUser.setPhone("+49 5331 939 0");
+    nextcloudUser.setOrganisation("Example");
+    nextcloudUser.setGroups(List.of("staff"));
+  }
+
+  @Test
+  void equalUsersHaveNoDiff()
+  {
+    assertTrue(UserDiff.compute(user, nextcloudUser, MANAGED_GROUPS).isEmpty());
+  }
+
+  @Test
+  void onlyChangedFieldsAreReported()
+  {
+    user.setEmail("john.doe@example.org");
+    user.setWebsite("https://example.org/~jdoe");
+
+    UserDiff diff = UserDiff.compute(user, nextcloudUser, MANAGED_GROUPS);
+
+    assertEquals(Map.of("email", "john.doe@example.org",
+      "website", "https://example.org/~jdoe"), diff.getChangedFields());
+    assertEquals(List.of("email", "website"),
+      List.copyOf(diff.getChangedFields().keySet()));
+  }
+
+  @Test
+  void nullKeepsAndEmptyEqualsMissingValue()
+  {
+    user.setPhone(null);
+    user.setAddress("");
+    nextcloudUser.setAddress(null);
+
+    assertTrue(UserDiff.compute(user, nextcloudUser, MANAGED_GROUPS).isEmpty());
+
+    user.setOrganisation("");
+
+    assertEquals(Map.of("organisation", ""), UserDiff.compute(
+      user, nextcloudUser, MANAGED_GROUPS).getChangedFields());
+  }
+
+  @Test
+  void onlyManagedGroupsAreRemoved()
+  {
+    user.setGroups(List.of("students"));
+    nextcloudUser.setGroups(List.of("staff", "admin"));
+
+    UserDiff diff = UserDiff.compute(user, nextcloudUser, MANAGED_GROUPS);
+
+    assertEquals(List.of("students"), diff.getGroupsToAdd());
+    assertEquals(List.of("staff"), diff.getGroupsToRemove());
+    assertTrue(diff.getChangedFields().isEmpty());
+  }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.util;
+
+import com.unboundid.asn1.ASN1GeneralizedTime;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks how {@link HighWaterMarks} advance from observed modify timestamps
+ * and how {@link TimestampUtil} stores them.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class HighWaterMarksTest
+{
+  private final static long START = 1_000_000L;
+
+  private final static long LIMIT = 5_000_000L;
+
+  @TempDir
+  private Path tempDir;
+
+  private String appHome;
+
+  @BeforeEach
+  void setUp()
+  {
+    appHome = System.setProperty("app.home", tempDir.toString());
+  }
+
+  @AfterEach
+  void tearDown()
+  {
+    if(appHome != null)
+    {
+      System.setProperty("app.home", appHome);
+    }
+    else
+    {
+      System.clearProperty("app.home");
+    }
+  }
+
+  @Test
+  void partitionsAdvanceToTheirNewestModifyTime()
+  {
+    HighWaterMarks marks = new HighWaterMarks(START, Map.of());
+
+    marks.observe("a", 2_000_000L);
+    marks.observe("a", 3_000_000L);
+    marks.observe("b", 2_500_000L);
+
+    HighWaterMarks next = marks.next(LIMIT);
+
+    assertEquals(3_000_000L, next.getLowerBound("a").getTime());
+    assertEquals(2_500_000L, next.getLowerBound("b").getTime());
+    assertEquals(2_500_000L, next.getLowerBound());
+    assertEquals(2_500_000L, next.getMinimumLowerBound().getTime());
+  }
+
+  @Test
+  void advanceStopsAtRunStart()
+  {
+    HighWaterMarks marks = new HighWaterMarks(START, Map.of());
+
+    marks.observe("a", LIMIT + 60_000L);
+
+    assertEquals(LIMIT, marks.next(LIMIT).getLowerBound("a").getTime());
+  }
+
+  @Test
+  void marksNeverMoveBack()
+  {
+    HighWaterMarks marks =
+      new HighWaterMarks(START, Map.of("a", 4_000_000L, "b", 4_000_000L));
+
+    marks.observe("a", 2_000_000L);
+    // no entry with a modify timestamp
+    marks.observe("b", -1);
+
+    HighWaterMarks next = marks.next(LIMIT);
+
+    assertEquals(4_000_000L, next.getLowerBound("a").getTime());
+    assertEquals(4_000_000L, next.getLowerBound("b").getTime());
+  }
+
+  @Test
+  void unsearchedPartitionsAreDropped()
+  {
+    HighWaterMarks marks =
+      new HighWaterMarks(START, Map.of("a", 2_000_000L, "old", 3_000_000L));
+
+    marks.observe("a", 2_500_000L);
+
+    HighWaterMarks next = marks.next(LIMIT);
+
+    assertEquals(Map.of("a", 2_500_000L), next.getPartitionLowerBounds());
+    assertEquals(2_500_000L, next.getLowerBound("old").getTime());
+  }
+
+  @Test
+  void nothingObservedKeepsMarks()
+  {
+    HighWaterMarks marks = new HighWaterMarks(START, Map.of("a", 2_000_000L));
+
+    assertSame(marks, marks.next(LIMIT));
+  }
+
+  @Test
+  void fullDirectoryOnlyFromUnixTimeZero()
+  {
+    HighWaterMarks marks = new HighWaterMarks(0, Map.of("b", START));
+
+    assertTrue(marks.isFullDirectory(List.of("a")));
+    assertFalse(marks.isFullDirectory(List.of("a", "b")));
+  }
+
+  @Test
+  void marksSurviveTimestampFiles()
+    throws Exception
+  {
+    HighWaterMarks marks = new HighWaterMarks(START, Map.of());
+    marks.observe("ou=a", 2_000_000L);
+    marks.observe("ou=b", 3_000_000L);
+
+    TimestampUtil timestampUtil = new TimestampUtil("test");
+    timestampUtil.setCurrentMarks(marks.next(LIMIT));
+    timestampUtil.writeCurrentTimestamp();
+
+    TimestampUtil next = new TimestampUtil("test");
+
+    assertEquals(new ASN1GeneralizedTime(2_000_000L),
+      next.getLastSyncTimestamp());
+    assertEquals(Map.of("ou=a", 2_000_000L, "ou=b", 3_000_000L),
+      next.getLastSyncMarks().getPartitionLowerBounds());
+  }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.util;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import l9g.app.ldap2nextcloud.model.NextcloudCreateUser;
+import l9g.app.ldap2nextcloud.model.PlanOperation;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes and reads back a {@link PlanFile}.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class PlanFileTest
+{
+  @TempDir
+  private Path tempDir;
+
+  @Test
+  void operationsRoundTripInOrder()
+    throws Exception
+  {
+    File file = tempDir.resolve("sync.plan").toFile();
+
+    NextcloudCreateUser user = new NextcloudCreateUser();
+    user.setUserId("jdoe");
+    user.setDisplayName("John Doe");
+    user.setEmail("jdoe@example.org");
+    user.setGroups(List.of("staff", "ldap"));
+
+    PlanOperation create =
+      new PlanOperation(PlanOperation.Type.CREATE_USER, "jdoe");
+    create.setUser(user);
+
+    PlanOperation update =
+      new PlanOperation(PlanOperation.Type.UPDATE_USER, "asmith");
+    update.setKey("email");
+    update.setValue("äöü@example.org");
+
+    PlanOperation addGroup =
+      new PlanOperation(PlanOperation.Type.ADD_GROUP, "jdoe");
+    addGroup.setGroupId("staff");
+
+    PlanOperation state =
+      new PlanOperation(PlanOperation.Type.SYNC_STATE, null);
+    state.setValue("20260101000000.000Z");
+    state.setLowerBound(1000L);
+    state.setPartitionLowerBounds(Map.of("ou=people", 2000L));
+    state.setChangeNumber(42L);
+    state.setFullScan(true);
+
+    try(PlanFile planFile = new PlanFile(file))
+    {
+      planFile.write(create);
+      planFile.write(update);
+      planFile.write(addGroup);
+      planFile.write(state);
+      assertEquals(4, planFile.getOperationCount());
+    }
+
+    assertEquals(4, Files.readAllLines(file.toPath()).size());
+
+    List<PlanOperation> operations = PlanFile.read(file);
+
+    assertEquals(4, operations.size());
+
+    PlanOperation readCreate = operations.get(0);
+    assertEquals(PlanOperation.Type.CREATE_USER, readCreate.getType());
+    assertEquals("jdoe", readCreate.getUser().getUserId());
+    assertEquals("John Doe", readCreate.getUser().getDisplayName());
+    assertEquals("jdoe@example.org", readCreate.getUser().getEmail());
+    assertEquals(List.of("staff", "ldap"), readCreate.getUser().getGroups());
+
+    PlanOperation readUpdate = operations.get(1);
+    assertEquals(PlanOperation.Type.UPDATE_USER, readUpdate.getType());
+    assertEquals("asmith", readUpdate.getUserId());
+    assertEquals("email", readUpdate.getKey());
+    assertEquals("äöü@example.org", readUpdate.getValue());
+    assertNull(readUpdate.getUser());
+
+    assertEquals("staff", operations.get(2).getGroupId());
+
+    PlanOperation readState = operations.get(3);
+    assertEquals(PlanOperation.Type.SYNC_STATE, readState.getType());
+    assertNull(readState.getUserId());
+    assertEquals("20260101000000.000Z", readState.getValue());
+    assertEquals(1000L, readState.getLowerBound());
+    assertEquals(Map.of("ou=people", 2000L),
+      readState.getPartitionLowerBounds());
+    assertEquals(42L, readState.getChangeNumber());
+    assertTrue(readState.getFullScan());
+  }
+
+  @Test
+  void nullFieldsAreNotWritten()
+    throws Exception
+  {
+    File file = tempDir.resolve("sync.plan").toFile();
+
+    try(PlanFile planFile = new PlanFile(file))
+    {
+      planFile.write(
+        new PlanOperation(PlanOperation.Type.DELETE_USER, "jdoe"));
+    }
+
+    String line = Files.readAllLines(file.toPath()).get(0);
+
+    assertEquals("{\"type\":\"DELETE_USER\",\"userId\":\"jdoe\"}", line);
+  }
+
+  @Test
+  void blankLinesAndUnknownFieldsAreIgnored()
+    throws Exception
+  {
+    File file = tempDir.resolve("sync.plan").toFile();
+    Files.write(file.toPath(), List.of(
+      "{\"type\":\"TIMESTAMP\",\"value\":\"20250101000000.000Z\"}",
+      "",
+      "{\"type\":\"REMOVE_GROUP\",\"userId\":\"jdoe\",\"groupId\":\"staff\","
+      + "\"comment\":\"written by a newer version\"}",
+      "   "));
+
+    List<PlanOperation> operations = PlanFile.read(file);
+
+    assertEquals(2, operations.size());
+    assertEquals(PlanOperation.Type.TIMESTAMP, operations.get(0).getType());
+    assertEquals(PlanOperation.Type.REMOVE_GROUP, operations.get(1).getType());
+    assertEquals("staff", operations.get(1).getGroupId());
+    assertEquals("jdoe", operations.get(1).getUserId());
+  }
+
+}
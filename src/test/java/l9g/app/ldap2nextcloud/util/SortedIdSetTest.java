@@ -0,0 +1,120 @@
+/*
+ * Copyright 2026 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2nextcloud.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks sorting, deduplication, spilling and the merge-join of
+ * {@link SortedIdSet}.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class SortedIdSetTest
+{
+  private final static UnaryOperator<String> LOWER_CASE = String :: toLowerCase;
+
+  @Test
+  void idsAreSortedAndUniqueByKey()
+  {
+    SortedIdSet ids = build(1000, "carol", "Alice", "bob", "alice", "Bob");
+
+    assertFalse(ids.isSpilled());
+    assertEquals(3, ids.getSize());
+    assertEquals(List.of("Alice", "bob", "carol"), list(ids));
+  }
+
+  @Test
+  void mergeJoinReportsIdsOfOneSetOnly()
+  {
+    SortedIdSet nextcloud = build(1000, "alice", "Bob", "dave", "erin");
+    SortedIdSet ldap = build(1000, "bob", "carol", "Erin", "frank");
+    List<String> onlyNextcloud = new ArrayList<>();
+    List<String> onlyLdap = new ArrayList<>();
+
+    SortedIdSet.mergeJoin(nextcloud, ldap, onlyNextcloud :: add,
+      onlyLdap :: add);
+
+    assertEquals(List.of("alice", "dave"), onlyNextcloud);
+    assertEquals(List.of("carol", "frank"), onlyLdap);
+  }
+
+  @Test
+  void mergeJoinWithEmptySet()
+  {
+    SortedIdSet ids = build(1000, "alice", "bob");
+    List<String> onlyLeft = new ArrayList<>();
+    List<String> onlyRight = new ArrayList<>();
+
+    SortedIdSet.mergeJoin(ids, SortedIdSet.empty(LOWER_CASE), onlyLeft :: add,
+      onlyRight :: add);
+    SortedIdSet.mergeJoin(SortedIdSet.empty(LOWER_CASE),
+      SortedIdSet.empty(LOWER_CASE), onlyLeft :: add, onlyRight :: add);
+
+    assertEquals(List.of("alice", "bob"), onlyLeft);
+    assertTrue(onlyRight.isEmpty());
+  }
+
+  @Test
+  void spilledSetMatchesInMemorySet()
+  {
+    String[] userIds = new String[50];
+    for(int i = 0; i < userIds.length; i ++)
+    {
+      // every id twice, in different case and chunks
+      userIds[i] = (i % 2 == 0 ? "user" : "USER") + ((i * 7) % 25);
+    }
+
+    try(SortedIdSet spilled = build(4, userIds))
+    {
+      SortedIdSet inMemory = build(1000, userIds);
+      List<String> differences = new ArrayList<>();
+
+      assertTrue(spilled.isSpilled());
+      assertEquals(25, spilled.getSize());
+      assertEquals(inMemory.getSize(), list(spilled).size());
+      assertEquals(list(inMemory).stream().map(LOWER_CASE).toList(),
+        list(spilled).stream().map(LOWER_CASE).toList());
+
+      SortedIdSet.mergeJoin(spilled, inMemory, differences :: add,
+        differences :: add);
+      assertTrue(differences.isEmpty());
+    }
+  }
+
+  private static SortedIdSet build(int spillThreshold, String... userIds)
+  {
+    SortedIdSet.Builder builder =
+      new SortedIdSet.Builder(LOWER_CASE, spillThreshold);
+    builder.addAll(List.of(userIds));
+    return builder.build();
+  }
+
+  private static List<String> list(SortedIdSet ids)
+  {
+    List<String> list = new ArrayList<>();
+    ids.forEach(list :: add);
+    return list;
+  }
+
+}